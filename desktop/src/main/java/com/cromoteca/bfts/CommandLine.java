@@ -153,6 +153,53 @@ public class CommandLine {
     }
   }
 
+  @Command(description = "Sets the number of threads used to hash files")
+  public void hashingThreads(@Param(name = "Number of threads") int threads) {
+    if (threads < 1) {
+      System.err.println("At least one thread is required");
+    } else {
+      CONFIG.setHashingThreads(threads);
+    }
+  }
+
+  @Command(description = "Sets the number of threads used to list directories")
+  public void scanThreads(@Param(name = "Number of threads") int threads) {
+    if (threads < 1) {
+      System.err.println("At least one thread is required");
+    } else {
+      CONFIG.setScanThreads(threads);
+    }
+  }
+
+  @Command(description = "Uploads chunks while hashing files, reading them only"
+      + " once")
+  public void streamingUpload(@Param(name = "Enabled") boolean enabled) {
+    CONFIG.setStreamingUpload(enabled);
+  }
+
+  @Command(description = "Skips unchanged directories by comparing their"
+      + " digests with the ones in the storage")
+  public void treeDigests(@Param(name = "Enabled") boolean enabled) {
+    CONFIG.setTreeDigests(enabled);
+  }
+
+  @Command(description = "Sets the maximum number of concurrent streams used"
+      + " to upload chunks")
+  public void uploadStreams(@Param(name = "Number of streams") int streams) {
+    if (streams < 1) {
+      System.err.println("At least one stream is required");
+    } else {
+      CONFIG.setUploadStreams(streams);
+    }
+  }
+
+  @Command(description = "Encrypts chunks using authenticated AES-GCM, that"
+      + " older clients can't decrypt")
+  public void authenticatedEncryption(
+      @Param(name = "Enabled") boolean enabled) {
+    CONFIG.setAuthenticatedEncryption(enabled);
+  }
+
   /**
    * Prompt for a password if it has not been stored previously.
    */
@@ -200,13 +247,64 @@ public class CommandLine {
   public void init(@Param(name = "Storage name") String name,
       @Param(name = "Storage path") String path,
       @Param(name = "In memory database") boolean inMemory) {
+    init(name, path, inMemory, false);
+  }
+
+  @Command(description = "Initializes a new local storage, optionally storing"
+      + " chunks in pack segments instead of individual files")
+  public void init(@Param(name = "Storage name") String name,
+      @Param(name = "Storage path") String path,
+      @Param(name = "In memory database") boolean inMemory,
+      @Param(name = "Packed chunks") boolean packedChunks) {
     StorageConfiguration storageConfig = new StorageConfiguration();
+    storageConfig.setPackedChunks(packedChunks);
     LocalStorage.init(FilePath.get(path), inMemory, storageConfig);
     CONFIG.setLocalStoragePath(name, path);
     System.out.format("Local storage %s initialized in directory %s\n", name,
         path);
   }
 
+  @Command(description = "Uses content-defined chunking in a local storage for"
+      + " files hashed from now on (average size 0 for fixed size chunks)")
+  public void chunking(@Param(name = "Storage name") String name,
+      @Param(name = "Minimum chunk size") int min,
+      @Param(name = "Average chunk size") int average,
+      @Param(name = "Maximum chunk size") int max) {
+    String path = CONFIG.getLocalStoragePath(name);
+    LocalStorage.get(FilePath.get(path)).setChunking(min, average, max);
+    System.out.format("Chunking of storage %s updated\n", name);
+  }
+
+  @Command(description = "Selects the codec used to compress chunks in a local"
+      + " storage (deflate, snappy or none) and its level (0 for default)")
+  public void compression(@Param(name = "Storage name") String name,
+      @Param(name = "Codec") String codec,
+      @Param(name = "Compression level") int level) {
+    String path = CONFIG.getLocalStoragePath(name);
+    LocalStorage.get(FilePath.get(path)).setCompression(codec, level);
+    System.out.format("Compression of storage %s updated\n", name);
+  }
+
+  @Command(description = "Sets the number of parallel database readers of a"
+      + " local storage (0 to release the database file when idle, e.g. on USB"
+      + " drives); takes effect on restart")
+  public void readers(@Param(name = "Storage name") String name,
+      @Param(name = "Number of readers") int readers) {
+    String path = CONFIG.getLocalStoragePath(name);
+    LocalStorage.get(FilePath.get(path)).setDatabaseReaders(readers);
+    System.out.format("Storage %s will use %d database readers\n", name,
+        readers);
+  }
+
+  @Command(description = "Moves the chunk files of a local storage into pack"
+      + " segments")
+  public void pack(@Param(name = "Storage name") String name) {
+    String path = CONFIG.getLocalStoragePath(name);
+    LocalStorage storage = LocalStorage.get(FilePath.get(path));
+    int count = storage.packChunkFiles();
+    System.out.format("%d chunk files packed\n", count);
+  }
+
   @Command(abbrev = "pub", description = "Publishes a local storage over HTTP")
   public void publish(@Param(name = "Storage name") String name,
       @Param(name = "HTTP port") int port) throws GeneralSecurityException {
@@ -314,8 +412,13 @@ public class CommandLine {
     Storage storage = getStorage(storageName);
     Filesystem fs = new Filesystem();
     fs.setFilesystemScanSize(Integer.MAX_VALUE);
+    fs.setHashingThreads(CONFIG.getHashingThreads());
+    fs.setScanThreads(CONFIG.getScanThreads());
     ClientActivities ca = new ClientActivities(CONFIG.getClientName(), fs,
         storage, storageName, CONFIG.getLongOperationDuration());
+    ca.setStreamingUpload(CONFIG.isStreamingUpload());
+    ca.setTreeDigests(CONFIG.isTreeDigests());
+    ca.setMaxUploadStreams(CONFIG.getUploadStreams());
 
     for (Source source : storage.selectSources(CONFIG.getClientName())) {
       doCompleteBackup(ca, source.getName());
@@ -328,8 +431,13 @@ public class CommandLine {
     Storage storage = getStorage(storageName);
     Filesystem fs = new Filesystem();
     fs.setFilesystemScanSize(Integer.MAX_VALUE);
+    fs.setHashingThreads(CONFIG.getHashingThreads());
+    fs.setScanThreads(CONFIG.getScanThreads());
     ClientActivities ca = new ClientActivities(CONFIG.getClientName(), fs,
         storage, storageName, CONFIG.getLongOperationDuration());
+    ca.setStreamingUpload(CONFIG.isStreamingUpload());
+    ca.setTreeDigests(CONFIG.isTreeDigests());
+    ca.setMaxUploadStreams(CONFIG.getUploadStreams());
     doCompleteBackup(ca, sourceName);
   }
 
@@ -379,6 +487,15 @@ public class CommandLine {
 
             // start server and keep reference to be able to stop it
             IntConsumer stop = server.startHTTPServer(port);
+
+            // multiplexed connections use the next port
+            try {
+              stop = stop.andThen(server.startMultiplexedServer(port + 1));
+            } catch (IOException ex) {
+              System.out.format("Multiplexed server not started on port %d:"
+                  + " %s\n", port + 1, ex.getMessage());
+            }
+
             FACTORY.registerSingleton(IntConsumer.class, port, stop);
           } catch (InitializationException ex) {
             System.out.format("Storage server %s not started: %s\n", path,
@@ -391,6 +508,8 @@ public class CommandLine {
         });
 
     Filesystem filesystem = new Filesystem();
+    filesystem.setHashingThreads(CONFIG.getHashingThreads());
+    filesystem.setScanThreads(CONFIG.getScanThreads());
 
     // start all backups
     stream = Arrays.stream(CONFIG.getConnectedStorages());
@@ -409,6 +528,9 @@ public class CommandLine {
           // one ClientActivities object for each backup destination
           ClientActivities ca = new ClientActivities(CONFIG.getClientName(),
               filesystem, storage, n, CONFIG.getLongOperationDuration());
+          ca.setStreamingUpload(CONFIG.isStreamingUpload());
+          ca.setTreeDigests(CONFIG.isTreeDigests());
+          ca.setMaxUploadStreams(CONFIG.getUploadStreams());
 
           // one scheduler for each backup destination
           ClientScheduler cs = new ClientScheduler(ca, 5000, 150000);
@@ -596,15 +718,18 @@ public class CommandLine {
     }
 
     if (storage != null) {
+      Cryptographer.Mode chunkMode = CONFIG.isAuthenticatedEncryption()
+          ? Cryptographer.Mode.GCM : Cryptographer.Mode.CBC;
+
       switch (encryptionType) {
         case DATA:
           storage = EncryptedStorages.getEncryptedStorage(storage,
-              askPassword(), false);
+              askPassword(), false, chunkMode);
           System.out.format("Using data encryption on storage %s\n", path);
           break;
         case FULL:
           storage = EncryptedStorages.getEncryptedStorage(storage,
-              askPassword(), true);
+              askPassword(), true, chunkMode);
           System.out.format("Using full encryption on storage %s\n", path);
           break;
         case NONE:
@@ -30,6 +30,13 @@ public class Configuration {
   private static final String LONG_OPERATION_DURATION
       = "longOperationDuration";
   private static final int DEFAULT_LONG_OPERATION_DURATION = 30;
+  private static final String HASHING_THREADS = "hashingThreads";
+  private static final String STREAMING_UPLOAD = "streamingUpload";
+  private static final String UPLOAD_STREAMS = "uploadStreams";
+  private static final String SCAN_THREADS = "scanThreads";
+  private static final String TREE_DIGESTS = "treeDigests";
+  private static final String AUTHENTICATED_ENCRYPTION
+      = "authenticatedEncryption";
   private final Preferences p;
 
   /**
@@ -78,6 +85,75 @@ public class Configuration {
     return p.getInt(LONG_OPERATION_DURATION, DEFAULT_LONG_OPERATION_DURATION);
   }
 
+  /**
+   * Returns the number of threads used to hash files, which defaults to the
+   * number of available processors.
+   */
+  public int getHashingThreads() {
+    return p.getInt(HASHING_THREADS,
+        Runtime.getRuntime().availableProcessors());
+  }
+
+  public void setHashingThreads(int threads) {
+    p.putInt(HASHING_THREADS, threads);
+  }
+
+  /**
+   * Returns true if chunks must be uploaded while hashing files.
+   */
+  public boolean isStreamingUpload() {
+    return p.getBoolean(STREAMING_UPLOAD, false);
+  }
+
+  public void setStreamingUpload(boolean streamingUpload) {
+    p.putBoolean(STREAMING_UPLOAD, streamingUpload);
+  }
+
+  /**
+   * Returns true if unchanged directories must be skipped using digests.
+   */
+  public boolean isTreeDigests() {
+    return p.getBoolean(TREE_DIGESTS, false);
+  }
+
+  public void setTreeDigests(boolean treeDigests) {
+    p.putBoolean(TREE_DIGESTS, treeDigests);
+  }
+
+  /**
+   * Returns the maximum number of concurrent streams used to upload chunks.
+   */
+  public int getUploadStreams() {
+    return p.getInt(UPLOAD_STREAMS, 1);
+  }
+
+  public void setUploadStreams(int streams) {
+    p.putInt(UPLOAD_STREAMS, streams);
+  }
+
+  /**
+   * Returns the number of threads used to list directories.
+   */
+  public int getScanThreads() {
+    return p.getInt(SCAN_THREADS, 1);
+  }
+
+  public void setScanThreads(int threads) {
+    p.putInt(SCAN_THREADS, threads);
+  }
+
+  /**
+   * Returns true if chunks sent to encrypted storages must use the
+   * authenticated (GCM) format, which older clients can't read.
+   */
+  public boolean isAuthenticatedEncryption() {
+    return p.getBoolean(AUTHENTICATED_ENCRYPTION, false);
+  }
+
+  public void setAuthenticatedEncryption(boolean authenticatedEncryption) {
+    p.putBoolean(AUTHENTICATED_ENCRYPTION, authenticatedEncryption);
+  }
+
   private Preferences localStorageNode() {
     return p.node("localstorages");
   }
@@ -30,6 +30,16 @@ public interface InitMapper {
    */
   String getVersion();
 
+  /**
+   * Gets the version of the database schema, stored in SQLite user_version
+   */
+  int getSchemaVersion();
+
+  /**
+   * Sets the version of the database schema
+   */
+  void setSchemaVersion(@Param("version") int version);
+
   /**
    * Drops the "servers" table
    */
@@ -92,6 +102,106 @@ public interface InitMapper {
    */
   void createHashTrigger();
 
+  /**
+   * Adds the "packedChunks" column to the "servers" table of old databases
+   */
+  void addPackedChunksColumn();
+
+  /**
+   * Adds the "databaseReaders" column to the "servers" table of old databases
+   */
+  void addDatabaseReadersColumn();
+
+  /**
+   * Adds an integer column to the "servers" table of old databases
+   */
+  void addServerColumn(@Param("column") String column);
+
+  /**
+   * Adds the "start" column to the "hashes" table of old databases
+   */
+  void addChunkStartColumn();
+
+  /**
+   * Adds the "treeDigest" column to the "files" table of old databases
+   */
+  void addTreeDigestColumn();
+
+  /**
+   * Adds the "treeSize" column to the "files" table of old databases
+   */
+  void addTreeSizeColumn();
+
+  /**
+   * Creates the "packed_chunks" table, that maps chunks to pack segments
+   */
+  void createPackedChunkTable();
+
+  /**
+   * Creates an index for "segment" on the "packed_chunks" table
+   */
+  void createPackedChunkSegmentIndex();
+
+  /**
+   * Creates the "hash_refs" table, that counts files by hash
+   */
+  void createHashRefTable();
+
+  /**
+   * Creates the "chunk_refs" table, that counts references to chunks
+   */
+  void createChunkRefTable();
+
+  /**
+   * Creates the "reclaim_queue" table, containing chunks to be deleted
+   */
+  void createReclaimQueueTable();
+
+  /**
+   * Creates a trigger to count references to hashes of new files
+   */
+  void createFileHashInsertTrigger();
+
+  /**
+   * Creates a trigger to update hash references when a file hash changes
+   */
+  void createFileHashUpdateTrigger();
+
+  /**
+   * Creates a trigger to release hashes of deleted files
+   */
+  void createFileHashDeleteTrigger();
+
+  /**
+   * Creates a trigger to count references to chunks
+   */
+  void createChunkRefInsertTrigger();
+
+  /**
+   * Creates a trigger to queue chunks that are no longer referenced
+   */
+  void createChunkRefDeleteTrigger();
+
+  /**
+   * Computes hash references of an existing database
+   */
+  void fillHashRefs();
+
+  /**
+   * Computes chunk references of an existing database
+   */
+  void fillChunkRefs();
+
+  /**
+   * Queues chunks that are not referenced in an existing database
+   */
+  void fillReclaimQueue();
+
+  /**
+   * Deletes chunk information about hashes no longer used by any file
+   */
+  void purgeOrphanHashes();
+
   /**
    * Adds a new server
    */
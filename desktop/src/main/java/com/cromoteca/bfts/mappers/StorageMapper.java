@@ -19,8 +19,10 @@ package com.cromoteca.bfts.mappers;
 import com.cromoteca.bfts.model.Chunk;
 import com.cromoteca.bfts.model.DeletedFileInfo;
 import com.cromoteca.bfts.model.File;
+import com.cromoteca.bfts.model.PackedChunk;
 import com.cromoteca.bfts.model.Source;
 import com.cromoteca.bfts.model.StorageConfiguration;
+import com.cromoteca.bfts.model.TreeDigest;
 import com.cromoteca.bfts.util.Container;
 import java.util.List;
 import java.util.Map;
@@ -111,6 +113,60 @@ public interface StorageMapper {
   void addFiles(@Param("sourceId") int sourceId,
       @Param("files") List<File> files, @Param("instant") long instant);
 
+  /**
+   * Gets the digest of the contents of a directory, stored in its newest
+   * current row
+   *
+   * @return the digest, with the id of the directory row
+   */
+  TreeDigest getTreeDigest(@Param("sourceId") int sourceId,
+      @Param("parent") String parent, @Param("name") String name);
+
+  /**
+   * Returns the digests of the oldest directories of a source, with their
+   * parent and name.
+   */
+  List<TreeDigest> getTreeDigests(@Param("sourceId") int sourceId,
+      @Param("max") int max);
+
+  /**
+   * Counts the current rows among the ones of a source that follow a row
+   *
+   * @param id   the id of the row
+   * @param size the number of following rows to check
+   */
+  int countCurrentFilesAfter(@Param("sourceId") int sourceId,
+      @Param("id") long id, @Param("size") int size);
+
+  /**
+   * Gets the id of a row of a source, counting back from the last one, if it
+   * is a directory
+   *
+   * @param offset 0 for the last row
+   * @return the id, or null if the row is not a directory
+   */
+  Long getDirectoryId(@Param("sourceId") int sourceId,
+      @Param("offset") int offset);
+
+  /**
+   * Sets the digest of the contents of a directory
+   */
+  void setTreeDigest(@Param("id") long id, @Param("digest") byte[] digest,
+      @Param("size") int size);
+
+  /**
+   * Moves the contents of a directory after a newer row of the same
+   * directory, without adding rows.
+   *
+   * @param id    the id of the previous directory row, which they follow
+   * @param size  the number of rows of its contents
+   * @param shift the difference between the new directory row id and the
+   *              previous one
+   * @return the number of moved rows
+   */
+  int moveTree(@Param("sourceId") int sourceId, @Param("id") long id,
+      @Param("size") int size, @Param("shift") long shift);
+
   /**
    * Marks duplicate records as obsolete. Duplicates have identical file info
    * (path, size, last modified), the newest one wins, the oldest ones are
@@ -243,9 +299,23 @@ public interface StorageMapper {
    * @param position chunk position in the file
    * @param length   chunk length
    * @param chunk    chunk hash
+   * @param start    chunk offset in the file
    */
   void addChunk(@Param("main") byte[] main, @Param("position") int position,
-      @Param("length") int length, @Param("chunk") byte[] chunk);
+      @Param("length") int length, @Param("chunk") byte[] chunk,
+      @Param("start") long start);
+
+  /**
+   * Returns the file hashes, among the passed ones, that already have their
+   * chunks in the database
+   */
+  List<byte[]> getChunkedHashes(@Param("mains") List<byte[]> mains);
+
+  /**
+   * Returns the chunk hashes, among the passed ones, that are referenced by
+   * some file but haven't been uploaded yet
+   */
+  List<byte[]> getNotUploadedChunkHashes(@Param("hashes") List<byte[]> hashes);
 
   /**
    * Marks a chunk as uploaded (sets the upload time)
@@ -292,8 +362,11 @@ public interface StorageMapper {
    * Return all already uploaded chunks included between some limits
    *
    * @param firstByte a byte array containing a single byte
+   * @param nextByte  a byte array containing the byte after firstByte, or null
+   *                  if firstByte is 0xff
    */
-  List<Chunk> getUploadedChunks(@Param("firstByte") byte[] firstByte);
+  List<Chunk> getUploadedChunks(@Param("firstByte") byte[] firstByte,
+      @Param("nextByte") byte[] nextByte);
 
   /**
    * Deletes a chunk
@@ -312,7 +385,64 @@ public interface StorageMapper {
       @Param("instant") long instant);
 
   /**
-   * Deletes all chunk information about files no longer mentioned in the backup
+   * Gets chunks that are no longer referenced and can be deleted
+   */
+  List<byte[]> getReclaimableChunks(@Param("limit") int limit);
+
+  /**
+   * Removes chunks from the reclaim queue after they have been deleted
+   */
+  void deleteReclaimedChunks(@Param("chunks") List<byte[]> chunks);
+
+  /**
+   * Deletes the locations of some packed chunks
+   */
+  void deletePackedChunks(@Param("chunks") List<byte[]> chunks);
+
+  /**
+   * Enables or disables the pack segment layout for chunks
+   */
+  void setPackedChunks(@Param("packedChunks") boolean packedChunks);
+
+  /**
+   * Sets content-defined chunking sizes (all 0 to use fixed size chunks)
+   */
+  void setChunking(@Param("min") int min, @Param("average") int average,
+      @Param("max") int max);
+
+  /**
+   * Sets the codec used to compress chunks and its level
+   */
+  void setCompression(@Param("codec") int codec, @Param("level") int level);
+
+  /**
+   * Sets the number of read-only database connections
+   */
+  void setDatabaseReaders(@Param("databaseReaders") int databaseReaders);
+
+  /**
+   * Stores the location of a chunk in a pack segment
+   */
+  void addPackedChunk(@Param("chunk") PackedChunk chunk);
+
+  /**
+   * Gets the locations of some packed chunks
+   */
+  List<PackedChunk> getPackedChunks(@Param("chunks") List<byte[]> chunks);
+
+  /**
+   * Gets the locations of all chunks contained in a pack segment
+   */
+  List<PackedChunk> getPackedChunksInSegment(@Param("segment") int segment);
+
+  /**
+   * Gets the total length of live chunk data for each pack segment
+   */
+  List<Map<String, Object>> getPackedSegmentSizes();
+
+  /**
+   * Deletes locations of chunks that are no longer marked as uploaded,
+   * returning the number of deleted rows
    */
-  void purgeChunks();
+  int purgePackedChunks();
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.model;
+
+/**
+ * Location of a chunk inside a pack segment
+ *
+ * @author Luciano Vernaschi (luciano at cromoteca.com)
+ */
+public class PackedChunk {
+  private byte[] chunk;
+  private int segment;
+  private long position;
+  private int length;
+
+  public PackedChunk() {
+  }
+
+  public PackedChunk(byte[] chunk, int segment, long position, int length) {
+    this.chunk = chunk;
+    this.segment = segment;
+    this.position = position;
+    this.length = length;
+  }
+
+  /**
+   * Chunk hash
+   */
+  public byte[] getChunk() {
+    return chunk;
+  }
+
+  public void setChunk(byte[] chunk) {
+    this.chunk = chunk;
+  }
+
+  /**
+   * Number of the segment that contains the chunk
+   */
+  public int getSegment() {
+    return segment;
+  }
+
+  public void setSegment(int segment) {
+    this.segment = segment;
+  }
+
+  /**
+   * Position of chunk data in the segment
+   */
+  public long getPosition() {
+    return position;
+  }
+
+  public void setPosition(long position) {
+    this.position = position;
+  }
+
+  /**
+   * Length of chunk data
+   */
+  public int getLength() {
+    return length;
+  }
+
+  public void setLength(int length) {
+    this.length = length;
+  }
+}
@@ -16,13 +16,13 @@
  */
 package com.cromoteca.bfts.restore;
 
+import com.cromoteca.bfts.compression.ChunkCodecs;
 import com.cromoteca.bfts.model.Chunk;
 import com.cromoteca.bfts.model.File;
 import com.cromoteca.bfts.model.Pair;
 import com.cromoteca.bfts.model.Source;
 import com.cromoteca.bfts.storage.Storage;
 import com.cromoteca.bfts.util.Cache;
-import com.cromoteca.bfts.util.Compression;
 import com.cromoteca.bfts.util.Counter;
 import com.cromoteca.bfts.util.Path;
 import com.cromoteca.bfts.util.lambdas.IOSupplier;
@@ -311,12 +311,16 @@ public class BackupFileSystemView implements FileSystemView {
             byte[] data = supplier.get();
 
             if (data != null) {
-              if (data.length < chunkLength) {
-                // if a chunk is smaller than expected, it is compressed
-                data = Compression.decompress(data);
+              // if a chunk is smaller than expected, it is compressed
+              try {
+                data = ChunkCodecs.decode(data, chunkLength);
+              } catch (IOException ex) {
+                // corrupted or truncated compressed data
+                log.debug(null, ex);
+                data = null;
               }
 
-              if (data.length != chunkLength) {
+              if (data == null || data.length != chunkLength) {
                 log.warn("Chunk {} has wrong size", chunkIndex);
               } else {
                 chunkIndex++;
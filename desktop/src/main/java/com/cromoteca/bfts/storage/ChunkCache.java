@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded cache of chunk contents. A chunk is only admitted the second time it is read within a while, so that a
+ * single restore of many files does not evict chunks that several clients are
+ * downloading. Least recently used chunks are evicted first.
+ *
+ * @author Luciano Vernaschi (luciano at cromoteca.com)
+ */
+class ChunkCache {
+  private final long maxSize;
+  private final int maxCandidates;
+  private final LinkedHashMap<ByteBuffer, byte[]> entries
+      = new LinkedHashMap<>(16, 0.75f, true);
+  // recently read chunks that are not cached yet
+  private final LinkedHashMap<ByteBuffer, Boolean> candidates
+      = new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> e) {
+      return size() > maxCandidates;
+    }
+  };
+  private long size;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * @param maxSize       maximum total size of cached chunks
+   * @param maxCandidates maximum number of chunks remembered for admission
+   */
+  ChunkCache(long maxSize, int maxCandidates) {
+    this.maxSize = maxSize;
+    this.maxCandidates = maxCandidates;
+  }
+
+  /**
+   * Returns the contents of a chunk, or null if it is not cached.
+   */
+  synchronized byte[] get(byte[] hash) {
+    byte[] data = entries.get(ByteBuffer.wrap(hash));
+
+    if (data == null) {
+      misses++;
+      return null;
+    }
+
+    hits++;
+    // callers may modify the returned array, e.g. when encrypting in place
+    return data.clone();
+  }
+
+  /**
+   * Offers a chunk that has just been read from disk.
+   */
+  synchronized void put(byte[] hash, byte[] data) {
+    // a single large chunk would evict too many other ones
+    if (maxSize <= 0 || data.length > maxSize / 8) {
+      return;
+    }
+
+    ByteBuffer key = ByteBuffer.wrap(hash);
+
+    if (entries.containsKey(key)) {
+      return;
+    }
+
+    if (candidates.remove(key) == null) {
+      candidates.put(key, Boolean.TRUE);
+      return;
+    }
+
+    // heap arrays are given back as soon as they are evicted, while direct
+    // buffers would only be freed by a later garbage collection
+    entries.put(key, data.clone());
+    size += data.length;
+
+    Iterator<byte[]> iterator = entries.values().iterator();
+
+    while (size > maxSize) {
+      size -= iterator.next().length;
+      iterator.remove();
+      evictions++;
+    }
+  }
+
+  /**
+   * Removes a chunk that has been deleted or replaced.
+   */
+  synchronized void remove(byte[] hash) {
+    ByteBuffer key = ByteBuffer.wrap(hash);
+    byte[] data = entries.remove(key);
+    candidates.remove(key);
+
+    if (data != null) {
+      size -= data.length;
+    }
+  }
+
+  synchronized long getSize() {
+    return size;
+  }
+
+  synchronized long getHits() {
+    return hits;
+  }
+
+  synchronized long getMisses() {
+    return misses;
+  }
+
+  synchronized long getEvictions() {
+    return evictions;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%d chunks, %d bytes, %d hits, %d misses,"
+        + " %d evictions", entries.size(), size, hits, misses, evictions);
+  }
+}
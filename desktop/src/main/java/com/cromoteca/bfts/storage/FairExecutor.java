@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.storage;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tasks using a bounded number of threads, taking tasks from each client
+ * in turn so that a client sending many requests does not delay the other
+ * ones. Tasks are rejected when too many are waiting, or when a client has
+ * too many running or waiting tasks. Threads are created when needed and stop
+ * after being idle for a while.
+ *
+ * @author Luciano Vernaschi (luciano at cromoteca.com)
+ */
+class FairExecutor {
+  private static final Logger log = LoggerFactory.getLogger(FairExecutor.class);
+  private static final long KEEP_ALIVE = 60_000;
+  private final String name;
+  private final int maxThreads;
+  private final int maxQueued;
+  private final int maxPerClient;
+  // waiting tasks by client
+  private final Map<String, Deque<Runnable>> queues = new HashMap<>();
+  // clients with waiting tasks, in the order they will be served
+  private final Deque<String> clients = new ArrayDeque<>();
+  // running and waiting tasks by client
+  private final Map<String, Integer> tasks = new HashMap<>();
+  private int queued;
+  private int threads;
+  private int idleThreads;
+  private int threadCounter;
+
+  /**
+   * @param name         used to name threads
+   * @param maxThreads   maximum number of threads running tasks
+   * @param maxQueued    maximum number of tasks waiting for a thread
+   * @param maxPerClient maximum number of running and waiting tasks for each
+   *                     client
+   */
+  FairExecutor(String name, int maxThreads, int maxQueued, int maxPerClient) {
+    this.name = name;
+    this.maxThreads = maxThreads;
+    this.maxQueued = maxQueued;
+    this.maxPerClient = maxPerClient;
+  }
+
+  /**
+   * Queues a task.
+   *
+   * @return false if the task has been rejected
+   */
+  synchronized boolean execute(String client, Runnable task) {
+    int clientTasks = tasks.getOrDefault(client, 0);
+
+    if (queued >= maxQueued || clientTasks >= maxPerClient) {
+      return false;
+    }
+
+    tasks.put(client, clientTasks + 1);
+    Deque<Runnable> queue = queues.get(client);
+
+    if (queue == null) {
+      queue = new ArrayDeque<>();
+      queues.put(client, queue);
+      clients.add(client);
+    }
+
+    queue.add(task);
+    queued++;
+
+    if (queued > idleThreads && threads < maxThreads) {
+      threads++;
+      Thread thread = new Thread(this::work, name + '-' + ++threadCounter);
+      thread.setDaemon(true);
+      thread.start();
+    } else {
+      notifyAll();
+    }
+
+    return true;
+  }
+
+  /**
+   * Waits until all tasks have completed, or the timeout has passed.
+   *
+   * @return true if all tasks have completed
+   */
+  synchronized boolean awaitIdle(long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+
+    while (!tasks.isEmpty()) {
+      long remaining = deadline - System.currentTimeMillis();
+
+      if (remaining <= 0) {
+        return false;
+      }
+
+      wait(remaining);
+    }
+
+    return true;
+  }
+
+  private void work() {
+    while (true) {
+      String client;
+      Runnable task;
+
+      synchronized (this) {
+        long deadline = System.currentTimeMillis() + KEEP_ALIVE;
+
+        while (clients.isEmpty()) {
+          long remaining = deadline - System.currentTimeMillis();
+
+          if (remaining <= 0) {
+            threads--;
+            return;
+          }
+
+          idleThreads++;
+
+          try {
+            wait(remaining);
+          } catch (InterruptedException ex) {
+            threads--;
+            return;
+          } finally {
+            idleThreads--;
+          }
+        }
+
+        // take the first waiting task of the next client
+        client = clients.poll();
+        Deque<Runnable> queue = queues.get(client);
+        task = queue.poll();
+        queued--;
+
+        if (queue.isEmpty()) {
+          queues.remove(client);
+        } else {
+          clients.add(client);
+        }
+      }
+
+      try {
+        task.run();
+      } catch (RuntimeException ex) {
+        log.warn(null, ex);
+      } finally {
+        synchronized (this) {
+          int clientTasks = tasks.get(client) - 1;
+
+          if (clientTasks == 0) {
+            tasks.remove(client);
+            // wakes awaitIdle too
+            notifyAll();
+          } else {
+            tasks.put(client, clientTasks);
+          }
+        }
+      }
+    }
+  }
+}
@@ -16,17 +16,23 @@
  */
 package com.cromoteca.bfts.storage;
 
+import com.cromoteca.bfts.client.FastCdcChunker;
 import com.cromoteca.bfts.client.Filesystem;
+import com.cromoteca.bfts.compression.ChunkCodec;
+import com.cromoteca.bfts.compression.ChunkCodecs;
+import com.cromoteca.bfts.compression.DeflateCodec;
 import com.cromoteca.bfts.mappers.InitMapper;
 import com.cromoteca.bfts.mappers.StorageMapper;
 import com.cromoteca.bfts.model.Chunk;
 import com.cromoteca.bfts.model.DeletedFileInfo;
 import com.cromoteca.bfts.model.File;
 import com.cromoteca.bfts.model.Hash;
+import com.cromoteca.bfts.model.PackedChunk;
 import com.cromoteca.bfts.model.Pair;
 import com.cromoteca.bfts.model.Source;
 import com.cromoteca.bfts.model.Stats;
 import com.cromoteca.bfts.model.StorageConfiguration;
+import com.cromoteca.bfts.model.TreeDigest;
 import com.cromoteca.bfts.util.Cached;
 import com.cromoteca.bfts.util.Container;
 import com.cromoteca.bfts.util.Counter;
@@ -37,11 +43,18 @@ import com.cromoteca.bfts.util.Util;
 import com.cromoteca.bfts.util.lambdas.IOSupplier;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -49,16 +62,30 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import javax.sql.DataSource;
+import org.apache.ibatis.datasource.pooled.PooledDataSource;
+import org.apache.ibatis.exceptions.PersistenceException;
+import org.apache.ibatis.session.ExecutorType;
 import org.apache.ibatis.session.SqlSession;
 import org.apache.ibatis.session.SqlSessionFactory;
 import org.apache.ibatis.session.SqlSessionFactoryBuilder;
@@ -81,6 +108,33 @@ public class LocalStorage implements Storage, AutoCloseable {
    * query (see addFiles in StorageMapper.xml).
    */
   public static final int BATCH_SIZE = 100;
+  /**
+   * Version of the database schema, used to upgrade existing databases.
+   */
+  public static final int SCHEMA_VERSION = 6;
+  /**
+   * Maximum number of hashes looked up at once. It depends on
+   * SQLITE_MAX_VARIABLE_NUMBER.
+   */
+  private static final int LOOKUP_SIZE = 500;
+  /**
+   * Number of unreferenced chunks deleted in a single transaction.
+   */
+  private static final int RECLAIM_BATCH_SIZE = 500;
+  /**
+   * Number of received chunks that can wait to be written to disk.
+   */
+  private static final int INGEST_QUEUE_SIZE = 16;
+  /**
+   * Default maximum size of the cache of recently read chunks.
+   */
+  public static final long CHUNK_CACHE_SIZE = 64 << 20;
+  /**
+   * Number of read chunks remembered to decide which ones to cache.
+   */
+  private static final int CHUNK_CACHE_CANDIDATES = 16384;
+  private static final long ORPHAN_MIN_AGE
+      = TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS);
 
   private static final Logger log = LoggerFactory.getLogger(LocalStorage.class);
   private static final long DAY_MILLISECONDS
@@ -88,8 +142,21 @@ public class LocalStorage implements Storage, AutoCloseable {
   private static final DateTimeFormatter BACKUP_FILE_NAME
       = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
   private SqlSessionFactory factory;
+  /**
+   * Read-only connections, only used for on disk databases with
+   * databaseReaders > 0.
+   */
+  private SqlSessionFactory readerFactory;
   private ScheduledExecutorService sqlExecutor
       = Executors.newSingleThreadScheduledExecutor();
+  private ScheduledExecutorService sweeper
+      = Executors.newSingleThreadScheduledExecutor();
+  private ExecutorService chunkExecutor = Executors.newCachedThreadPool(
+      runnable -> {
+        Thread thread = new Thread(runnable, "chunk-io");
+        thread.setDaemon(true);
+        return thread;
+      });
   private Cached<StorageConfiguration> config;
   private final FilePath storagePath;
   private final FilePath backupPath;
@@ -97,6 +164,12 @@ public class LocalStorage implements Storage, AutoCloseable {
   private long lastAnalyze;
   private static final Map<FilePath, LocalStorage> activeStorages = new HashMap<>();
   private int lastDeletedBackupIndex;
+  private volatile PackStore packStore;
+  private volatile ChunkCache chunkCache
+      = new ChunkCache(CHUNK_CACHE_SIZE, CHUNK_CACHE_CANDIDATES);
+  private final Queue<PendingWrite> pendingWrites
+      = new ConcurrentLinkedQueue<>();
+  private final AtomicLong tempFileCounter = new AtomicLong();
 
   /**
    * Make sure that local storages are closed correctly. This is very important
@@ -201,13 +274,8 @@ public class LocalStorage implements Storage, AutoCloseable {
       Properties props = FileStatus.getAsProperties();
       props.setProperty("database.file", databasePath.toString());
 
-      String dbConfig = "/com/cromoteca/bfts/mybatis.config.xml";
-
       // build mybatis sql session factory
-      try (InputStream stream = getClass().getResourceAsStream(dbConfig)) {
-        String env = inMemory ? "memory" : "file";
-        factory = new SqlSessionFactoryBuilder().build(stream, env, props);
-      }
+      factory = buildFactory(inMemory ? "memory" : "file", props);
 
       try (SqlSession session = factory.openSession()) {
         if (newConfig != null) {
@@ -226,16 +294,36 @@ public class LocalStorage implements Storage, AutoCloseable {
           }
         }
 
+        upgrade(session);
         session.commit();
 
-        int dbBackupInterval = config(session.getMapper(StorageMapper.class))
-            .getDatabaseBackupIntervalMinutes();
+        StorageConfiguration storageConfig
+            = config(session.getMapper(StorageMapper.class));
+
+        if (storageConfig.isPackedChunks()) {
+          packStore = new PackStore(getPacksDir());
+        }
+
+        int readers = storageConfig.getDatabaseReaders();
+
+        if (!inMemory && readers > 0) {
+          // keep connections open: a single writer and a pool of readers
+          props.setProperty("database.readers", Integer.toString(readers));
+          factory = buildFactory("writer", props);
+          readerFactory = buildFactory("reader", props);
+          log.info("Database opened in WAL mode with {} readers", readers);
+        }
+
+        int dbBackupInterval = storageConfig.getDatabaseBackupIntervalMinutes();
 
         if (dbBackupInterval > 0) {
           // schedule db backups
           sqlExecutor.scheduleAtFixedRate(this::backupDatabase,
               dbBackupInterval, dbBackupInterval, TimeUnit.MINUTES);
         }
+
+        // delete unreferenced chunks in background
+        sweeper.scheduleWithFixedDelay(this::sweep, 1, 1, TimeUnit.MINUTES);
       }
 
       if (inMemory && newConfig != null) {
@@ -249,6 +337,15 @@ public class LocalStorage implements Storage, AutoCloseable {
     this.inMemory = inMemory;
   }
 
+  private SqlSessionFactory buildFactory(String env, Properties props)
+      throws IOException {
+    String dbConfig = "/com/cromoteca/bfts/mybatis.config.xml";
+
+    try (InputStream stream = getClass().getResourceAsStream(dbConfig)) {
+      return new SqlSessionFactoryBuilder().build(stream, env, props);
+    }
+  }
+
   public boolean isInMemory() {
     return inMemory;
   }
@@ -285,15 +382,90 @@ public class LocalStorage implements Storage, AutoCloseable {
     im.createHashChunkIndex();
     im.createHashTrigger();
 
+    createReferenceCounting(im);
+
+    im.createPackedChunkTable();
+    im.createPackedChunkSegmentIndex();
+
     im.addServer(newConfig);
 
     im.createFileView();
     im.createFriendlyFileView();
     im.createFriendlySourceView();
 
+    im.setSchemaVersion(SCHEMA_VERSION);
+
     return im.getVersion();
   }
 
+  /**
+   * Creates the tables and triggers that keep track of chunk references. When
+   * a chunk is no longer referenced, it is added to the reclaim queue.
+   */
+  private void createReferenceCounting(InitMapper im) {
+    im.createHashRefTable();
+    im.createChunkRefTable();
+    im.createReclaimQueueTable();
+    im.createFileHashInsertTrigger();
+    im.createFileHashUpdateTrigger();
+    im.createFileHashDeleteTrigger();
+    im.createChunkRefInsertTrigger();
+    im.createChunkRefDeleteTrigger();
+  }
+
+  /**
+   * Brings the schema of an existing database to the current version.
+   */
+  private void upgrade(SqlSession session) {
+    InitMapper im = session.getMapper(InitMapper.class);
+    int version = im.getSchemaVersion();
+
+    if (version < 1) {
+      im.addPackedChunksColumn();
+      im.createPackedChunkTable();
+      im.createPackedChunkSegmentIndex();
+    }
+
+    if (version < 2) {
+      im.addDatabaseReadersColumn();
+    }
+
+    if (version < 3) {
+      im.createHashRefTable();
+      im.fillHashRefs();
+      im.createChunkRefTable();
+      im.fillChunkRefs();
+      im.createReclaimQueueTable();
+      im.fillReclaimQueue();
+      im.purgeOrphanHashes();
+      createReferenceCounting(im);
+    }
+
+    if (version < 4) {
+      im.addServerColumn("chunkMinSize");
+      im.addServerColumn("chunkAverageSize");
+      im.addServerColumn("chunkMaxSize");
+      im.addChunkStartColumn();
+    }
+
+    if (version < 5) {
+      // 0 means deflate at default level, as in older versions
+      im.addServerColumn("chunkCodec");
+      im.addServerColumn("compressionLevel");
+    }
+
+    if (version < 6) {
+      im.addTreeDigestColumn();
+      im.addTreeSizeColumn();
+    }
+
+    if (version < SCHEMA_VERSION) {
+      im.setSchemaVersion(SCHEMA_VERSION);
+      log.info("Database schema upgraded from version {} to {}", version,
+          SCHEMA_VERSION);
+    }
+  }
+
   /**
    * Creates a new db backup
    */
@@ -329,7 +501,19 @@ public class LocalStorage implements Storage, AutoCloseable {
   @Override
   public void close() {
     boolean interrupted = false;
+    sweeper.shutdown();
+
+    try {
+      // a running sweep needs the SQL executor to complete
+      sweeper.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException ex) {
+      log.warn(null, ex);
+      interrupted = true;
+    }
+
+    chunkExecutor.shutdown();
     sqlExecutor.shutdown();
+    log.debug("Chunk cache: {}", chunkCache);
 
     try {
       // wait for termination
@@ -341,6 +525,18 @@ public class LocalStorage implements Storage, AutoCloseable {
 
     // create last backup
     backupDatabase();
+
+    if (packStore != null) {
+      try {
+        packStore.close();
+      } catch (IOException ex) {
+        log.warn(null, ex);
+      }
+    }
+
+    // release pooled connections, so the database file is closed
+    closeConnections(readerFactory);
+    closeConnections(factory);
     activeStorages.remove(storagePath);
 
     if (interrupted) {
@@ -349,6 +545,17 @@ public class LocalStorage implements Storage, AutoCloseable {
     }
   }
 
+  private static void closeConnections(SqlSessionFactory sessionFactory) {
+    if (sessionFactory != null) {
+      DataSource dataSource
+          = sessionFactory.getConfiguration().getEnvironment().getDataSource();
+
+      if (dataSource instanceof PooledDataSource) {
+        ((PooledDataSource) dataSource).forceCloseAll();
+      }
+    }
+  }
+
   /**
    * Storage path
    */
@@ -358,7 +565,7 @@ public class LocalStorage implements Storage, AutoCloseable {
 
   @Override
   public StorageConfiguration getStorageConfiguration() {
-    return run(mapper -> {
+    return read(mapper -> {
       return config(mapper);
     });
   }
@@ -401,14 +608,14 @@ public class LocalStorage implements Storage, AutoCloseable {
 
   @Override
   public Source getSource(String clientName, String sourceName) {
-    return run(mapper -> {
+    return read(mapper -> {
       return mapper.getSource(clientName, sourceName);
     });
   }
 
   @Override
   public List<Source> selectSources(String clientName) {
-    return run(mapper -> {
+    return read(mapper -> {
       return mapper.getSources(clientName).stream()
           // sort according to the mean point between the oldest file in the
           // and the newest one. Oldest and newest do not refer to file creation
@@ -424,31 +631,89 @@ public class LocalStorage implements Storage, AutoCloseable {
 
   @Override
   public File getLastFile(int sourceId) {
-    return run(mapper -> {
+    return read(mapper -> {
       return mapper.getLastFile(sourceId);
     });
   }
 
   @Override
   public List<File> getFiles(int sourceId, long instant) {
-    return run(mapper -> {
+    return read(mapper -> {
       return mapper.getFiles(sourceId, instant);
     });
   }
 
   @Override
   public List<Chunk> getFileChunks(byte[] fileHash) {
-    return run(mapper -> {
+    return read(mapper -> {
       return mapper.getFileChunks(fileHash);
     });
   }
 
   @Override
   public int addFiles(int sourceId, long lastId, List<File> files) {
+    return addFilesWithDigests(sourceId, lastId, files,
+        Collections.emptyList());
+  }
+
+  @Override
+  public TreeDigest getTreeDigest(int sourceId, String parent, String name) {
+    return read(mapper -> {
+      return getTreeDigest(mapper, sourceId, parent, name);
+    });
+  }
+
+  @Override
+  public List<TreeDigest> getTreeDigests(int sourceId, int max) {
+    return read(mapper -> {
+      List<TreeDigest> trees = mapper.getTreeDigests(sourceId, max);
+
+      for (TreeDigest tree : trees) {
+        if (mapper.countCurrentFilesAfter(sourceId, tree.getId(),
+            tree.getSize()) != tree.getSize()) {
+          // see getTreeDigest(StorageMapper, int, String, String)
+          tree.setDigest(null);
+        }
+      }
+
+      return trees;
+    });
+  }
+
+  /**
+   * Returns the digest of a directory if the rows of the source that follow
+   * the directory are still the ones of its contents, i.e. they are all
+   * current. Rows of other sources can be found among them, since contents
+   * of large directories are added by several calls.
+   */
+  private static TreeDigest getTreeDigest(StorageMapper mapper, int sourceId,
+      String parent, String name) {
+    TreeDigest tree = mapper.getTreeDigest(sourceId, parent, name);
+
+    return tree == null || mapper.countCurrentFilesAfter(sourceId,
+        tree.getId(), tree.getSize()) != tree.getSize() ? null : tree;
+  }
+
+  @Override
+  public int addFilesWithDigests(int sourceId, long lastId, List<File> files,
+      List<TreeDigest> trees) {
     if (files.isEmpty()) {
       throw new IllegalArgumentException("Empty sources cannot be updated");
     }
 
+    List<TreeDigest> sortedTrees = trees.stream()
+        .sorted(Comparator.comparingInt(TreeDigest::getIndex))
+        .collect(Collectors.toList());
+
+    for (TreeDigest tree : sortedTrees) {
+      // a negative index refers to a directory added by a previous call
+      if (tree.getIndex() < 0 ? tree.isSkipped()
+          : tree.getIndex() >= files.size()
+          || files.get(tree.getIndex()).getLastModified() != null) {
+        throw new IllegalArgumentException("Digest of a non directory");
+      }
+    }
+
     File lastFile = getLastFile(sourceId);
 
     if (lastFile == null) {
@@ -469,9 +734,66 @@ public class LocalStorage implements Storage, AutoCloseable {
         lastAnalyze = instant;
       }
 
-      Util.ofSubLists(files, BATCH_SIZE).forEach(subList -> {
-        mapper.addFiles(sourceId, subList, instant);
-      });
+      // rows of skipped directories must be found before adding anything
+      Map<TreeDigest, TreeDigest> previousTrees = new HashMap<>();
+      // as well as directories added by previous calls, which are followed by
+      // -index - 1 rows
+      Map<TreeDigest, Long> previousDirectories = new HashMap<>();
+
+      for (TreeDigest tree : sortedTrees) {
+        if (tree.getIndex() < 0) {
+          Long id = mapper.getDirectoryId(sourceId, -tree.getIndex() - 1);
+
+          if (id != null) {
+            previousDirectories.put(tree, id);
+          }
+        } else if (tree.isSkipped()) {
+          File directory = files.get(tree.getIndex());
+          TreeDigest previous = getTreeDigest(mapper, sourceId,
+              directory.getParent(), directory.getName());
+
+          if (previous == null || previous.getSize() != tree.getSize()
+              || !Arrays.equals(previous.getDigest(), tree.getDigest())) {
+            // contents changed since the client asked for the digest
+            return 0;
+          }
+
+          previousTrees.put(tree, previous);
+        }
+      }
+
+      int from = 0;
+
+      for (Map.Entry<TreeDigest, Long> entry : previousDirectories.entrySet()) {
+        TreeDigest tree = entry.getKey();
+        mapper.setTreeDigest(entry.getValue(), tree.getDigest(),
+            tree.getSize());
+      }
+
+      for (TreeDigest tree : sortedTrees) {
+        if (tree.getIndex() < 0) {
+          continue;
+        }
+
+        int to = tree.getIndex() + 1;
+        Util.ofSubLists(files.subList(from, to), BATCH_SIZE)
+            .forEach(subList -> mapper.addFiles(sourceId, subList, instant));
+        from = to;
+        // the directory has just been added
+        long directoryId = mapper.getDirectoryId(sourceId, 0);
+        mapper.setTreeDigest(directoryId, tree.getDigest(), tree.getSize());
+
+        if (tree.isSkipped()) {
+          // unchanged contents are not added again, but their rows must
+          // follow the new directory row like those of scanned directories
+          long previousId = previousTrees.get(tree).getId();
+          mapper.moveTree(sourceId, previousId, tree.getSize(),
+              directoryId - previousId);
+        }
+      }
+
+      Util.ofSubLists(files.subList(from, files.size()), BATCH_SIZE)
+          .forEach(subList -> mapper.addFiles(sourceId, subList, instant));
 
       // mark identical records as obsolete
       int alreadyBackedUp = mapper.markObsoleteFiles(sourceId);
@@ -490,7 +812,7 @@ public class LocalStorage implements Storage, AutoCloseable {
   @Override
   public List<File> getNotHashedFiles(String clientName, int status,
       int maxNumberOfFilesToHash, int... sourceIds) {
-    return run(mapper -> {
+    return read(mapper -> {
       return mapper.getNotHashedFiles(clientName, status,
           maxNumberOfFilesToHash, sourceIds);
     });
@@ -498,76 +820,305 @@ public class LocalStorage implements Storage, AutoCloseable {
 
   @Override
   public void updateHashes(List<File> files) {
-    run(mapper -> {
-      for (File file : files) {
-        Hash hash = file.getHash();
+    List<File> hashed = files.stream().filter(file -> file.getHash() != null)
+        .collect(Collectors.toList());
+
+    runBatch(mapper -> {
+      // a file can have been hashed using a different chunking mode: chunks
+      // already stored for the same hash must not be mixed with new ones.
+      // They are looked up in the same transaction, since the removal of the
+      // last file using a hash also deletes its chunks
+      Set<ByteBuffer> added = new HashSet<>();
+      List<byte[]> mains = hashed.stream().map(file -> file.getHash().getMain())
+          .collect(Collectors.toList());
+
+      Util.ofSubLists(mains, LOOKUP_SIZE).forEach(subList -> {
+        mapper.getChunkedHashes(subList).stream().map(ByteBuffer::wrap)
+            .forEach(added::add);
+      });
+
+      // group statements by type, so each one is prepared once per batch
+      hashed.forEach(mapper::updateFileHash);
 
-        if (hash != null) {
-          mapper.updateFileHash(file);
+      for (File file : hashed) {
+        Hash hash = file.getHash();
 
+        if (added.add(ByteBuffer.wrap(hash.getMain()))) {
           for (int i = 0; i < hash.getLength(); i++) {
             Chunk chunk = hash.getChunks().get(i);
-            mapper.addChunk(hash.getMain(), i, chunk.getLength(), chunk.getHash());
+            mapper.addChunk(hash.getMain(), i, chunk.getLength(),
+                chunk.getHash(), chunk.getOffset());
           }
         }
       }
-      return null;
     });
   }
 
   @Override
   public List<Chunk> getNotUploadedChunks(String clientName, int status,
       int maxNumberOfChunksToStore, int... sourceIds) {
-    return run(mapper -> {
+    return read(mapper -> {
       return mapper.getNotUploadedChunks(clientName, status,
           maxNumberOfChunksToStore, sourceIds);
     });
   }
 
+  @Override
+  public List<byte[]> getNotUploadedChunkHashes(List<byte[]> hashes) {
+    return read(mapper -> {
+      List<byte[]> result = new ArrayList<>();
+
+      Util.ofSubLists(hashes, LOOKUP_SIZE).forEach(subList -> {
+        result.addAll(mapper.getNotUploadedChunkHashes(subList));
+      });
+
+      return result;
+    });
+  }
+
   @Override
   public int storeChunks(List<byte[]> hashes, IOSupplier<byte[]> dataSupplier) {
-    Set<byte[]> uploaded = new HashSet<>();
+    if (packStore != null) {
+      return storePackedChunks(hashes, dataSupplier);
+    }
+
+    // chunks are received on this thread and written to disk by another one,
+    // so that the client does not wait for the disk
+    BlockingQueue<IngestedChunk> queue
+        = new ArrayBlockingQueue<>(INGEST_QUEUE_SIZE);
+    Future<List<IngestedChunk>> writer
+        = chunkExecutor.submit(() -> writeChunks(queue));
+    IOException receiveError = null;
 
     try {
       for (byte[] hash : hashes) {
-        FilePath chunkFile = getChunkPath(hash);
-        FilePath temp = getTempFile(chunkFile.getFileName());
+        byte[] data = dataSupplier.get();
 
-        try {
-          byte[] data = dataSupplier.get();
+        if (data != null && data.length > 0
+            && !enqueue(queue, writer, new IngestedChunk(hash, data))) {
+          break;
+        }
+      }
+    } catch (IOException ex) {
+      receiveError = ex;
+    } finally {
+      enqueue(queue, writer, IngestedChunk.END);
+    }
+
+    List<IngestedChunk> written;
+
+    try {
+      written = writer.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new StorageException(ex);
+    } catch (ExecutionException ex) {
+      throw new StorageException(ex.getCause());
+    } catch (CancellationException ex) {
+      throw new StorageException(ex);
+    }
+
+    Set<byte[]> uploaded = new HashSet<>();
+
+    try {
+      if (receiveError != null) {
+        throw receiveError;
+      }
 
-          if (data != null && data.length > 0) {
-            // we can't verify that the passed data is correct, as it could be
-            // encrypted
-            temp.getParent().createDirectories();
-            temp.write(data);
+      Set<FilePath> directories = new HashSet<>();
+
+      // all renames happen after the data has been flushed to disk
+      for (IngestedChunk chunk : written) {
+        if (chunk.temp != null) {
+          FilePath chunkFile = getChunkPath(chunk.hash);
+
+          if (directories.add(chunkFile.getParent())) {
             chunkFile.getParent().createDirectories();
-            temp.move(chunkFile, StandardCopyOption.REPLACE_EXISTING);
+          }
+
+          // another upload could store the same chunk at the same time: the
+          // move replaces the chunk file atomically, so both uploads leave a
+          // complete file
+          chunk.temp.move(chunkFile, StandardCopyOption.REPLACE_EXISTING);
+          chunk.temp = null;
+          chunkCache.remove(chunk.hash);
+        }
+
+        uploaded.add(chunk.hash);
+      }
+    } catch (IOException ex) {
+      throw new StorageException(ex);
+    } finally {
+      for (IngestedChunk chunk : written) {
+        deleteTempFile(chunk.temp);
+      }
+    }
+
+    runBatch(mapper -> {
+      long time = System.currentTimeMillis();
+
+      for (byte[] hash : uploaded) {
+        mapper.markUploadedChunk(hash, time);
+      }
+    });
+
+    return uploaded.size();
+  }
+
+  /**
+   * Puts a received chunk in the ingest queue, unless the writer has stopped.
+   *
+   * @return false if the writer has stopped because of an error
+   */
+  private static boolean enqueue(BlockingQueue<IngestedChunk> queue,
+      Future<?> writer, IngestedChunk chunk) {
+    try {
+      while (!queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+        if (writer.isDone()) {
+          return false;
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      writer.cancel(true);
+      return false;
+    }
 
-            if (chunkFile.size() == data.length) {
-              uploaded.add(hash);
-            } else {
-              chunkFile.delete();
+    return true;
+  }
+
+  /**
+   * Writes queued chunks to temporary files until the end marker is received.
+   * Chunks that are already on disk are not written again.
+   *
+   * @return the received chunks, with the temporary files to be moved to
+   *         their final location
+   */
+  private List<IngestedChunk> writeChunks(BlockingQueue<IngestedChunk> queue)
+      throws IOException, InterruptedException {
+    List<IngestedChunk> written = new ArrayList<>();
+    Set<FilePath> directories = new HashSet<>();
+
+    try {
+      for (IngestedChunk chunk = queue.take(); chunk != IngestedChunk.END;
+          chunk = queue.take()) {
+        // we can't verify that the passed data is correct, as it could be
+        // encrypted, but a file with a different size must be replaced
+        FilePath chunkFile = getChunkPath(chunk.hash);
+
+        if (getFileSize(chunkFile) != chunk.data.length) {
+          chunk.temp = getTempFile(chunkFile.getFileName());
+
+          if (directories.add(chunk.temp.getParent())) {
+            chunk.temp.getParent().createDirectories();
+          }
+
+          try (FileChannel channel = FileChannel.open(chunk.temp.toFile()
+              .toPath(), StandardOpenOption.CREATE_NEW,
+              StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(chunk.data);
+
+            while (buffer.hasRemaining()) {
+              channel.write(buffer);
             }
+
+            channel.force(false);
           }
-        } finally {
-          if (temp.exists()) {
-            temp.delete();
+        }
+
+        chunk.data = null;
+        written.add(chunk);
+      }
+    } catch (IOException | InterruptedException | RuntimeException ex) {
+      for (IngestedChunk chunk : written) {
+        deleteTempFile(chunk.temp);
+      }
+
+      // leave no temporary file behind and let the receiver go on
+      queue.clear();
+      throw ex;
+    }
+
+    return written;
+  }
+
+  private static long getFileSize(FilePath path) throws IOException {
+    try {
+      return path.size();
+    } catch (NoSuchFileException ex) {
+      return -1;
+    }
+  }
+
+  private static void deleteTempFile(FilePath temp) {
+    if (temp != null) {
+      try {
+        if (temp.exists()) {
+          temp.delete();
+        }
+      } catch (IOException ex) {
+        log.warn(null, ex);
+      }
+    }
+  }
+
+  /**
+   * A chunk going through the ingest pipeline.
+   */
+  private static class IngestedChunk {
+    static final IngestedChunk END = new IngestedChunk(null, null);
+
+    final byte[] hash;
+    byte[] data;
+    FilePath temp;
+
+    IngestedChunk(byte[] hash, byte[] data) {
+      this.hash = hash;
+      this.data = data;
+    }
+  }
+
+  /**
+   * Appends chunks to the pack store. Chunks are flushed to disk before being
+   * marked as uploaded. Chunks that are already packed are not appended again.
+   */
+  private int storePackedChunks(List<byte[]> hashes,
+      IOSupplier<byte[]> dataSupplier) {
+    Map<ByteBuffer, PackedChunk> existing = getPackedChunks(hashes);
+    List<PackedChunk> packed = new ArrayList<>();
+    Set<byte[]> uploaded = new HashSet<>();
+
+    try {
+      for (int i = 0; i < hashes.size(); i++) {
+        byte[] hash = hashes.get(i);
+        byte[] data = dataSupplier.get();
+
+        if (data != null && data.length > 0) {
+          PackedChunk chunk = existing.get(ByteBuffer.wrap(hash));
+
+          if (chunk == null || chunk.getLength() != data.length) {
+            packed.add(packStore.append(hash, data));
+            chunkCache.remove(hash);
           }
+
+          uploaded.add(hash);
         }
       }
+
+      if (!packed.isEmpty()) {
+        packStore.sync();
+      }
     } catch (IOException ex) {
       throw new StorageException(ex);
     }
 
-    run(mapper -> {
+    runBatch(mapper -> {
       long time = System.currentTimeMillis();
+      packed.forEach(mapper::addPackedChunk);
 
       for (byte[] hash : uploaded) {
         mapper.markUploadedChunk(hash, time);
       }
-
-      return null;
     });
 
     return uploaded.size();
@@ -576,33 +1127,81 @@ public class LocalStorage implements Storage, AutoCloseable {
   @Override
   public IOSupplier<byte[]> getChunkSupplier(List<Pair<Long, byte[]>> hashes,
       int timeout) {
-    Iterator<Pair<Long, byte[]>> iterator = hashes.iterator();
+    // look up all pack locations at once instead of one query per chunk
+    Map<ByteBuffer, PackedChunk> locations = packStore == null ? null
+        : getPackedChunks(hashes.stream().map(Pair::getSecond)
+            .collect(Collectors.toList()));
+    Container<Integer> index = new Container<>(0);
+    Container<Future<byte[]>> prefetched = new Container<>();
     Container<Long> last = new Container<>();
     TaskDuration duration = new TaskDuration(timeout * 1000L);
 
-    return () -> {
-      byte[] data = null;
+    return new IOSupplier<byte[]>() {
+      @Override
+      public byte[] get() throws IOException {
+        byte[] data = null;
+        int i = index.getValue();
+        Future<byte[]> next = prefetched.getValue();
+        prefetched.setValue(null);
+
+        if (i < hashes.size()) {
+          Pair<Long, byte[]> hash = hashes.get(i);
+          index.setValue(i + 1);
+
+          // hash.getFirst() is the file id: we'll stop sending data after the
+          // timeout has expired, but without interrupting the current file
+          if (hash.getFirst().equals(last.getValue()) || !duration.timedOut()) {
+            data = next == null ? readCachedChunk(hash.getSecond(), locations)
+                : getPrefetchedChunk(next);
+            last.setValue(hash.getFirst());
+
+            // the next chunk is read while this one is being sent
+            if (i + 1 < hashes.size()) {
+              byte[] nextHash = hashes.get(i + 1).getSecond();
+              prefetched.setValue(chunkExecutor.submit(()
+                  -> readCachedChunk(nextHash, locations)));
+            }
+          } else if (next != null) {
+            next.cancel(false);
+          }
+        }
 
-      if (iterator.hasNext()) {
-        Pair<Long, byte[]> hash = iterator.next();
+        return data;
+      }
 
-        // hash.getFirst() is the file id: we'll stop sending data after the
-        // timeout has expired, but without interrupting the current file
-        if (hash.getFirst().equals(last.getValue()) || !duration.timedOut()) {
-          FilePath chunkFile = getChunkPath(hash.getSecond());
-          data = chunkFile.readAllBytes();
-          last.setValue(hash.getFirst());
+      @Override
+      public void end() {
+        // the caller stopped reading, so the next chunk is not needed
+        Future<byte[]> next = prefetched.getValue();
+        prefetched.setValue(null);
+
+        if (next != null) {
+          next.cancel(false);
         }
       }
-
-      return data;
     };
   }
 
+  private static byte[] getPrefetchedChunk(Future<byte[]> future)
+      throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException(ex);
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof IOException) {
+        throw (IOException) ex.getCause();
+      }
+
+      throw new StorageException(ex.getCause());
+    }
+  }
+
   @Override
   public List<File> getFilesDeletedFromOtherClients(int sourceId,
       boolean allTime) {
-    return run(mapper -> {
+    return read(mapper -> {
       return mapper.getFilesDeletedFromOtherClients(sourceId,
           allTime ? 0L : System.currentTimeMillis());
     });
@@ -610,18 +1209,16 @@ public class LocalStorage implements Storage, AutoCloseable {
 
   @Override
   public void markFilesDeletedFromSync(List<Pair<Long, Long>> deletions) {
-    run(mapper -> {
+    runBatch(mapper -> {
       for (Pair<Long, Long> deletion : deletions) {
         mapper.markFileDeletedFromSync(deletion.getFirst(), deletion.getSecond());
       }
-
-      return null;
     });
   }
 
   @Override
   public List<File> getNewFilesFromOtherClients(int sourceId, boolean allTime) {
-    return run(mapper -> {
+    return read(mapper -> {
       return mapper.getNewFilesFromOtherClients(sourceId,
           allTime ? 0L : System.currentTimeMillis(), SYNC_FILES_BATCH_SIZE);
     });
@@ -641,7 +1238,7 @@ public class LocalStorage implements Storage, AutoCloseable {
 
   @Override
   public Stats getSourceStats(int sourceId) {
-    return run(mapper -> {
+    return read(mapper -> {
       Stats stats = new Stats();
       stats.setFiles(mapper.countCurrentFilesBySource(sourceId));
       stats.setFilesWithoutHash(mapper.countNotHashedFilesBySource(sourceId));
@@ -653,7 +1250,7 @@ public class LocalStorage implements Storage, AutoCloseable {
 
   @Override
   public Stats getClientStats(String clientName) {
-    return run(mapper -> {
+    return read(mapper -> {
       Stats stats = new Stats();
       stats.setFiles(mapper.countCurrentFilesByClient(clientName));
       stats.setFilesWithoutHash(mapper.countNotHashedFilesByClient(clientName));
@@ -665,7 +1262,7 @@ public class LocalStorage implements Storage, AutoCloseable {
 
   @Override
   public Map<String, Long> getClientsLastUpdated() {
-    return run(mapper -> {
+    return read(mapper -> {
       return mapper.getClientsLastUpdated().stream()
           .collect(Collectors.toMap(m -> (String) m.get("client"),
                    m -> ((Number) m.get("lastUpdated")).longValue()));
@@ -674,7 +1271,7 @@ public class LocalStorage implements Storage, AutoCloseable {
 
   @Override
   public SortedMap<String, Stats> getDetailedClientStats(String clientName) {
-    List<Source> sources = run(mapper -> {
+    List<Source> sources = read(mapper -> {
       return mapper.getSources(clientName);
     });
     return sources.stream()
@@ -683,6 +1280,76 @@ public class LocalStorage implements Storage, AutoCloseable {
             TreeMap::new));
   }
 
+  /**
+   * Reads a chunk from the cache, or from disk if it is not cached.
+   */
+  private byte[] readCachedChunk(byte[] hash,
+      Map<ByteBuffer, PackedChunk> locations) throws IOException {
+    ChunkCache cache = chunkCache;
+    byte[] data = cache.get(hash);
+
+    if (data == null) {
+      data = readChunk(hash, locations);
+      cache.put(hash, data);
+    }
+
+    return data;
+  }
+
+  /**
+   * Reads a chunk from the pack store, or from its own file if it has not been
+   * packed.
+   */
+  private byte[] readChunk(byte[] hash, Map<ByteBuffer, PackedChunk> locations)
+      throws IOException {
+    PackedChunk packed = locations == null ? null
+        : locations.get(ByteBuffer.wrap(hash));
+
+    if (packed == null) {
+      return getChunkPath(hash).readAllBytes();
+    }
+
+    try {
+      return packStore.read(packed);
+    } catch (NoSuchFileException ex) {
+      // the segment has been compacted after the lookup
+      packed = getPackedChunks(Collections.singletonList(hash))
+          .get(ByteBuffer.wrap(hash));
+
+      if (packed == null) {
+        throw ex;
+      }
+
+      return packStore.read(packed);
+    }
+  }
+
+  private Map<ByteBuffer, PackedChunk> getPackedChunks(List<byte[]> hashes) {
+    return read(mapper -> {
+      Map<ByteBuffer, PackedChunk> map = new HashMap<>();
+
+      Util.ofSubLists(hashes, LOOKUP_SIZE).forEach(subList -> {
+        for (PackedChunk chunk : mapper.getPackedChunks(subList)) {
+          map.put(ByteBuffer.wrap(chunk.getChunk()), chunk);
+        }
+      });
+
+      return map;
+    });
+  }
+
+  /**
+   * Sets the maximum size of the cache of recently read chunks. Use 0 to
+   * disable the cache.
+   */
+  public void setChunkCacheSize(long size) {
+    chunkCache = new ChunkCache(size, CHUNK_CACHE_CANDIDATES);
+  }
+
+  ChunkCache getChunkCache() {
+    return chunkCache;
+  }
+
   public FilePath getChunksDir() {
     return storagePath.resolve("chunks");
   }
@@ -692,9 +1359,108 @@ public class LocalStorage implements Storage, AutoCloseable {
     return getChunksDir().resolve(fileName.substring(0, 2)).resolve(fileName);
   }
 
+  public FilePath getPacksDir() {
+    return storagePath.resolve("packs");
+  }
+
+  /**
+   * Switches the storage to the pack segment layout, moving existing chunk
+   * files into segments. Can be run again to resume an interrupted migration.
+   *
+   * @return the number of chunk files that have been packed
+   */
+  public int packChunkFiles() {
+    if (packStore == null) {
+      run(mapper -> {
+        mapper.setPackedChunks(true);
+        config.clear(); // configuration has changed
+        return null;
+      });
+
+      try {
+        packStore = new PackStore(getPacksDir());
+      } catch (IOException ex) {
+        throw new StorageException(ex);
+      }
+    }
+
+    FilePath chunksDir = getChunksDir();
+    int total = 0;
+
+    if (chunksDir.isDirectory()) {
+      try {
+        List<FilePath> dirs;
+
+        try (Stream<FilePath> list = chunksDir.list()) {
+          dirs = list.filter(FilePath::isDirectory).sorted()
+              .collect(Collectors.toList());
+        }
+
+        for (FilePath dir : dirs) {
+          total += packChunkFiles(dir);
+        }
+      } catch (IOException ex) {
+        throw new StorageException(ex);
+      }
+    }
+
+    log.info("{} chunk files moved to pack segments", total);
+    return total;
+  }
+
+  /**
+   * Packs the chunk files contained in a single prefix directory.
+   */
+  private int packChunkFiles(FilePath dir) throws IOException {
+    List<FilePath> files;
+
+    try (Stream<FilePath> list = dir.list()) {
+      files = list.collect(Collectors.toList());
+    }
+
+    List<PackedChunk> packed = new ArrayList<>();
+    List<FilePath> moved = new ArrayList<>();
+
+    for (FilePath file : files) {
+      String name = file.getFileName();
+
+      // longer hashes have been truncated in file names and can't be packed
+      if (name.length() < 128) {
+        try {
+          byte[] hash = Hex.parseHexBinary(name);
+          packed.add(packStore.append(hash, file.readAllBytes()));
+          moved.add(file);
+        } catch (IllegalArgumentException ex) {
+          log.warn("Unexpected file {} in chunk directory", file);
+        }
+      }
+    }
+
+    packStore.sync();
+
+    runBatch(mapper -> {
+      packed.forEach(mapper::addPackedChunk);
+    });
+
+    // files are deleted only after their new location has been committed
+    for (FilePath file : moved) {
+      file.delete();
+    }
+
+    try (Stream<FilePath> list = dir.list()) {
+      if (!list.findAny().isPresent()) {
+        dir.delete();
+      }
+    }
+
+    return moved.size();
+  }
+
   private FilePath getTempFile(String baseName) {
+    // the counter makes names unique when several uploads run concurrently
     return storagePath.resolve("temp").resolve(baseName
-        + System.currentTimeMillis() + File.BFTS_SUFFIX);
+        + System.currentTimeMillis() + '-' + tempFileCounter.incrementAndGet()
+        + File.BFTS_SUFFIX);
   }
 
   public void addKeyPair(byte[][] keyPair) {
@@ -705,8 +1471,67 @@ public class LocalStorage implements Storage, AutoCloseable {
     });
   }
 
+  /**
+   * Selects how clients split files into chunks. Only files hashed afterwards
+   * are affected.
+   *
+   * @param min     minimum chunk size
+   * @param average average chunk size, or 0 to use fixed size chunks
+   * @param max     maximum chunk size
+   */
+  public void setChunking(int min, int average, int max) {
+    if (average != 0) {
+      // throws an exception if sizes are not valid
+      new FastCdcChunker(min, average, max);
+    }
+
+    run(mapper -> {
+      mapper.setChunking(min, average, max);
+      config.clear(); // configuration has changed
+      return null;
+    });
+  }
+
+  /**
+   * Selects the codec used by clients to compress chunks. Chunks already
+   * stored are not affected.
+   *
+   * @param codec codec name, as returned by {@link ChunkCodec#getName()}
+   * @param level compression level, or 0 for the default level
+   */
+  public void setCompression(String codec, int level) {
+    ChunkCodec chunkCodec = ChunkCodecs.forName(codec);
+
+    if (chunkCodec == null) {
+      throw new IllegalArgumentException("Unknown codec " + codec);
+    }
+
+    if (level != 0 && chunkCodec.getId() == DeflateCodec.ID) {
+      // throws an exception if the level is not valid
+      new DeflateCodec(level);
+    }
+
+    run(mapper -> {
+      mapper.setCompression(chunkCodec.getId(), level);
+      config.clear(); // configuration has changed
+      return null;
+    });
+  }
+
+  /**
+   * Sets the number of read-only database connections. The new value is used
+   * the next time the storage is opened.
+   */
+  public void setDatabaseReaders(int databaseReaders) {
+    run(mapper -> {
+      mapper.setDatabaseReaders(databaseReaders);
+      config.clear(); // configuration has changed
+      return null;
+    });
+  }
+
   public byte[] getEncodedPrivateKey() {
-    return run(mapper -> {
+    return read(mapper -> {
       Container<byte[]> container = mapper.getPrivateKey();
       return container == null ? null : container.getValue();
     });
@@ -714,8 +1539,11 @@ public class LocalStorage implements Storage, AutoCloseable {
 
   @Override
   public List<Chunk> getUploadedChunks(byte firstByte) {
-    return run(mapper -> {
-      return mapper.getUploadedChunks(new byte[] { firstByte });
+    byte[] nextByte = firstByte == (byte) 0xff ? null
+        : new byte[] { (byte) (firstByte + 1) };
+
+    return read(mapper -> {
+      return mapper.getUploadedChunks(new byte[] { firstByte }, nextByte);
     });
   }
 
@@ -729,14 +1557,12 @@ public class LocalStorage implements Storage, AutoCloseable {
 
   @Override
   public void deleteFilesInRealtime(List<DeletedFileInfo> files) {
-    run(mapper -> {
+    runBatch(mapper -> {
       long instant = System.currentTimeMillis();
 
       for (DeletedFileInfo file : files) {
         mapper.deleteFileInRealtime(file, instant);
       }
-
-      return null;
     });
   }
 
@@ -755,55 +1581,205 @@ public class LocalStorage implements Storage, AutoCloseable {
 
   @Override
   public Pair<Integer, Long> deleteUnusedChunkFiles() {
-    return run(mapper -> {
-      // delete useless chunks from database
-      mapper.purgeChunks();
-
-      // from now on, delete useless chunks from disk
-      FilePath chunksPath = getChunksDir();
-      Counter reclaimedSpace = new Counter();
-      int total = 0;
-
-      for (int i = 0; i < 256; i++) {
-        byte bi = (byte) i;
-        List<Chunk> chunks = mapper.getUploadedChunks(new byte[] { bi });
-        Set<FilePath> expectedChunks = chunks.stream()
-            .map(c -> getChunkPath(c.getHash()))
-            .collect(Collectors.toSet());
-
-        String prefix = Hex.byteToString(bi);
-        FilePath dir = chunksPath.resolve(prefix);
-
-        if (dir.isDirectory()) {
-          long count;
-
-          try {
-            count = dir.list()
-                .filter(not(expectedChunks::contains))
-                .peek(fp -> {
-                  try {
-                    reclaimedSpace.add(fp.size());
-                    fp.delete();
-                  } catch (IOException ex) {
-                    throw new StorageException(ex);
-                  }
-                })
-                .count();
-            total += (int) count;
-          } catch (IOException ex) {
-            throw new StorageException(ex);
-          }
+    // chunks no longer referenced have already been queued by triggers
+    Pair<Integer, Long> reclaimed = reclaimChunks();
+    int total = reclaimed.getFirst();
+    Counter reclaimedSpace = new Counter(reclaimed.getSecond());
+
+    if (packStore != null) {
+      List<Integer> compactedSegments = new ArrayList<>();
+
+      total += run(mapper -> {
+        int purged = mapper.purgePackedChunks();
+        reclaimedSpace.add(compactSegments(mapper, compactedSegments));
+        return purged;
+      });
+
+      // segments are deleted only after the new chunk locations are committed;
+      // a segment left on disk has no live chunks, so the next compaction
+      // will try again
+      for (int segment : compactedSegments) {
+        try {
+          packStore.delete(segment);
+        } catch (IOException ex) {
+          log.warn("Pack segment {} not deleted: {}", segment, ex.toString());
+        }
+      }
+    }
+
+    // look for files not known to the database, one prefix at a time
+    for (int i = 0; i < 256; i++) {
+      total += deleteOrphanChunkFiles((byte) i, reclaimedSpace);
+    }
+
+    log.info("{} chunks deleted for a total of {} bytes", total,
+        reclaimedSpace);
+    return new Pair<>(total, reclaimedSpace.get());
+  }
+
+  /**
+   * Deletes chunk files with a given prefix that are not marked as uploaded,
+   * like the ones left by interrupted uploads.
+   */
+  private int deleteOrphanChunkFiles(byte prefix, Counter reclaimedSpace) {
+    String prefixString = Hex.byteToString(prefix);
+    FilePath dir = getChunksDir().resolve(prefixString);
+
+    if (!dir.isDirectory()) {
+      return 0;
+    }
+
+    Set<FilePath> expectedChunks = getUploadedChunks(prefix).stream()
+        .map(c -> getChunkPath(c.getHash()))
+        .collect(Collectors.toSet());
+    // recent files could belong to an upload that is still running
+    long maxLastModified = System.currentTimeMillis() - ORPHAN_MIN_AGE;
+    long count;
+
+    try (Stream<FilePath> list = dir.list()) {
+      count = list.filter(not(expectedChunks::contains))
+          .filter(fp -> {
+            try {
+              return fp.getLastModifiedTime().toMillis() < maxLastModified;
+            } catch (IOException ex) {
+              throw new StorageException(ex);
+            }
+          })
+          .peek(fp -> {
+            try {
+              reclaimedSpace.add(fp.size());
+              fp.delete();
+            } catch (IOException ex) {
+              throw new StorageException(ex);
+            }
+          })
+          .count();
+    } catch (IOException ex) {
+      throw new StorageException(ex);
+    }
+
+    if (count > 0) {
+      log.debug("{} chunks deleted with prefix {}", count, prefixString);
+    }
+
+    return (int) count;
+  }
+
+  /**
+   * Deletes the chunks in the reclaim queue, in small batches so that other
+   * queries are not blocked for long.
+   *
+   * @return the number of deleted chunks and the reclaimed space (not
+   *         including packed chunks, whose space is reclaimed by compaction)
+   */
+  public Pair<Integer, Long> reclaimChunks() {
+    int total = 0;
+    long space = 0;
+    Pair<Integer, Long> batch;
+
+    do {
+      batch = run(this::reclaimChunkBatch);
+      total += batch.getFirst();
+      space += batch.getSecond();
+    } while (batch.getFirst() == RECLAIM_BATCH_SIZE);
+
+    if (total > 0) {
+      log.debug("{} unreferenced chunks deleted", total);
+    }
+
+    return new Pair<>(total, space);
+  }
+
+  private Pair<Integer, Long> reclaimChunkBatch(StorageMapper mapper) {
+    List<byte[]> chunks = mapper.getReclaimableChunks(RECLAIM_BATCH_SIZE);
+
+    if (chunks.isEmpty()) {
+      return new Pair<>(0, 0L);
+    }
+
+    long space = chunks.parallelStream().mapToLong(hash -> {
+      FilePath chunkFile = getChunkPath(hash);
+      chunkCache.remove(hash);
+
+      try {
+        if (chunkFile.exists()) {
+          long size = chunkFile.size();
+          chunkFile.delete();
+          return size;
+        }
+      } catch (IOException ex) {
+        throw new StorageException(ex);
+      }
+
+      return 0;
+    }).sum();
+
+    if (packStore != null) {
+      mapper.deletePackedChunks(chunks);
+    }
+
+    mapper.deleteReclaimedChunks(chunks);
+    return new Pair<>(chunks.size(), space);
+  }
+
+  /**
+   * Runs periodically to delete unreferenced chunks.
+   */
+  private void sweep() {
+    try {
+      reclaimChunks();
+    } catch (Exception ex) {
+      log.warn(null, ex);
+    }
+  }
+
+  /**
+   * Moves live chunks out of pack segments which are mostly made of deleted
+   * chunks. Must be called from the SQL thread.
+   *
+   * @param compacted filled with the segments that can be deleted once the
+   *                  transaction is committed
+   * @return the number of bytes that will be reclaimed
+   */
+  private long compactSegments(StorageMapper mapper, List<Integer> compacted) {
+    Map<Integer, Long> liveSizes = new HashMap<>();
+
+    for (Map<String, Object> row : mapper.getPackedSegmentSizes()) {
+      liveSizes.put(((Number) row.get("segment")).intValue(),
+          ((Number) row.get("size")).longValue());
+    }
+
+    long reclaimed = 0;
+
+    try {
+      int active = packStore.getActiveSegment();
+
+      for (int segment : packStore.getSegments()) {
+        if (segment == active) {
+          continue;
+        }
+
+        long size = packStore.size(segment);
+        long live = liveSizes.getOrDefault(segment, 0L);
 
-          if (count > 0) {
-            log.debug("{} chunks deleted with prefix {}", count, prefix);
+        if (live < size / 2) {
+          for (PackedChunk chunk : mapper.getPackedChunksInSegment(segment)) {
+            byte[] data = packStore.read(chunk);
+            mapper.addPackedChunk(packStore.append(chunk.getChunk(), data));
           }
+
+          compacted.add(segment);
+          reclaimed += size - live;
+          log.debug("Pack segment {} compacted", segment);
         }
       }
 
-      log.info("{} chunks deleted for a total of {} bytes", total,
-          reclaimedSpace);
-      return new Pair<>(total, reclaimedSpace.get());
-    });
+      packStore.sync();
+    } catch (IOException ex) {
+      throw new StorageException(ex);
+    }
+
+    return reclaimed;
   }
 
   /**
@@ -815,23 +1791,112 @@ public class LocalStorage implements Storage, AutoCloseable {
    */
   private <T> T run(Function<StorageMapper, T> task) {
     return runSQL(session -> {
-      StorageMapper mapper = session.getMapper(StorageMapper.class);
+      return task.apply(getMapper(session));
+    });
+  }
+
+  /**
+   * Executes write statements whose results are not needed, using prepared
+   * statement batches. Writes queued by concurrent callers are committed
+   * together in a single transaction.
+   *
+   * @param task a function that uses a StorageMapper object to execute its
+   *             methods
+   */
+  private void runBatch(Consumer<StorageMapper> task) {
+    PendingWrite write = new PendingWrite(task);
+    pendingWrites.add(write);
+    sqlExecutor.execute(this::commitPendingWrites);
+
+    try {
+      write.result.get();
+    } catch (ExecutionException ex) {
+      throw new StorageException(ex);
+    } catch (InterruptedException ex) {
+      log.warn(null, ex);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Commits all queued writes. Must be called from the SQL thread.
+   */
+  private void commitPendingWrites() {
+    List<PendingWrite> group = new ArrayList<>();
+
+    for (PendingWrite write; (write = pendingWrites.poll()) != null;) {
+      group.add(write);
+    }
 
-      if (log.isDebugEnabled()) {
-        mapper = Util.measure(mapper, (name, duration) -> {
-          if (duration.getMilliseconds() > 500) {
-            // log slow queries
-            log.debug("Method {} executed in {} seconds", name, duration);
+    // empty if writes have been committed by a previous call
+    if (!group.isEmpty()) {
+      try {
+        commitWrites(group);
+        group.forEach(write -> write.result.complete(null));
+      } catch (RuntimeException ex) {
+        if (group.size() == 1) {
+          group.get(0).result.completeExceptionally(ex);
+        } else {
+          // retry one by one, so that a failure doesn't affect other writers
+          for (PendingWrite write : group) {
+            try {
+              commitWrites(Collections.singletonList(write));
+              write.result.complete(null);
+            } catch (RuntimeException ex2) {
+              write.result.completeExceptionally(ex2);
+            }
           }
-        });
+        }
       }
+    }
+  }
 
-      if (log.isTraceEnabled()) {
-        mapper = Util.traceMethodCalls(mapper, log);
-      }
+  private void commitWrites(List<PendingWrite> writes) {
+    try (SqlSession session = factory.openSession(ExecutorType.BATCH)) {
+      StorageMapper mapper = getMapper(session);
+      writes.forEach(write -> write.task.accept(mapper));
+      session.commit();
+    }
+  }
 
-      return task.apply(mapper);
-    });
+  /**
+   * Executes read-only queries. If the storage has a pool of readers, they are
+   * executed in the calling thread, in parallel with other queries; otherwise
+   * they are queued like all other queries.
+   *
+   * @param <T>  return type
+   * @param task a function that uses a StorageMapper object to execute its
+   *             methods, without modifying data
+   */
+  private <T> T read(Function<StorageMapper, T> task) {
+    if (readerFactory == null) {
+      return run(task);
+    }
+
+    try (SqlSession session = readerFactory.openSession()) {
+      return task.apply(getMapper(session));
+    } catch (PersistenceException ex) {
+      throw new StorageException(ex);
+    }
+  }
+
+  private StorageMapper getMapper(SqlSession session) {
+    StorageMapper mapper = session.getMapper(StorageMapper.class);
+
+    if (log.isDebugEnabled()) {
+      mapper = Util.measure(mapper, (name, duration) -> {
+        if (duration.getMilliseconds() > 500) {
+          // log slow queries
+          log.debug("Method {} executed in {} seconds", name, duration);
+        }
+      });
+    }
+
+    if (log.isTraceEnabled()) {
+      mapper = Util.traceMethodCalls(mapper, log);
+    }
+
+    return mapper;
   }
 
   /**
@@ -864,6 +1929,15 @@ public class LocalStorage implements Storage, AutoCloseable {
     }
   }
 
+  private static class PendingWrite {
+    final Consumer<StorageMapper> task;
+    final CompletableFuture<Void> result = new CompletableFuture<>();
+
+    PendingWrite(Consumer<StorageMapper> task) {
+      this.task = task;
+    }
+  }
+
   /**
    * Functional interface that throws <code>SQLException</code>s.
    */
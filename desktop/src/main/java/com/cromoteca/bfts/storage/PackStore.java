@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.storage;
+
+import com.cromoteca.bfts.model.PackedChunk;
+import com.cromoteca.bfts.util.FilePath;
+import com.cromoteca.bfts.util.lambdas.IOConsumer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores chunks by appending them to large segment files, instead of writing
+ * each chunk to its own file. Chunk locations are kept in the database (see
+ * {@link PackedChunk}), but every record also contains the chunk hash, so
+ * segments can be scanned without the database. Segments are read using memory
+ * mapping.
+ * <p>
+ * Record format: hash length (int), hash, data length (int), data.
+ *
+ * @author Luciano Vernaschi (luciano at cromoteca.com)
+ */
+public class PackStore implements AutoCloseable {
+  /**
+   * A new segment is started when the current one reaches this size. Must be
+   * well below 2 GB, since segments are mapped in a single buffer.
+   */
+  public static final long SEGMENT_SIZE = 1L << 30;
+  private static final Logger log = LoggerFactory.getLogger(PackStore.class);
+  private static final String SEGMENT_SUFFIX = ".pack";
+  private static final String DELETED_SUFFIX = ".deleted";
+  private static final int MAX_HASH_LENGTH = 1024;
+  private final FilePath dir;
+  private final Map<Integer, MappedByteBuffer> mapped = new ConcurrentHashMap<>();
+  private int activeSegment;
+  private FileChannel activeChannel;
+
+  /**
+   * Opens the segments stored in a directory, creating it if needed.
+   */
+  public PackStore(FilePath dir) throws IOException {
+    this.dir = dir;
+    dir.createDirectories();
+    deleteMarkedSegments();
+    List<Integer> segments = getSegments();
+    activeSegment = segments.isEmpty() ? 1 : segments.get(segments.size() - 1);
+    repairActiveSegment();
+  }
+
+  /**
+   * Segment numbers, in ascending order. Segments waiting to be deleted are not
+   * included.
+   */
+  public List<Integer> getSegments() throws IOException {
+    return listSegments(SEGMENT_SUFFIX).stream()
+        .filter(segment -> !getMarkerPath(segment).exists())
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Number of the segment that receives new chunks.
+   */
+  public synchronized int getActiveSegment() {
+    return activeSegment;
+  }
+
+  /**
+   * Size of a segment file.
+   */
+  public long size(int segment) throws IOException {
+    return getSegmentPath(segment).size();
+  }
+
+  /**
+   * Appends a chunk to the active segment. Data is not guaranteed to be on disk
+   * until {@link #sync()} is called.
+   *
+   * @return the chunk location, which must be stored somewhere to be able to
+   *         read the chunk back
+   */
+  public synchronized PackedChunk append(byte[] hash, byte[] data)
+      throws IOException {
+    FileChannel channel = getActiveChannel();
+
+    if (channel.size() >= SEGMENT_SIZE) {
+      // seal the current segment and start a new one
+      channel.force(false);
+      channel.close();
+      activeChannel = null;
+      activeSegment++;
+      channel = getActiveChannel();
+    }
+
+    long start = channel.size();
+    ByteBuffer header = ByteBuffer.allocate(Integer.BYTES * 2 + hash.length);
+    header.putInt(hash.length).put(hash).putInt(data.length).flip();
+    writeFully(channel, header, start);
+    long position = start + header.capacity();
+    writeFully(channel, ByteBuffer.wrap(data), position);
+
+    return new PackedChunk(hash, activeSegment, position, data.length);
+  }
+
+  /**
+   * Flushes appended chunks to disk.
+   */
+  public synchronized void sync() throws IOException {
+    if (activeChannel != null) {
+      activeChannel.force(false);
+    }
+  }
+
+  /**
+   * Reads a chunk.
+   */
+  public byte[] read(PackedChunk chunk) throws IOException {
+    long end = chunk.getPosition() + chunk.getLength();
+    // duplicate, so that concurrent readers don't share the buffer position
+    ByteBuffer buffer = map(chunk.getSegment(), end).duplicate();
+
+    if (buffer.capacity() < end) {
+      throw new IOException(String.format("Chunk at %d in segment %d exceeds"
+          + " segment size", chunk.getPosition(), chunk.getSegment()));
+    }
+
+    byte[] data = new byte[chunk.getLength()];
+    buffer.position((int) chunk.getPosition());
+    buffer.get(data);
+    return data;
+  }
+
+  /**
+   * Reads all valid records of a segment, in order. Chunk data is not loaded.
+   */
+  public void scan(int segment, IOConsumer<PackedChunk> consumer)
+      throws IOException {
+    try (FileChannel channel = open(segment,
+        StandardOpenOption.READ)) {
+      scan(segment, channel, consumer);
+    }
+  }
+
+  /**
+   * Deletes a segment. Its chunks must have been moved elsewhere. If the file
+   * can't be deleted now, the segment is marked and deleted the next time the
+   * store is opened.
+   */
+  public void delete(int segment) throws IOException {
+    if (segment == getActiveSegment()) {
+      throw new IllegalArgumentException("The active segment can't be deleted");
+    }
+
+    mapped.remove(segment);
+    FilePath path = getSegmentPath(segment);
+
+    try {
+      path.delete();
+    } catch (IOException ex) {
+      // Windows does not delete (or rename) a file while it is mapped, and
+      // buffers are only unmapped when garbage collected
+      log.debug("Segment {} will be deleted at next open: {}", path,
+          ex.toString());
+      getMarkerPath(segment).write(new byte[0]);
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (activeChannel != null) {
+      activeChannel.force(false);
+      activeChannel.close();
+      activeChannel = null;
+    }
+
+    mapped.clear();
+  }
+
+  /**
+   * Scans the records and returns the position after the last valid one.
+   */
+  private long scan(int segment, FileChannel channel,
+      IOConsumer<PackedChunk> consumer) throws IOException {
+    long size = channel.size();
+    long position = 0;
+    ByteBuffer lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+
+    while (position + Integer.BYTES <= size) {
+      lengthBuffer.clear();
+      readFully(channel, lengthBuffer, position);
+      int hashLength = lengthBuffer.getInt(0);
+
+      if (hashLength <= 0 || hashLength > MAX_HASH_LENGTH
+          || position + Integer.BYTES * 2 + hashLength > size) {
+        break;
+      }
+
+      ByteBuffer hash = ByteBuffer.allocate(hashLength);
+      readFully(channel, hash, position + Integer.BYTES);
+      lengthBuffer.clear();
+      readFully(channel, lengthBuffer, position + Integer.BYTES + hashLength);
+      int dataLength = lengthBuffer.getInt(0);
+      long dataPosition = position + Integer.BYTES * 2 + hashLength;
+
+      if (dataLength < 0 || dataPosition + dataLength > size) {
+        break;
+      }
+
+      consumer.accept(new PackedChunk(hash.array(), segment, dataPosition,
+          dataLength));
+      position = dataPosition + dataLength;
+    }
+
+    return position;
+  }
+
+  /**
+   * Deletes the segments that could not be deleted while they were mapped.
+   */
+  private void deleteMarkedSegments() throws IOException {
+    for (int segment : listSegments(DELETED_SUFFIX)) {
+      FilePath path = getSegmentPath(segment);
+
+      try {
+        if (path.exists()) {
+          path.delete();
+        }
+
+        getMarkerPath(segment).delete();
+      } catch (IOException ex) {
+        log.warn("Segment {} can't be deleted: {}", path, ex.toString());
+      }
+    }
+  }
+
+  /**
+   * Numbers of the files having the passed suffix, in ascending order.
+   */
+  private List<Integer> listSegments(String suffix) throws IOException {
+    try (Stream<FilePath> list = dir.list()) {
+      return list.map(FilePath::getFileName)
+          .filter(name -> name.endsWith(suffix))
+          .map(name -> Integer.valueOf(name.substring(0,
+          name.length() - suffix.length())))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  /**
+   * Removes an incomplete record at the end of the active segment, that can be
+   * left by a crash while appending.
+   */
+  private void repairActiveSegment() throws IOException {
+    FilePath path = getSegmentPath(activeSegment);
+
+    if (path.exists()) {
+      try (FileChannel channel = open(activeSegment,
+          StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+        long valid = scan(activeSegment, channel, chunk -> {
+        });
+
+        if (valid < channel.size()) {
+          log.warn("Segment {}: {} bytes of incomplete data removed", path,
+              channel.size() - valid);
+          channel.truncate(valid);
+        }
+      }
+    }
+  }
+
+  private FileChannel getActiveChannel() throws IOException {
+    if (activeChannel == null) {
+      activeChannel = open(activeSegment,
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.READ);
+    }
+
+    return activeChannel;
+  }
+
+  private MappedByteBuffer map(int segment, long required) throws IOException {
+    MappedByteBuffer buffer = mapped.get(segment);
+
+    // the active segment grows, so it must be mapped again when needed
+    if (buffer == null || buffer.capacity() < required) {
+      try (FileChannel channel = open(segment,
+          StandardOpenOption.READ)) {
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+
+      mapped.put(segment, buffer);
+    }
+
+    return buffer;
+  }
+
+  private FileChannel open(int segment, OpenOption... options)
+      throws IOException {
+    return FileChannel.open(getSegmentPath(segment).toFile().toPath(), options);
+  }
+
+  private FilePath getSegmentPath(int segment) {
+    return dir.resolve(String.format("%08d%s", segment, SEGMENT_SUFFIX));
+  }
+
+  private FilePath getMarkerPath(int segment) {
+    return dir.resolve(String.format("%08d%s", segment, DELETED_SUFFIX));
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer,
+      long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer,
+      long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int n = channel.read(buffer, position);
+
+      if (n < 0) {
+        throw new IOException("Unexpected end of segment");
+      }
+
+      position += n;
+    }
+  }
+}
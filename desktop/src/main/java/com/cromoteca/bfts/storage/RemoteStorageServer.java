@@ -26,13 +26,25 @@ import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Method;
 import java.lang.reflect.Type;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.function.IntConsumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,9 +60,39 @@ public class RemoteStorageServer implements HttpHandler {
   private static final Logger log
       = LoggerFactory.getLogger(RemoteStorageServer.class);
   private static final byte[] ECHO_RESPONSE = "BFTS server listening".getBytes();
+  /**
+   * Sessions not used for this time are discarded.
+   */
+  private static final long SESSION_TIMEOUT
+      = 3 * RemoteStorage.SESSION_DURATION;
+  private static final int MAX_SESSIONS = 1024;
+  private static final int SESSION_ID_LENGTH = 16;
+  /**
+   * Metadata calls wait for the single SQLite writer, so more threads would
+   * only add contention.
+   */
+  private static final int METADATA_THREADS = 8;
+  private static final int STREAM_THREADS = 8;
+  private static final int MAX_QUEUED_REQUESTS = 256;
+  private static final int MAX_METADATA_REQUESTS_PER_CLIENT = 16;
+  private static final int MAX_STREAMS_PER_CLIENT = 8;
+  /**
+   * Seconds that a client should wait before sending a rejected request
+   * again.
+   */
+  private static final String RETRY_AFTER = "1";
   private final LocalStorage localStorage;
   // contains methods of the Storage interface
   private final Map<String, Method> methods;
+  // session keys, so that a private key operation is not needed on every call
+  private final Map<String, Session> sessions;
+  private final SecureRandom random = new SecureRandom();
+  // advertised to clients, 0 if the multiplexed server is not running
+  private volatile int multiplexedPort;
+  // calls that send or receive chunk contents run separately from the other
+  // ones, so that uploads can't block short calls
+  private final FairExecutor metadataExecutor;
+  private final FairExecutor streamExecutor;
 
   /**
    * Creates a new remote storage
@@ -67,6 +109,19 @@ public class RemoteStorageServer implements HttpHandler {
         }
       }
     };
+
+    metadataExecutor = new FairExecutor("storage-metadata", METADATA_THREADS,
+        MAX_QUEUED_REQUESTS, MAX_METADATA_REQUESTS_PER_CLIENT);
+    streamExecutor = new FairExecutor("storage-streams", STREAM_THREADS,
+        MAX_QUEUED_REQUESTS, MAX_STREAMS_PER_CLIENT);
+
+    sessions = Collections.synchronizedMap(
+        new LinkedHashMap<String, Session>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+        return size() > MAX_SESSIONS;
+      }
+    });
   }
 
   /**
@@ -77,35 +132,241 @@ public class RemoteStorageServer implements HttpHandler {
    */
   public IntConsumer startHTTPServer(int port) throws IOException {
     HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
-    server.setExecutor(Executors.newCachedThreadPool());
+    // no executor: the handler only dispatches requests to the executors
     server.createContext("/", this);
     server.start();
 
     return seconds -> server.stop(seconds);
   }
 
+  /**
+   * Starts a server that accepts multiplexed connections, which are preferred
+   * by clients to HTTP since they are kept open and can run several calls at
+   * the same time. The HTTP server must be started as well, since clients use
+   * it to get the port of this one.
+   *
+   * @param port port to use
+   * @return an object that can be used to stop the server after a timeout
+   */
+  public IntConsumer startMultiplexedServer(int port) throws IOException {
+    ServerSocket serverSocket = new ServerSocket(port);
+    List<MultiplexedConnection> connections = new CopyOnWriteArrayList<>();
+
+    Thread acceptor = new Thread(() -> {
+      while (!serverSocket.isClosed()) {
+        try {
+          Socket socket = serverSocket.accept();
+          String client = socket.getInetAddress().getHostAddress();
+          connections.removeIf(c -> !c.isOpen());
+          connections.add(new MultiplexedConnection(socket,
+              channel -> handle(channel, client), RemoteStorage.TIMEOUT));
+        } catch (IOException ex) {
+          if (!serverSocket.isClosed()) {
+            log.warn(null, ex);
+          }
+        }
+      }
+    }, "Multiplexed server on port " + port);
+    acceptor.setDaemon(true);
+    acceptor.start();
+    multiplexedPort = port;
+
+    return seconds -> {
+      multiplexedPort = 0;
+
+      try {
+        serverSocket.close();
+        // running calls can complete
+        long timeout = TimeUnit.SECONDS.toMillis(seconds);
+        metadataExecutor.awaitIdle(timeout);
+        streamExecutor.awaitIdle(timeout);
+      } catch (IOException ex) {
+        log.warn(null, ex);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+
+      connections.forEach(MultiplexedConnection::close);
+    };
+  }
+
   @Override
   public void handle(HttpExchange e) throws IOException {
-    String methodName = e.getRequestURI().getPath().replace("/", "");
+    dispatch(new Exchange() {
+      @Override
+      public String getClient() {
+        return e.getRemoteAddress().getAddress().getHostAddress();
+      }
+
+      @Override
+      public String getPath() {
+        return e.getRequestURI().getPath();
+      }
+
+      @Override
+      public String getHeader(String name) {
+        return e.getRequestHeaders().getFirst(name);
+      }
+
+      @Override
+      public InputStream getRequestBody() {
+        return e.getRequestBody();
+      }
+
+      @Override
+      public void setResponseHeader(String name, String value) {
+        e.getResponseHeaders().set(name, value);
+      }
+
+      @Override
+      public OutputStream sendResponse(int code) throws IOException {
+        e.sendResponseHeaders(code, 0);
+        return e.getResponseBody();
+      }
+
+      @Override
+      public void sendEmptyResponse(int code) throws IOException {
+        // without a response body, the exchange ends without draining the
+        // request body, and the connection is closed instead
+        e.getResponseHeaders().set("Connection", "close");
+        e.sendResponseHeaders(code, -1);
+      }
+
+      @Override
+      public void close() {
+        e.close();
+      }
+    });
+  }
+
+  private void handle(MultiplexedConnection.Channel channel, String client) {
+    dispatch(new Exchange() {
+      @Override
+      public String getClient() {
+        return client;
+      }
+
+      @Override
+      public String getPath() {
+        return channel.getPath();
+      }
+
+      @Override
+      public String getHeader(String name) {
+        return channel.getHeader(name);
+      }
+
+      @Override
+      public InputStream getRequestBody() {
+        return channel.getRequestBody();
+      }
+
+      @Override
+      public void setResponseHeader(String name, String value) {
+        channel.setResponseHeader(name, value);
+      }
+
+      @Override
+      public OutputStream sendResponse(int code) throws IOException {
+        return channel.sendResponse(code);
+      }
+
+      @Override
+      public void sendEmptyResponse(int code) throws IOException {
+        channel.sendResponse(code);
+        // resets the channel if the request has not been received yet
+        channel.close();
+      }
+
+      @Override
+      public void close() throws IOException {
+        channel.close();
+      }
+    });
+  }
+
+  /**
+   * Queues a request in the executor for its kind of call, or replies
+   * immediately if the server is too busy. This method does not block, since
+   * it runs in the thread that receives requests.
+   */
+  private void dispatch(Exchange e) {
+    Method method = methods.get(e.getPath().replace("/", ""));
+    FairExecutor executor = method != null && isStreaming(method)
+        ? streamExecutor : metadataExecutor;
+
+    boolean accepted = executor.execute(e.getClient(), () -> {
+      try {
+        handle(e);
+      } catch (IOException | RuntimeException ex) {
+        log.warn(null, ex);
+      } finally {
+        try {
+          e.close();
+        } catch (IOException ex) {
+          log.debug(null, ex);
+        }
+      }
+    });
+
+    if (!accepted) {
+      log.info("Server busy, request from {} rejected", e.getClient());
+
+      try {
+        e.setResponseHeader(RemoteStorage.RETRY_AFTER_HEADER, RETRY_AFTER);
+        e.sendEmptyResponse(HTTP_UNAVAILABLE);
+      } catch (IOException ex) {
+        log.debug(null, ex);
+      }
+    }
+  }
+
+  /**
+   * Returns true if a method sends or receives chunk contents.
+   */
+  private static boolean isStreaming(Method method) {
+    return IOSupplier.class.isAssignableFrom(method.getReturnType())
+        || Arrays.stream(method.getParameterTypes())
+            .anyMatch(IOSupplier.class::isAssignableFrom);
+  }
+
+  private void handle(Exchange e) throws IOException {
+    String methodName = e.getPath().replace("/", "");
     log.debug("Called method {}", methodName);
 
     switch (methodName) {
       // not a member of Storage: used to send encryption keys
       case "getInitialInfo":
         StorageConfiguration config = localStorage.getStorageConfiguration();
-        e.sendResponseHeaders(HTTP_OK, 0);
         try (ArrayOfBytesOutputStream os
-            = new ArrayOfBytesOutputStream(e.getResponseBody())) {
+            = new ArrayOfBytesOutputStream(e.sendResponse(HTTP_OK))) {
           os.writeArrayOfBytes(config.getEncryptedPublicKey());
           os.writeArrayOfBytes(config.getSalt());
+          os.writeArrayOfBytes(Cryptographer.Mode.GCM.name()
+              .getBytes(StandardCharsets.UTF_8));
+          os.writeArrayOfBytes(Serialization.BINARY_FORMAT
+              .getBytes(StandardCharsets.UTF_8));
+          os.writeArrayOfBytes(Integer.toString(multiplexedPort)
+              .getBytes(StandardCharsets.UTF_8));
+          os.writeArrayOfBytes(RemoteStorage.PASS_THROUGH
+              .getBytes(StandardCharsets.UTF_8));
         }
 
         break;
 
+      // not a member of Storage: creates a session key
+      case "openSession":
+        openSession(e);
+        break;
+
+      // not a member of Storage: runs several calls at once
+      case "batch":
+        handleBatch(e);
+        break;
+
       // a simple method to test if the server is alive
       case "echo":
-        e.sendResponseHeaders(HTTP_OK, 0);
-        e.getResponseBody().write(ECHO_RESPONSE);
+        e.sendResponse(HTTP_OK).write(ECHO_RESPONSE);
         e.close();
 
         break;
@@ -114,7 +375,8 @@ public class RemoteStorageServer implements HttpHandler {
         Method method = methods.get(methodName);
 
         if (method == null) {
-          e.sendResponseHeaders(HTTP_NOT_FOUND, 0);
+          e.sendResponse(HTTP_NOT_FOUND);
+          e.close();
         } else {
           handleMethod(e, method);
         }
@@ -123,14 +385,80 @@ public class RemoteStorageServer implements HttpHandler {
     }
   }
 
-  private void handleMethod(HttpExchange e, Method method) throws IOException {
-    Object[] arguments;
-    Cryptographer crypto;
-    Object result = null;
-    int returnCode = HTTP_OK;
+  private void openSession(Exchange e) throws IOException {
+    byte[] key;
 
     try (ArrayOfBytesInputStream is
         = new ArrayOfBytesInputStream(e.getRequestBody())) {
+      key = is.readArrayOfBytes();
+    }
+
+    Cryptographer crypto;
+    byte[] id = new byte[SESSION_ID_LENGTH];
+    random.nextBytes(id);
+    byte[] proof;
+
+    try {
+      // the only private key operation for the whole session
+      crypto = new Cryptographer(Cryptographer.decrypt(key,
+          localStorage.getEncodedPrivateKey()));
+      // only who can decrypt the key can send this back
+      proof = crypto.encrypt(id, getMode(e));
+    } catch (GeneralSecurityException | IllegalArgumentException ex) {
+      log.error(null, ex);
+      e.sendResponse(HTTP_FORBIDDEN);
+      e.close();
+      return;
+    }
+
+    String sessionId = Base64.getUrlEncoder().encodeToString(id);
+    sessions.put(sessionId, new Session(crypto));
+    try (ArrayOfBytesOutputStream os
+        = new ArrayOfBytesOutputStream(e.sendResponse(HTTP_OK))) {
+      os.writeArrayOfBytes(id);
+      os.writeArrayOfBytes(proof);
+    }
+  }
+
+  /**
+   * Returns the cryptographer of a session, or null if the session does not
+   * exist or has expired.
+   */
+  private Cryptographer getSession(String id) {
+    Session session = sessions.get(id);
+    long now = System.currentTimeMillis();
+
+    if (session == null) {
+      return null;
+    } else if (now - session.lastUsed > SESSION_TIMEOUT) {
+      sessions.remove(id);
+      return null;
+    } else {
+      session.lastUsed = now;
+      return session.crypto;
+    }
+  }
+
+  /**
+   * Returns the encryption format declared by the client: older ones only know
+   * CBC.
+   */
+  private static Cryptographer.Mode getMode(Exchange e) {
+    return Cryptographer.Mode.GCM.name().equals(
+        e.getHeader(RemoteStorage.CIPHER_HEADER)) ? Cryptographer.Mode.GCM
+        : Cryptographer.Mode.CBC;
+  }
+
+  /**
+   * Returns the cryptographer for a call, reading the key sent by the client
+   * or finding its session. If the session is unknown, replies to the client
+   * and returns null.
+   */
+  private Cryptographer readCryptographer(Exchange e,
+      ArrayOfBytesInputStream is) throws IOException {
+    String sessionId = e.getHeader(RemoteStorage.SESSION_HEADER);
+
+    if (sessionId == null) {
       // read key from client, that used it to encrypt method arguments
       byte[] key = is.readArrayOfBytes();
 
@@ -141,7 +469,127 @@ public class RemoteStorageServer implements HttpHandler {
         throw new IOException(ex);
       }
 
-      crypto = new Cryptographer(key);
+      return new Cryptographer(key);
+    }
+
+    Cryptographer crypto = getSession(sessionId);
+
+    if (crypto == null) {
+      // the client will open a new session
+      log.debug("Unknown session {}", sessionId);
+      byte[] buffer = new byte[8192];
+      while (is.read(buffer) >= 0) {
+        // discard request body
+      }
+      e.sendResponse(HTTP_UNAUTHORIZED);
+      e.close();
+    }
+
+    return crypto;
+  }
+
+  /**
+   * Runs several calls sent in a single request, in the order they have been
+   * sent. Each result is preceded by its own response code, so that a failed
+   * call does not affect the other ones.
+   */
+  private void handleBatch(Exchange e) throws IOException {
+    Cryptographer crypto;
+    Cryptographer.Mode mode = getMode(e);
+    boolean binary = Serialization.BINARY_FORMAT.equals(
+        e.getHeader(RemoteStorage.FORMAT_HEADER));
+    int count;
+    Method[] batchMethods;
+    Object[][] batchArguments;
+
+    try (ArrayOfBytesInputStream is
+        = new ArrayOfBytesInputStream(e.getRequestBody())) {
+      crypto = readCryptographer(e, is);
+
+      if (crypto == null) {
+        return;
+      }
+
+      count = is.readInt();
+      batchMethods = new Method[count];
+      batchArguments = new Object[count][];
+
+      for (int i = 0; i < count; i++) {
+        String methodName
+            = new String(is.readArrayOfBytes(), StandardCharsets.UTF_8);
+        Method method = methods.get(methodName);
+        int argumentCount = is.readInt();
+        Object[] arguments = new Object[argumentCount];
+
+        for (int j = 0; j < argumentCount; j++) {
+          byte[] data = is.readArrayOfBytes();
+
+          if (method != null && arguments != null) {
+            try {
+              data = crypto.decrypt(data);
+              arguments[j] = Serialization.deserialize(
+                  method.getGenericParameterTypes()[j], data);
+            } catch (GeneralSecurityException | RuntimeException ex) {
+              log.error(null, ex);
+              // the call will fail, but the next ones must still be read
+              arguments = null;
+            }
+          }
+        }
+
+        batchMethods[i] = method;
+        batchArguments[i] = arguments;
+      }
+    }
+
+    try (ArrayOfBytesOutputStream os
+        = new ArrayOfBytesOutputStream(e.sendResponse(HTTP_OK))) {
+      for (int i = 0; i < count; i++) {
+        Method method = batchMethods[i];
+
+        if (method == null) {
+          os.writeInt(HTTP_NOT_FOUND);
+        } else if (batchArguments[i] == null) {
+          os.writeInt(HTTP_FORBIDDEN);
+        } else {
+          try {
+            Object result = method.invoke(localStorage, batchArguments[i]);
+            byte[] data = Serialization.serialize(result,
+                method.getGenericReturnType(), binary);
+            data = crypto.encrypt(data, mode);
+            os.writeInt(HTTP_OK);
+            os.writeArrayOfBytes(data);
+          } catch (Exception ex) {
+            log.error(null, ex);
+            os.writeInt(HTTP_INTERNAL_ERROR);
+          }
+        }
+      }
+    }
+  }
+
+  private void handleMethod(Exchange e, Method method) throws IOException {
+    Object[] arguments;
+    Cryptographer crypto;
+    Object result = null;
+    int returnCode = HTTP_OK;
+    // reply using the format used by the client
+    Cryptographer.Mode mode = getMode(e);
+    // older clients only know JSON
+    boolean binary = Serialization.BINARY_FORMAT.equals(
+        e.getHeader(RemoteStorage.FORMAT_HEADER));
+    // chunk contents encrypted by the client are not encrypted again
+    boolean passThrough = RemoteStorage.PASS_THROUGH.equals(
+        e.getHeader(RemoteStorage.PAYLOAD_HEADER));
+
+    try (ArrayOfBytesInputStream is
+        = new ArrayOfBytesInputStream(e.getRequestBody())) {
+      crypto = readCryptographer(e, is);
+
+      if (crypto == null) {
+        return;
+      }
+
       int argumentCount = is.readInt();
       arguments = new Object[argumentCount];
 
@@ -154,6 +602,12 @@ public class RemoteStorageServer implements HttpHandler {
           IOSupplier<byte[]> supplier = () -> {
             try {
               byte[] data = is.readArrayOfBytes();
+
+              if (passThrough) {
+                crypto.verify(data, is.readArrayOfBytes());
+                return data;
+              }
+
               return crypto.decrypt(data);
             } catch (EOFException ex) {
               return null;
@@ -189,11 +643,13 @@ public class RemoteStorageServer implements HttpHandler {
       }
     }
 
-    e.sendResponseHeaders(returnCode, 0);
+    OutputStream responseBody = e.sendResponse(returnCode);
 
-    if (returnCode == HTTP_OK) {
+    if (returnCode != HTTP_OK) {
+      e.close();
+    } else {
       try (ArrayOfBytesOutputStream os
-          = new ArrayOfBytesOutputStream(e.getResponseBody())) {
+          = new ArrayOfBytesOutputStream(responseBody)) {
         String typeName = method.getGenericReturnType().getTypeName();
 
         // if method returns a supplier, write all data it can produce
@@ -201,22 +657,31 @@ public class RemoteStorageServer implements HttpHandler {
           IOSupplier<byte[]> supplier = (IOSupplier<byte[]>) result;
           byte[] data;
 
-          while ((data = supplier.get()) != null) {
-            try {
-              data = crypto.encrypt(data);
-            } catch (GeneralSecurityException ex) {
-              log.error(null, ex);
-              return;
+          try {
+            while ((data = supplier.get()) != null) {
+              try {
+                if (passThrough) {
+                  os.writeArrayOfBytes(data);
+                  os.writeArrayOfBytes(crypto.authenticate(data));
+                } else {
+                  os.writeArrayOfBytes(crypto.encrypt(data, mode));
+                }
+              } catch (GeneralSecurityException ex) {
+                log.error(null, ex);
+                return;
+              }
             }
-
-            os.writeArrayOfBytes(data);
+          } finally {
+            // also when the client went away
+            supplier.end();
           }
         } else {
           // serialize, encrypt and write a normal return object
-          byte[] data = Serialization.serialize(result);
+          byte[] data = Serialization.serialize(result,
+              method.getGenericReturnType(), binary);
 
           try {
-            data = crypto.encrypt(data);
+            data = crypto.encrypt(data, mode);
           } catch (GeneralSecurityException ex) {
             log.error(null, ex);
             return;
@@ -227,4 +692,44 @@ public class RemoteStorageServer implements HttpHandler {
       }
     }
   }
+
+  /**
+   * A request received using HTTP or a multiplexed connection.
+   */
+  private interface Exchange {
+    /**
+     * Returns the address of the client, used to share the server fairly.
+     */
+    String getClient();
+
+    String getPath();
+
+    String getHeader(String name);
+
+    InputStream getRequestBody();
+
+    void setResponseHeader(String name, String value);
+
+    /**
+     * Sends the response code and returns the stream for the response body.
+     */
+    OutputStream sendResponse(int code) throws IOException;
+
+    /**
+     * Sends a response without a body and ends the exchange without reading
+     * the rest of the request, so that it can't block the caller.
+     */
+    void sendEmptyResponse(int code) throws IOException;
+
+    void close() throws IOException;
+  }
+
+  private static class Session {
+    final Cryptographer crypto;
+    volatile long lastUsed = System.currentTimeMillis();
+
+    Session(Cryptographer crypto) {
+      this.crypto = crypto;
+    }
+  }
 }
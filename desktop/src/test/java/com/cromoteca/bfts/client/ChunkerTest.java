@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.client;
+
+import com.cromoteca.bfts.compression.ChunkCodec;
+import com.cromoteca.bfts.compression.ChunkCodecs;
+import com.cromoteca.bfts.compression.DeflateCodec;
+import com.cromoteca.bfts.model.Chunk;
+import com.cromoteca.bfts.model.File;
+import com.cromoteca.bfts.model.Hash;
+import com.cromoteca.bfts.model.Source;
+import com.cromoteca.bfts.testutil.DirectoryWalker;
+import com.cromoteca.bfts.testutil.TestUtils;
+import com.cromoteca.bfts.util.Compression;
+import com.cromoteca.bfts.util.FilePath;
+import com.cromoteca.bfts.util.Hex;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChunkerTest {
+  private static final FilePath testDir = TestUtils.getTestDir(ChunkerTest.class);
+
+  @AfterClass
+  public static void tearDownClass() {
+    DirectoryWalker.rmDirSilent(testDir);
+  }
+
+  @Test
+  public void testSizes() {
+    FastCdcChunker chunker = new FastCdcChunker(1024, 4096, 16384);
+    byte[] data = TestUtils.randomBytes(200_000);
+    int offset = 0;
+
+    while (offset < data.length) {
+      int length = chunker.cut(data, offset, data.length - offset);
+      assertTrue(length <= 16384);
+
+      if (offset + length < data.length) {
+        assertTrue(length >= 1024);
+      }
+
+      offset += length;
+    }
+
+    assertEquals(data.length, offset);
+  }
+
+  @Test
+  public void testInsertion() throws Exception {
+    Filesystem fs = new Filesystem(4096);
+    fs.setChunker(new FastCdcChunker(1024, 4096, 16384));
+    byte[] data = TestUtils.randomBytes(200_000);
+    byte[] modified = new byte[data.length + 1];
+    // insert one byte near the beginning
+    System.arraycopy(data, 0, modified, 0, 100);
+    modified[100] = 42;
+    System.arraycopy(data, 100, modified, 101, data.length - 100);
+
+    FilePath p1 = testDir.resolve("original").write(data);
+    FilePath p2 = testDir.resolve("modified").write(modified);
+    Set<String> original = chunkHashes(fs.hash(p1, true));
+    Set<String> changed = chunkHashes(fs.hash(p2, true));
+    changed.removeAll(original);
+
+    // only the first chunks are different
+    assertTrue(changed.size() <= 2);
+
+    // with fixed size chunks, all chunks would be different
+    fs.setChunker(new FixedSizeChunker(4096));
+    original = chunkHashes(fs.hash(p1, true));
+    changed = chunkHashes(fs.hash(p2, true));
+    changed.removeAll(original);
+    assertEquals(original.size(), changed.size());
+  }
+
+  @Test
+  public void testReadChunk() throws Exception {
+    Filesystem fs = new Filesystem(4096);
+    fs.setChunker(new FastCdcChunker(1024, 4096, 16384));
+    byte[] data = TestUtils.randomBytes(100_000);
+    FilePath path = testDir.resolve("read").write(data);
+
+    Source source = new Source();
+    source.setRootPath(testDir.toString());
+    File file = new File("read", "", data.length,
+        path.getLastModifiedTime().to(TimeUnit.MILLISECONDS));
+    file.setSource(source);
+    assertTrue(fs.hash(file));
+
+    int position = 0;
+
+    for (Chunk chunk : file.getHash().getChunks()) {
+      assertEquals(position, chunk.getOffset());
+      chunk.setFile(file);
+      byte[] stored = fs.readChunk(chunk);
+
+      if (stored.length < chunk.getLength()) {
+        stored = Compression.decompress(stored);
+      }
+
+      assertArrayEquals(Arrays.copyOfRange(data, position,
+          position + chunk.getLength()), stored);
+      position += chunk.getLength();
+    }
+
+    assertEquals(data.length, position);
+  }
+
+  @Test
+  public void testChunkerPerCall() throws Exception {
+    byte[] data = TestUtils.randomBytes(100_000);
+    FilePath path = testDir.resolve("percall").write(data);
+    // the filesystem is shared by storages using different chunkers
+    Filesystem fs = new Filesystem(4096);
+    Chunker fixed = fs.getChunker();
+
+    Source source = new Source();
+    source.setRootPath(testDir.toString());
+    File file = new File("percall", "", data.length,
+        path.getLastModifiedTime().to(TimeUnit.MILLISECONDS));
+    file.setSource(source);
+    assertTrue(fs.submitHash(file, new FastCdcChunker(1024, 4096, 16384),
+        null).get());
+    assertSame(fixed, fs.getChunker());
+    List<Chunk> chunks = file.getHash().getChunks();
+    assertTrue(chunks.stream().anyMatch(c -> c.getLength() != 4096
+        && c.getOffset() + c.getLength() < data.length));
+
+    assertTrue(fs.hash(file));
+    assertTrue(file.getHash().getChunks().stream()
+        .allMatch(c -> c.getLength() == 4096
+        || c.getOffset() + c.getLength() == data.length));
+  }
+
+  @Test
+  public void testChunkConsumer() throws Exception {
+    byte[] data = TestUtils.randomBytes(300_000);
+    FilePath path = testDir.resolve("consumer").write(data);
+    Filesystem fs = new Filesystem(4096);
+    fs.setChunker(new FastCdcChunker(1024, 4096, 16384));
+    fs.setHashingThreads(4);
+
+    Source source = new Source();
+    source.setRootPath(testDir.toString());
+    File file = new File("consumer", "", data.length,
+        path.getLastModifiedTime().to(TimeUnit.MILLISECONDS));
+    file.setSource(source);
+    Map<Long, byte[]> consumed = new ConcurrentHashMap<>();
+    assertTrue(fs.hash(file, (chunk, content) -> {
+      assertEquals(chunk.getLength(), content.length);
+      consumed.put(chunk.getOffset(), content);
+    }));
+
+    // each chunk has been passed once, with the right content
+    assertEquals(file.getHash().getChunks().size(), consumed.size());
+
+    for (Chunk chunk : file.getHash().getChunks()) {
+      int start = (int) chunk.getOffset();
+      assertArrayEquals(Arrays.copyOfRange(data, start,
+          start + chunk.getLength()), consumed.get(chunk.getOffset()));
+    }
+  }
+
+  @Test
+  public void testParallelHashing() throws Exception {
+    byte[] data = TestUtils.randomBytes(300_000);
+    FilePath path = testDir.resolve("parallel").write(data);
+    Filesystem fs = new Filesystem(4096);
+    fs.setChunker(new FastCdcChunker(1024, 4096, 16384));
+    Hash expected = fs.hash(path, true);
+
+    fs.setHashingThreads(4);
+    List<Future<Hash>> results = new ArrayList<>();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    for (int i = 0; i < 8; i++) {
+      results.add(executor.submit(() -> fs.hash(path, true)));
+    }
+
+    for (Future<Hash> result : results) {
+      Hash hash = result.get();
+      assertArrayEquals(expected.getMain(), hash.getMain());
+      assertEquals(expected.getChunks().size(), hash.getChunks().size());
+
+      for (int i = 0; i < expected.getChunks().size(); i++) {
+        Chunk c1 = expected.getChunks().get(i);
+        Chunk c2 = hash.getChunks().get(i);
+        assertEquals(c1.getOffset(), c2.getOffset());
+        assertArrayEquals(c1.getHash(), c2.getHash());
+      }
+    }
+
+    executor.shutdown();
+  }
+
+  @Test
+  public void testSubmitReadChunk() throws Exception {
+    byte[] data = new byte[200_000];
+
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i % 251);
+    }
+
+    FilePath path = testDir.resolve("submit").write(data);
+    Filesystem fs = new Filesystem(4096);
+    fs.setHashingThreads(4);
+
+    Source source = new Source();
+    source.setRootPath(testDir.toString());
+    File file = new File("submit", "", data.length,
+        path.getLastModifiedTime().to(TimeUnit.MILLISECONDS));
+    file.setSource(source);
+    assertTrue(fs.hash(file));
+
+    List<Future<byte[]>> results = new ArrayList<>();
+    ChunkCodec codec = new DeflateCodec();
+
+    for (Chunk chunk : file.getHash().getChunks()) {
+      chunk.setFile(file);
+      results.add(fs.submitReadChunk(chunk, codec));
+    }
+
+    // results are returned in order, even if computed in parallel
+    for (int i = 0; i < results.size(); i++) {
+      Chunk chunk = file.getHash().getChunks().get(i);
+      byte[] stored = ChunkCodecs.decode(results.get(i).get(),
+          chunk.getLength());
+      int start = (int) chunk.getOffset();
+      assertArrayEquals(Arrays.copyOfRange(data, start,
+          start + chunk.getLength()), stored);
+    }
+  }
+
+  private static Set<String> chunkHashes(Hash hash) {
+    List<String> list = hash.getChunks().stream()
+        .map(c -> Hex.printHexBinary(c.getHash()))
+        .collect(Collectors.toList());
+    return new HashSet<>(list);
+  }
+}
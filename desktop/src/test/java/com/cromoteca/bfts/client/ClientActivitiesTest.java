@@ -16,12 +16,18 @@
  */
 package com.cromoteca.bfts.client;
 
+import com.cromoteca.bfts.compression.ChunkCodec;
+import com.cromoteca.bfts.model.Chunk;
 import com.cromoteca.bfts.model.Source;
 import com.cromoteca.bfts.model.StorageConfiguration;
 import com.cromoteca.bfts.storage.LocalStorage;
 import com.cromoteca.bfts.testutil.DirectoryWalker;
 import com.cromoteca.bfts.testutil.TestUtils;
 import com.cromoteca.bfts.util.FilePath;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -85,4 +91,55 @@ public class ClientActivitiesTest {
     client1.sendFiles(source1);
     assertEquals(41, localStorage.getClientStats(CLIENT).getFiles());
   }
+
+  @Test
+  public void testReadAhead() throws Exception {
+    List<CompletableFuture<byte[]>> reads = new ArrayList<>();
+    boolean[] complete = { true };
+    // reads complete immediately, or never if complete[0] is false
+    Filesystem fs = new Filesystem(4096) {
+      @Override
+      public Future<byte[]> submitReadChunk(Chunk chunk, ChunkCodec codec) {
+        CompletableFuture<byte[]> read = new CompletableFuture<>();
+
+        if (complete[0]) {
+          read.complete(new byte[chunk.getLength()]);
+        }
+
+        reads.add(read);
+        return read;
+      }
+    };
+
+    List<Chunk> chunks = new ArrayList<>();
+
+    for (int i = 0; i < 20; i++) {
+      Chunk chunk = new Chunk();
+      chunk.setLength(4096);
+      chunks.add(chunk);
+    }
+
+    ClientActivities activities
+        = new ClientActivities(CLIENT, fs, localStorage, "local", 30);
+    long windowBytes = 3 * 4096;
+    ClientActivities.ReadAhead readAhead
+        = activities.new ReadAhead(chunks, 8, windowBytes);
+
+    // the byte limit is reached before the chunk limit
+    for (int sent = 1; sent <= 10; sent++) {
+      assertNotNull(readAhead.next());
+      assertTrue((reads.size() - sent) * 4096 <= windowBytes);
+    }
+
+    assertEquals(13, reads.size());
+
+    // the upload stops while the next chunk is being read
+    complete[0] = false;
+    assertNotNull(readAhead.next());
+    assertEquals(14, reads.size());
+    readAhead.cancel();
+
+    assertTrue(reads.get(13).isCancelled());
+    assertTrue(reads.stream().allMatch(Future::isDone));
+  }
 }
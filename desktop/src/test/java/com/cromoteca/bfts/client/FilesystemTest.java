@@ -261,6 +261,28 @@ public class FilesystemTest {
     assertArrayEquals(newNotEmptyContent, newNotEmptyPath.readAllBytes());
   }
 
+  @Test
+  public void testCorruptedChunk() throws Exception {
+    FilePath path = testDir.resolve("corruptedFile");
+    byte[] content = TestUtils.randomBytes(CHUNK_SIZE * 2);
+    FilePath copy = testDir.resolve("copyOfCorruptedFile");
+    copy.write(content);
+    File file = new File(path.getFileName(), "", content.length,
+        copy.getLastModifiedTime().to(TimeUnit.MILLISECONDS));
+    file.setHash(filesystem.hash(copy, true));
+    file.setSource(source);
+    copy.delete();
+    List<Filesystem.CreationOutcome> outcomes = new ArrayList<>();
+
+    // shorter than the chunk, so it is decompressed, but it is not valid
+    filesystem.getFilesFromStorage(Arrays.asList(new Pair<>(path, file)),
+        testDir, () -> new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 },
+        (f, o) -> outcomes.add(o));
+
+    assertEquals(Arrays.asList(Filesystem.CreationOutcome.FAILED), outcomes);
+    assertFalse(path.exists());
+  }
+
   @Test
   public void testGetFile() throws IOException {
     Filesystem fs = new Filesystem();
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.client;
+
+import com.cromoteca.bfts.model.File;
+import com.cromoteca.bfts.model.IgnoredFileChecker;
+import com.cromoteca.bfts.testutil.DirectoryWalker;
+import com.cromoteca.bfts.testutil.TestUtils;
+import com.cromoteca.bfts.util.FilePath;
+import java.io.IOException;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Luciano Vernaschi (luciano at cromoteca.com)
+ */
+public class ParallelScanTest {
+  private static FilePath testDir = TestUtils.getTestDir(ParallelScanTest.class);
+
+  @BeforeClass
+  public static void setUpClass() throws IOException {
+    createTree(testDir.resolve("tree"), 3, new Random(0));
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws IOException {
+    DirectoryWalker.rmDirSilent(testDir);
+  }
+
+  private static void createTree(FilePath dir, int depth, Random random)
+      throws IOException {
+    dir.createDirectories();
+
+    for (int i = random.nextInt(6); i >= 0; i--) {
+      dir.resolve("f" + random.nextInt(100_000) + ".txt")
+          .write(TestUtils.randomBytes(random.nextInt(100)));
+    }
+
+    if (depth > 0) {
+      for (int i = random.nextInt(5); i >= 0; i--) {
+        createTree(dir.resolve("d" + random.nextInt(100_000)), depth - 1,
+            random);
+      }
+    }
+  }
+
+  @Test
+  public void testSameOrder() throws Exception {
+    Filesystem sequential = new Filesystem();
+    Filesystem parallel = new Filesystem();
+    parallel.setScanThreads(4);
+    IgnoredFileChecker checker = new IgnoredFileChecker();
+    FilePath root = testDir.resolve("tree");
+
+    sequential.setFilesystemScanSize(Integer.MAX_VALUE);
+    parallel.setFilesystemScanSize(Integer.MAX_VALUE);
+    List<String> all = toStrings(sequential.getFiles(root, "", checker));
+    assertEquals(all, toStrings(parallel.getFiles(root, "", checker)));
+    assertTrue(all.size() > 20);
+
+    // partial scans starting from any file must also match
+    for (int size : new int[] { 1, 7, 20 }) {
+      sequential.setFilesystemScanSize(size);
+      parallel.setFilesystemScanSize(size);
+
+      for (String from : all) {
+        List<String> expected
+            = toStrings(sequential.getFiles(root, from, checker));
+        assertEquals(size, expected.size());
+        assertEquals(expected,
+            toStrings(parallel.getFiles(root, from, checker)));
+      }
+    }
+  }
+
+  private static List<String> toStrings(List<File> files) {
+    return files.stream().map(File::toString).collect(Collectors.toList());
+  }
+
+  @Test
+  public void testLargeDirectory() throws Exception {
+    FilePath root = testDir.resolve("single");
+    FilePath dir = root.resolve("large");
+    dir.createDirectories();
+    List<String> expected = new ArrayList<>();
+
+    for (int i = 0; i < 1500; i++) {
+      String name = String.format("file%04d", i);
+      dir.resolve(name).write(new byte[0]);
+      expected.add("large/" + name);
+    }
+
+    // old enough to have its listing cached
+    dir.setLastModifiedTime(FileTime.fromMillis(1_000_000_000_000L));
+    Filesystem filesystem = new Filesystem();
+    filesystem.setFilesystemScanSize(100);
+    IgnoredFileChecker checker = new IgnoredFileChecker();
+
+    // each scan resumes from the last collected file
+    for (int n = 0; n < 2; n++) {
+      List<String> collected = new ArrayList<>();
+      String from = "large/file0000";
+
+      while (collected.size() < 1499) {
+        List<String> files = toStrings(filesystem.getFiles(root, from,
+            checker));
+        collected.addAll(files);
+        from = files.get(files.size() - 1);
+      }
+
+      assertEquals(expected.subList(1, 1500), collected.subList(0, 1499));
+    }
+
+    // a new file changes the modification time of the directory
+    dir.resolve("file0500a").write(new byte[0]);
+    dir.setLastModifiedTime(FileTime.fromMillis(1_100_000_000_000L));
+    assertEquals("large/file0500a", toStrings(filesystem.getFiles(root,
+        "large/file0500", checker)).get(0));
+  }
+}
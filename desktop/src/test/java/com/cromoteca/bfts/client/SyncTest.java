@@ -18,8 +18,10 @@ package com.cromoteca.bfts.client;
 
 import com.cromoteca.bfts.model.Source;
 import com.cromoteca.bfts.model.StorageConfiguration;
+import com.cromoteca.bfts.storage.EncryptedStorages;
 import com.cromoteca.bfts.storage.FileStatus;
 import com.cromoteca.bfts.storage.LocalStorage;
+import com.cromoteca.bfts.storage.Storage;
 import com.cromoteca.bfts.testutil.DirectoryWalker;
 import com.cromoteca.bfts.testutil.TestUtils;
 import com.cromoteca.bfts.util.FilePath;
@@ -158,6 +160,72 @@ public class SyncTest {
     assertFalse(d2.exists());
   }
 
+  @Test
+  public void testParallelUpload() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      paths[0].resolve("file" + i).write(TestUtils.randomBytes(50_000));
+    }
+
+    Filesystem fs = new Filesystem();
+    ClientActivities ca1
+        = new ClientActivities(clients[0], fs, storage, "mystorage", 30);
+    ClientActivities ca2
+        = new ClientActivities(clients[1], fs, storage, "mystorage", 30);
+    ca1.setMaxUploadStreams(4);
+
+    ca1.sendFiles(ca1.selectSource(false));
+    ca1.sendHashes(FileStatus.CURRENT);
+    int missing = ca1.getStats().getMissingChunks();
+    assertEquals(missing, ca1.uploadChunks(FileStatus.CURRENT));
+    assertEquals(0, ca1.getStats().getMissingChunks());
+
+    // ca2 receives all files in a single cycle
+    ca2.sendFilesAndSync(ca2.selectSource(false));
+
+    for (int i = 0; i < 10; i++) {
+      assertArrayEquals(paths[0].resolve("file" + i).readAllBytes(),
+          paths[1].resolve("file" + i).readAllBytes());
+    }
+  }
+
+  @Test
+  public void testStreamingUpload() throws Exception {
+    streamingUpload(storage);
+  }
+
+  @Test
+  public void testEncryptedStreamingUpload() throws Exception {
+    // the encrypted storage replaces hashes in the lists it receives
+    streamingUpload(EncryptedStorages.getEncryptedStorage(storage,
+        "nicepassword".toCharArray(), false));
+  }
+
+  private void streamingUpload(Storage s) throws Exception {
+    for (int i = 0; i < 5; i++) {
+      paths[0].resolve("streamed" + i).write(TestUtils.randomBytes(50_000));
+    }
+
+    Filesystem fs = new Filesystem();
+    ClientActivities ca1
+        = new ClientActivities(clients[0], fs, s, "mystorage", 30);
+    ClientActivities ca2
+        = new ClientActivities(clients[1], fs, s, "mystorage", 30);
+    ca1.setStreamingUpload(true);
+
+    ca1.sendFiles(ca1.selectSource(false));
+    assertEquals(5, ca1.sendHashes(FileStatus.CURRENT));
+    // all chunks have been uploaded while hashing
+    assertEquals(0, ca1.getStats().getMissingChunks());
+    assertEquals(0, ca1.uploadChunks(FileStatus.CURRENT));
+
+    ca2.sendFilesAndSync(ca2.selectSource(false));
+
+    for (int i = 0; i < 5; i++) {
+      assertArrayEquals(paths[0].resolve("streamed" + i).readAllBytes(),
+          paths[1].resolve("streamed" + i).readAllBytes());
+    }
+  }
+
   @Test
   public void testSyncAttributes1() throws Exception {
     assertFalse(sync(false, false));
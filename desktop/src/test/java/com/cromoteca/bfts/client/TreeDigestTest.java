@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.client;
+
+import com.cromoteca.bfts.model.File;
+import com.cromoteca.bfts.model.StorageConfiguration;
+import com.cromoteca.bfts.model.TreeDigest;
+import com.cromoteca.bfts.storage.LocalStorage;
+import com.cromoteca.bfts.storage.Storage;
+import com.cromoteca.bfts.testutil.DirectoryWalker;
+import com.cromoteca.bfts.testutil.TestUtils;
+import com.cromoteca.bfts.util.FilePath;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TreeDigestTest {
+  private FilePath testDir;
+  private FilePath sourceDir;
+  private final String client = "client";
+  private LocalStorage storage;
+  // number of files sent on each call
+  private final List<Integer> sent = new ArrayList<>();
+  private List<File> lastSent;
+  // names of the digest lookups
+  private final List<String> lookups = new ArrayList<>();
+  private Storage counting;
+  private ClientActivities ca;
+
+  @Before
+  public void setUp() throws Exception {
+    testDir = TestUtils.getTestDir(TreeDigestTest.class);
+    sourceDir = testDir.resolve("source");
+    storage = LocalStorage.init(testDir.resolve("storage"), false,
+        new StorageConfiguration());
+    storage.addSource(client, "source", sourceDir.toString());
+
+    for (String dir : new String[] { "a", "b" }) {
+      FilePath path = sourceDir.resolve(dir);
+      path.createDirectories();
+
+      for (int i = 0; i < 150; i++) {
+        path.resolve("f" + i).write(TestUtils.randomBytes(10));
+      }
+    }
+
+    sourceDir.resolve("c").write(TestUtils.randomBytes(10));
+
+    counting = (Storage) Proxy.newProxyInstance(
+        getClass().getClassLoader(), new Class[] { Storage.class },
+        (p, m, a) -> {
+      if (m.getName().startsWith("getTreeDigest")) {
+        lookups.add(m.getName());
+      }
+
+      if (m.getName().startsWith("addFiles")) {
+        lastSent = new ArrayList<>((List<File>) a[2]);
+        sent.add(lastSent.size());
+      }
+
+      try {
+        return m.invoke(storage, a);
+      } catch (InvocationTargetException ex) {
+        throw ex.getCause();
+      }
+    });
+
+    ca = new ClientActivities(client, new Filesystem(), counting, "mystorage",
+        30);
+    ca.setTreeDigests(true);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    storage.close();
+    DirectoryWalker.rmDirSilent(testDir);
+  }
+
+  @Test
+  public void testSkipUnchangedDirectories() throws Exception {
+    // no digests in the storage yet
+    ca.sendFiles(ca.selectSource(false));
+    assertEquals(303, (int) sent.get(0));
+    assertEquals(303, ca.getStats().getFiles());
+    int sourceId = ca.selectSource(false).getId();
+    TreeDigest tree = storage.getTreeDigest(sourceId, "", "a");
+    assertNotNull(tree);
+    assertEquals(150, tree.getSize());
+
+    // only directories and the file in the root are sent, and rows of
+    // unchanged contents are kept
+    storage.runSQL(session -> {
+      try (Statement statement = session.getConnection().createStatement()) {
+        statement.execute("create table inserted (name text)");
+        statement.execute("create trigger count_inserts after insert on files"
+            + " begin insert into inserted values (new.name); end");
+      }
+
+      return null;
+    });
+    lookups.clear();
+    ca.sendFiles(ca.selectSource(false));
+    assertEquals(3, (int) sent.get(1));
+    assertEquals(303, ca.getStats().getFiles());
+    assertNotNull(storage.getTreeDigest(sourceId, "", "a"));
+    // both directories are checked with a single call
+    assertEquals(Arrays.asList("getTreeDigests"), lookups);
+    assertEquals(3, (int) storage.runSQL(session -> {
+      try (Statement statement = session.getConnection().createStatement();
+          ResultSet rs = statement.executeQuery(
+              "select count(*) from inserted")) {
+        rs.next();
+        return rs.getInt(1);
+      }
+    }));
+
+    // changed directories are sent again
+    sourceDir.resolve("b").resolve("f0").write(TestUtils.randomBytes(20));
+    ca.sendFiles(ca.selectSource(false));
+    assertEquals(153, (int) sent.get(2));
+    assertEquals(303, ca.getStats().getFiles());
+
+    sourceDir.resolve("a").resolve("f0").delete();
+    ca.sendFiles(ca.selectSource(false));
+    assertEquals(152, (int) sent.get(3));
+    assertEquals(302, ca.getStats().getFiles());
+
+    ca.sendFiles(ca.selectSource(false));
+    assertEquals(3, (int) sent.get(4));
+    assertEquals(302, ca.getStats().getFiles());
+  }
+
+  @Test
+  public void testNestedDirectories() throws Exception {
+    for (String dir : new String[] { "x", "y" }) {
+      FilePath path = sourceDir.resolve("n").resolve(dir);
+      path.createDirectories();
+
+      for (int i = 0; i < 150; i++) {
+        path.resolve("f" + i).write(TestUtils.randomBytes(10));
+      }
+    }
+
+    sourceDir.resolve("z").write(TestUtils.randomBytes(10));
+
+    ca.sendFiles(ca.selectSource(false));
+    assertEquals(607, (int) sent.get(0));
+    int sourceId = ca.selectSource(false).getId();
+    assertEquals(302, storage.getTreeDigest(sourceId, "", "n").getSize());
+
+    ca.sendFiles(ca.selectSource(false));
+    assertEquals(5, (int) sent.get(1));
+
+    // n is sent again, but not its unchanged subdirectory x
+    sourceDir.resolve("n/y/f0").write(TestUtils.randomBytes(20));
+    ca.sendFiles(ca.selectSource(false));
+    assertEquals(157, (int) sent.get(2));
+    assertEquals(607, ca.getStats().getFiles());
+
+    // the digest of n counts the contents of x
+    TreeDigest tree = storage.getTreeDigest(sourceId, "", "n");
+    assertNotNull(tree);
+    assertEquals(302, tree.getSize());
+
+    ca.sendFiles(ca.selectSource(false));
+    assertEquals(5, (int) sent.get(3));
+    assertEquals(607, ca.getStats().getFiles());
+  }
+
+  @Test
+  public void testDirectoriesLargerThanScan() throws Exception {
+    Filesystem filesystem = new Filesystem();
+    filesystem.setFilesystemScanSize(100);
+    ClientActivities small = new ClientActivities(client, filesystem,
+        counting, "mystorage", 30);
+    small.setTreeDigests(true);
+    int sourceId = small.selectSource(false).getId();
+
+    // the contents of a are sent by two calls
+    small.sendFiles(small.selectSource(false));
+    assertEquals(100, (int) sent.get(0));
+    assertNull(storage.getTreeDigest(sourceId, "", "a"));
+
+    // the digest of a is sent with the end of its contents
+    small.sendFiles(small.selectSource(false));
+    TreeDigest tree = storage.getTreeDigest(sourceId, "", "a");
+    assertNotNull(tree);
+    assertEquals(150, tree.getSize());
+
+    // the contents of b are sent by three calls, then the scan starts again
+    // from the root and skips a
+    small.sendFiles(small.selectSource(false));
+    small.sendFiles(small.selectSource(false));
+    assertTrue(lastSent.stream().anyMatch(f -> f.getName().equals("a")));
+    assertTrue(lastSent.stream().noneMatch(f -> f.getParent().equals("a")));
+    assertEquals(303, small.getStats().getFiles());
+    assertNotNull(storage.getTreeDigest(sourceId, "", "a"));
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.compression;
+
+import com.cromoteca.bfts.model.StorageConfiguration;
+import com.cromoteca.bfts.testutil.TestUtils;
+import com.cromoteca.bfts.util.Compression;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChunkCodecsTest {
+  private static byte[] compressibleData() {
+    byte[] random = TestUtils.randomBytes(4096);
+    byte[] data = new byte[random.length * 8];
+
+    for (int i = 0; i < 8; i++) {
+      System.arraycopy(random, 0, data, i * random.length, random.length);
+    }
+
+    return data;
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    byte[] data = compressibleData();
+
+    for (ChunkCodec codec : Arrays.asList(new DeflateCodec(),
+        new DeflateCodec(1), new SnappyCodec(), new NoCodec())) {
+      byte[] encoded = ChunkCodecs.encode(codec, data);
+      assertArrayEquals(codec.getName(), data,
+          ChunkCodecs.decode(encoded, data.length));
+    }
+  }
+
+  @Test
+  public void testHeader() throws Exception {
+    byte[] data = compressibleData();
+    byte[] encoded = ChunkCodecs.encode(new SnappyCodec(), data);
+    assertEquals(ChunkCodecs.MAGIC, encoded[0]);
+    assertEquals(SnappyCodec.ID, encoded[1]);
+
+    // deflated chunks don't have a header, so older versions can read them
+    encoded = ChunkCodecs.encode(new DeflateCodec(), data);
+    assertArrayEquals(Compression.compress(data), encoded);
+  }
+
+  @Test
+  public void testLegacyChunks() throws Exception {
+    byte[] data = compressibleData();
+    byte[] legacy = Compression.compress(data);
+    assertArrayEquals(data, ChunkCodecs.decode(legacy, data.length));
+
+    // uncompressed chunks are stored as they are, whatever their content
+    data = TestUtils.randomBytes(4096);
+    data[0] = ChunkCodecs.MAGIC;
+    assertSame(data, ChunkCodecs.encode(new SnappyCodec(), data));
+    assertSame(data, ChunkCodecs.decode(data, data.length));
+  }
+
+  @Test
+  public void testConfiguration() {
+    StorageConfiguration config = new StorageConfiguration();
+    assertEquals(DeflateCodec.ID, ChunkCodecs.forConfiguration(config).getId());
+    config.setCompressionLevel(9);
+    assertEquals(9,
+        ((DeflateCodec) ChunkCodecs.forConfiguration(config)).getLevel());
+    config.setChunkCodec(ChunkCodecs.forName("snappy").getId());
+    assertTrue(ChunkCodecs.forConfiguration(config) instanceof SnappyCodec);
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.compression;
+
+import com.cromoteca.bfts.compression.CompressionPolicy.Decision;
+import com.cromoteca.bfts.model.File;
+import com.cromoteca.bfts.model.Source;
+import com.cromoteca.bfts.testutil.TestUtils;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CompressionPolicyTest {
+  private static File createFile(String name) {
+    Source source = new Source();
+    source.setRootPath("/root");
+    File file = new File(name, "dir", 1_000_000, 1000);
+    file.setSource(source);
+    return file;
+  }
+
+  private static byte[] text(int length) {
+    byte[] line = "The quick brown fox jumps over the lazy dog\n"
+        .getBytes(StandardCharsets.UTF_8);
+    byte[] data = new byte[length];
+
+    for (int i = 0; i < length; i++) {
+      data[i] = line[i % line.length];
+    }
+
+    return data;
+  }
+
+  @Test
+  public void testDecisions() {
+    CompressionPolicy policy = new CompressionPolicy();
+    byte[] random = TestUtils.randomBytes(65536);
+    assertEquals(Decision.COMPRESS,
+        policy.decide(createFile("a.txt"), 0, text(65536)));
+    assertEquals(Decision.SKIP_ENTROPY,
+        policy.decide(createFile("b.bin"), 0, random));
+    assertEquals(Decision.SKIP_EXTENSION,
+        policy.decide(createFile("c.JPG"), 65536, text(65536)));
+
+    byte[] gzip = text(65536);
+    gzip[0] = 0x1F;
+    gzip[1] = (byte) 0x8B;
+    assertEquals(Decision.SKIP_MAGIC, policy.decide(createFile("d"), 0, gzip));
+    // magic numbers are only checked at the beginning of files
+    assertEquals(Decision.COMPRESS,
+        policy.decide(createFile("e"), 65536, gzip));
+  }
+
+  @Test
+  public void testFileMemory() {
+    CompressionPolicy policy = new CompressionPolicy();
+    File file = createFile("f");
+    assertEquals(Decision.COMPRESS, policy.decide(file, 0, text(65536)));
+    policy.record(file, 0, false);
+    assertEquals(Decision.SKIP_FILE, policy.decide(file, 65536, text(65536)));
+
+    // a modified file is evaluated again
+    file.setLastModified(2000L);
+    assertEquals(Decision.COMPRESS, policy.decide(file, 65536, text(65536)));
+    assertEquals(50, policy.getHitRate());
+  }
+
+  @Test
+  public void testEntropy() {
+    byte[] zeros = new byte[4096];
+    assertEquals(0, CompressionPolicy.entropy(zeros, zeros.length), 0.001);
+
+    byte[] all = new byte[4096];
+
+    for (int i = 0; i < all.length; i++) {
+      all[i] = (byte) i;
+    }
+
+    assertEquals(8, CompressionPolicy.entropy(all, all.length), 0.001);
+  }
+}
@@ -18,7 +18,10 @@ package com.cromoteca.bfts.cryptography;
 
 import com.cromoteca.bfts.model.StorageConfiguration;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.AEADBadTagException;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -72,4 +75,119 @@ public class CryptographerTest {
     assertNotNull(decryptedMessage);
     assertArrayEquals(message, decryptedMessage);
   }
+
+  @Test
+  public void testAuthenticatedEncryption() throws GeneralSecurityException {
+    byte[] message = filePath.getBytes();
+    byte[] enc1 = cryptographer.encrypt(message, Cryptographer.Mode.GCM);
+    assertEquals(message.length + Cryptographer.GCM_OVERHEAD, enc1.length);
+    byte[] enc2 = cryptographer.encrypt(message, Cryptographer.Mode.GCM);
+    // random nonce
+    assertThat(enc2, not(equalTo(enc1)));
+    assertArrayEquals(message, cryptographer.decrypt(enc1));
+    assertArrayEquals(message, cryptographer.decrypt(enc2));
+
+    // CBC data is still recognized
+    byte[] cbc = cryptographer.encrypt(message);
+    assertArrayEquals(cbc,
+        cryptographer.encrypt(message, Cryptographer.Mode.CBC));
+    assertArrayEquals(message, cryptographer.decrypt(cbc));
+
+    enc1[enc1.length - 1] ^= 1;
+
+    try {
+      cryptographer.decrypt(enc1);
+      fail("Tampered data must be rejected");
+    } catch (AEADBadTagException ex) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testTamperedBlockSizeData() throws GeneralSecurityException {
+    // as long as a CBC result: tampered data must not be taken as CBC
+    byte[] message = new byte[34];
+    new SecureRandom().nextBytes(message);
+    byte[] enc = cryptographer.encrypt(message, Cryptographer.Mode.GCM);
+    assertEquals(0, enc.length % Cryptographer.IV_SIZE);
+
+    for (int i = 0; i < 4096; i++) {
+      byte[] tampered = enc.clone();
+      int position = Cryptographer.HEADER_SIZE
+          + i % (enc.length - Cryptographer.HEADER_SIZE);
+      tampered[position] ^= 1 + i / enc.length % 255;
+
+      try {
+        cryptographer.decrypt(tampered);
+        fail("Tampered data must be rejected");
+      } catch (AEADBadTagException ex) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void testCBCStartingWithHeader() throws Exception {
+    // find a CBC result that starts like the GCM format
+    MessageDigest md = MessageDigest.getInstance("MD5");
+    byte[] message = null;
+
+    for (int i = 0; message == null; i++) {
+      byte[] candidate = Integer.toString(i).getBytes();
+      byte[] digest = md.digest(candidate);
+
+      if (digest[0] == (byte) 0xC7 && digest[1] == 1) {
+        message = candidate;
+      }
+    }
+
+    byte[] cbc = cryptographer.encrypt(message);
+    assertArrayEquals(message, cryptographer.decrypt(cbc));
+  }
+
+  @Test
+  public void testAuthentication() throws GeneralSecurityException {
+    byte[] message = filePath.getBytes();
+    byte[] code = cryptographer.authenticate(message);
+    assertEquals(Cryptographer.MAC_SIZE, code.length);
+    cryptographer.verify(message, code);
+
+    try {
+      cryptographer.verify(message,
+          new Cryptographer(new byte[Cryptographer.KEY_SIZE])
+              .authenticate(message));
+      fail("Data authenticated with another key must be rejected");
+    } catch (AEADBadTagException ex) {
+      // expected
+    }
+
+    message[0] ^= 1;
+
+    try {
+      cryptographer.verify(message, code);
+      fail("Tampered data must be rejected");
+    } catch (AEADBadTagException ex) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testEncryptionInPlace() throws GeneralSecurityException {
+    byte[] message = new byte[100_000];
+    new SecureRandom().nextBytes(message);
+    byte[] buffer = new byte[message.length + Cryptographer.GCM_OVERHEAD + 10];
+    System.arraycopy(message, 0, buffer, 5 + Cryptographer.HEADER_SIZE,
+        message.length);
+
+    int length = cryptographer.encrypt(buffer, 5 + Cryptographer.HEADER_SIZE,
+        message.length, buffer, 5);
+    assertEquals(message.length + Cryptographer.GCM_OVERHEAD, length);
+
+    byte[] out = new byte[message.length];
+    assertEquals(message.length,
+        cryptographer.decrypt(buffer, 5, length, out, 0));
+    assertArrayEquals(message, out);
+    assertArrayEquals(message,
+        cryptographer.decrypt(Arrays.copyOfRange(buffer, 5, 5 + length)));
+  }
 }
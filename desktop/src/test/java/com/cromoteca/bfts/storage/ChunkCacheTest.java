@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.storage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Luciano Vernaschi (luciano at cromoteca.com)
+ */
+public class ChunkCacheTest {
+  @Test
+  public void testAdmission() {
+    ChunkCache cache = new ChunkCache(1000, 10);
+    byte[] hash = { 1 };
+    byte[] data = { 1, 2, 3 };
+
+    // first read: only remembered
+    assertNull(cache.get(hash));
+    cache.put(hash, data);
+    assertNull(cache.get(hash));
+
+    // second read: cached
+    cache.put(hash, data);
+    assertArrayEquals(data, cache.get(hash));
+    assertEquals(1, cache.getHits());
+    assertEquals(2, cache.getMisses());
+    assertEquals(3, cache.getSize());
+
+    cache.remove(hash);
+    assertNull(cache.get(hash));
+    assertEquals(0, cache.getSize());
+
+    // too large
+    byte[] large = { 2 };
+    cache.put(large, new byte[200]);
+    cache.put(large, new byte[200]);
+    assertNull(cache.get(large));
+  }
+
+  @Test
+  public void testEviction() {
+    ChunkCache cache = new ChunkCache(1000, 100);
+
+    for (byte i = 0; i < 10; i++) {
+      cache.put(new byte[] { i }, new byte[100]);
+      cache.put(new byte[] { i }, new byte[100]);
+    }
+
+    // the first chunk has been read recently
+    assertNotNull(cache.get(new byte[] { 0 }));
+
+    cache.put(new byte[] { 10 }, new byte[100]);
+    cache.put(new byte[] { 10 }, new byte[100]);
+    assertEquals(1000, cache.getSize());
+    assertEquals(1, cache.getEvictions());
+    assertNotNull(cache.get(new byte[] { 0 }));
+    assertNull(cache.get(new byte[] { 1 }));
+  }
+
+  @Test
+  public void testCopies() {
+    ChunkCache cache = new ChunkCache(1000, 10);
+    byte[] hash = { 1 };
+    byte[] data = { 1, 2, 3 };
+    cache.put(hash, data);
+    cache.put(hash, data);
+
+    // neither the offered array nor the returned one are shared
+    data[0] = 9;
+    cache.get(hash)[1] = 9;
+    assertArrayEquals(new byte[] { 1, 2, 3 }, cache.get(hash));
+  }
+}
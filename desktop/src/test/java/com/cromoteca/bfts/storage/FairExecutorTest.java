@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Luciano Vernaschi (luciano at cromoteca.com)
+ */
+public class FairExecutorTest {
+  @Test
+  public void testLimits() throws Exception {
+    FairExecutor executor = new FairExecutor("test", 1, 2, 2);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch latch = new CountDownLatch(1);
+    Runnable blocked = () -> {
+      try {
+        started.countDown();
+        latch.await();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    };
+
+    assertTrue(executor.execute("a", blocked));
+    // running tasks don't count as waiting
+    started.await();
+    assertTrue(executor.execute("a", () -> {}));
+    // too many tasks for the same client
+    assertFalse(executor.execute("a", () -> {}));
+    assertTrue(executor.execute("b", () -> {}));
+    // too many waiting tasks
+    assertFalse(executor.execute("c", () -> {}));
+
+    latch.countDown();
+    assertTrue(executor.awaitIdle(5000));
+    assertTrue(executor.execute("c", () -> {}));
+    assertTrue(executor.awaitIdle(5000));
+  }
+
+  @Test
+  public void testFairness() throws Exception {
+    FairExecutor executor = new FairExecutor("test", 1, 10, 10);
+    CountDownLatch latch = new CountDownLatch(1);
+    List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+    executor.execute("x", () -> {
+      try {
+        latch.await();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    });
+
+    for (String task : new String[] { "a1", "a2", "a3", "b1", "b2" }) {
+      executor.execute(task.substring(0, 1), () -> order.add(task));
+    }
+
+    latch.countDown();
+    assertTrue(executor.awaitIdle(5000));
+    // clients are served in turn
+    assertEquals(Arrays.asList("a1", "b1", "a2", "b2", "a3"), order);
+  }
+}
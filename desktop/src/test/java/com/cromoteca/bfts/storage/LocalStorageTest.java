@@ -36,10 +36,17 @@ import java.nio.file.NoSuchFileException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -283,6 +290,301 @@ public class LocalStorageTest {
     }
   }
 
+  @Test
+  public void testPackChunkFiles() throws Exception {
+    FilePath packedDir = storageDir.resolve("packed");
+    LocalStorage packed
+        = new LocalStorage(packedDir, false, new StorageConfiguration());
+
+    try {
+      List<byte[]> hashList = Arrays.asList("0123abcd".getBytes(),
+          "4567abcd".getBytes(), "89abcdef".getBytes());
+      Map<byte[], byte[]> data = new HashMap<>();
+      hashList.forEach(hash -> data.put(hash, TestUtils.randomBytes(4096)));
+
+      Iterator<byte[]> iterator = hashList.iterator();
+      packed.storeChunks(hashList, () -> data.get(iterator.next()));
+      assertEquals(3, packed.packChunkFiles());
+      assertTrue(packed.getStorageConfiguration().isPackedChunks());
+
+      try (Stream<FilePath> list = packed.getChunksDir().list()) {
+        assertEquals(0, list.count());
+      }
+
+      // new chunks go directly to the pack store
+      byte[] newHash = "cdef0123".getBytes();
+      data.put(newHash, TestUtils.randomBytes(4096));
+      assertEquals(1, packed.storeChunks(Arrays.asList(newHash),
+          () -> data.get(newHash)));
+
+      List<Pair<Long, byte[]>> list = new ArrayList<>();
+      hashList.forEach(hash -> list.add(new Pair<>(1L, hash)));
+      list.add(new Pair<>(2L, newHash));
+      IOSupplier<byte[]> supplier = packed.getChunkSupplier(list, 10);
+
+      for (Pair<Long, byte[]> pair : list) {
+        assertArrayEquals(data.get(pair.getSecond()), supplier.get());
+      }
+    } finally {
+      packed.close();
+    }
+  }
+
+  @Test
+  public void testConcurrentReads() throws Exception {
+    SQLScriptVars vars = storage.runSQL(session -> {
+      return new SQLScript().run(session.getConnection(),
+          getClass().getResource("LocalStorage.selectSource.sql"));
+    });
+    String clientName = vars.getString("clientName");
+    int expected = storage.selectSources(clientName).size();
+
+    // readers run in parallel and see data committed by the writer
+    List<Integer> sizes = IntStream.range(0, 32).parallel()
+        .mapToObj(i -> storage.selectSources(clientName).size())
+        .collect(Collectors.toList());
+    sizes.forEach(size -> assertEquals(expected, (int) size));
+  }
+
+  @Test
+  public void testConcurrentWrites() throws Exception {
+    SQLScript script = new SQLScript();
+    SQLScriptVars vars = script.getVariables();
+    int count = 64;
+    List<byte[]> hashList = IntStream.range(0, count)
+        .mapToObj(i -> String.format("zconcurrent%03d", i).getBytes())
+        .collect(Collectors.toList());
+
+    storage.runSQL(session -> {
+      script.run(session.getConnection(), "delete from hashes");
+
+      for (int i = 0; i < count; i++) {
+        script.run(session.getConnection(), String.format("insert into hashes"
+            + " (main, position, length, chunk) values ('main', %d, 1, X'%s')",
+            i, Hex.printHexBinary(hashList.get(i))));
+      }
+
+      return null;
+    });
+
+    // writes from many threads are grouped in shared transactions
+    hashList.parallelStream().forEach(hash -> {
+      storage.storeChunks(Arrays.asList(hash), () -> hash);
+    });
+
+    storage.runSQL(session -> {
+      return script.run(session.getConnection(),
+          "count :: select count(*) from hashes where uploaded is not null");
+    });
+    assertEquals(count, vars.getInt("count"));
+  }
+
+  @Test
+  public void testConcurrentUploadsOfSameChunk() throws Exception {
+    byte[] hash = "zsamechunk".getBytes();
+    byte[] data = TestUtils.randomBytes(100_000);
+
+    // parallel upload streams can send the same chunk at the same time
+    List<Integer> stored = IntStream.range(0, 16).parallel()
+        .mapToObj(i -> storage.storeChunks(Arrays.asList(hash), () -> data))
+        .collect(Collectors.toList());
+
+    stored.forEach(n -> assertEquals(1, (int) n));
+    assertArrayEquals(data, storage.getChunkPath(hash).readAllBytes());
+  }
+
+  @Test
+  public void testStoreManyChunks() throws Exception {
+    // more chunks than the ingest queue can hold
+    List<byte[]> hashes = IntStream.range(0, 50)
+        .mapToObj(i -> String.format("zingest%d", i).getBytes())
+        .collect(Collectors.toList());
+    List<byte[]> data = hashes.stream()
+        .map(hash -> TestUtils.randomBytes(1000))
+        .collect(Collectors.toList());
+
+    Iterator<byte[]> iterator = data.iterator();
+    assertEquals(50, storage.storeChunks(hashes, iterator::next));
+
+    for (int i = 0; i < hashes.size(); i++) {
+      assertArrayEquals(data.get(i),
+          storage.getChunkPath(hashes.get(i)).readAllBytes());
+    }
+
+    // chunks already on disk are not written again, unless their size differs
+    byte[] sameSize = TestUtils.randomBytes(1000);
+    byte[] otherSize = TestUtils.randomBytes(500);
+    iterator = Arrays.asList(sameSize, otherSize).iterator();
+    assertEquals(2, storage.storeChunks(hashes.subList(0, 2), iterator::next));
+    assertArrayEquals(data.get(0),
+        storage.getChunkPath(hashes.get(0)).readAllBytes());
+    assertArrayEquals(otherSize,
+        storage.getChunkPath(hashes.get(1)).readAllBytes());
+
+    // chunks read repeatedly end up in the cache
+    List<Pair<Long, byte[]>> list = hashes.subList(2, 12).stream()
+        .map(hash -> new Pair<>(1L, hash))
+        .collect(Collectors.toList());
+    long hits = storage.getChunkCache().getHits();
+
+    for (int n = 0; n < 3; n++) {
+      IOSupplier<byte[]> supplier = storage.getChunkSupplier(list, 10);
+
+      for (int i = 2; i < 12; i++) {
+        assertArrayEquals(data.get(i), supplier.get());
+      }
+
+      assertNull(supplier.get());
+    }
+
+    assertEquals(hits + 10, storage.getChunkCache().getHits());
+  }
+
+  @Test
+  public void testGetNotUploadedChunkHashes() throws Exception {
+    SQLScript script = new SQLScript();
+    List<byte[]> hashList = IntStream.range(0, 4)
+        .mapToObj(i -> String.format("znotuploaded%d", i).getBytes())
+        .collect(Collectors.toList());
+
+    storage.runSQL(session -> {
+      for (int i = 0; i < hashList.size(); i++) {
+        // only even chunks are uploaded
+        script.run(session.getConnection(), String.format("insert into hashes"
+            + " (main, position, length, chunk, uploaded) values"
+            + " ('znotuploaded', %d, 1, X'%s', %s)", i,
+            Hex.printHexBinary(hashList.get(i)), i % 2 == 0 ? "1" : "null"));
+      }
+
+      return null;
+    });
+
+    List<byte[]> query = new ArrayList<>(hashList);
+    query.add("zunknown".getBytes());
+    Set<String> result = storage.getNotUploadedChunkHashes(query).stream()
+        .map(Hex::printHexBinary).collect(Collectors.toSet());
+    assertEquals(new HashSet<>(Arrays.asList(
+        Hex.printHexBinary(hashList.get(1)),
+        Hex.printHexBinary(hashList.get(3)))), result);
+  }
+
+  @Test
+  public void testUpdateHashesWhileRemovingFiles() throws Exception {
+    SQLScript script = new SQLScript();
+    SQLScriptVars vars = storage.runSQL(session -> {
+      return script.run(session.getConnection(),
+          getClass().getResource("LocalStorage.addFiles.sql"));
+    });
+    storage.runSQL(session -> {
+      return script.run(session.getConnection(), "delete from hashes");
+    });
+
+    Source source = new Source();
+    source.setId(vars.getInt("sourceId"));
+    Hash hash = new Hash();
+    hash.setMain("racemain".getBytes());
+    hash.setChunks(Arrays.asList(createChunk(10, "race1".getBytes()),
+        createChunk(10, "race2".getBytes())));
+
+    File file1 = new File("file1", "dir1", 100, 1111);
+    file1.setSource(source);
+    file1.setHash(hash);
+    storage.updateHashes(Arrays.asList(file1));
+
+    // file2 gets the same hash while the only other file using it is removed
+    File file2 = new File("file2", "dir1", 200, 2222);
+    file2.setSource(source);
+    file2.setHash(hash);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    Future<?> removal = executor.submit(() -> storage.runSQL(session -> {
+      started.countDown();
+
+      try {
+        release.await();
+      } catch (InterruptedException ex) {
+        throw new IOException(ex);
+      }
+
+      return script.run(session.getConnection(),
+          "delete from files where name = 'file1'");
+    }));
+    started.await();
+    Future<?> update
+        = executor.submit(() -> storage.updateHashes(Arrays.asList(file2)));
+    // give the update the time to look for existing chunks
+    Thread.sleep(200);
+    release.countDown();
+    removal.get();
+    update.get();
+    executor.shutdown();
+
+    storage.runSQL(session -> {
+      return script.run(session.getConnection(),
+          "count :: select count(*) from hashes"
+          + " where main = cast('racemain' as blob)");
+    });
+    assertEquals(2, vars.getInt("count"));
+  }
+
+  @Test
+  public void testReclaimChunks() throws Exception {
+    SQLScript script = new SQLScript();
+    SQLScriptVars vars = storage.runSQL(session -> {
+      return script.run(session.getConnection(),
+          getClass().getResource("LocalStorage.addFiles.sql"));
+    });
+    storage.runSQL(session -> {
+      return script.run(session.getConnection(), "delete from hashes");
+    });
+    // empty the queue from chunks of other tests
+    storage.reclaimChunks();
+
+    Source source = new Source();
+    source.setId(vars.getInt("sourceId"));
+    byte[] x1 = "x1gc".getBytes();
+    byte[] x2 = "x2gc".getBytes();
+    byte[] x3 = "x3gc".getBytes();
+
+    File file1 = new File("file1", "dir1", 100, 1111);
+    file1.setSource(source);
+    Hash hash1 = new Hash();
+    hash1.setMain("gcmain1".getBytes());
+    hash1.setChunks(Arrays.asList(createChunk(10, x1), createChunk(10, x2)));
+    file1.setHash(hash1);
+
+    File file2 = new File("file2", "dir1", 200, 2222);
+    file2.setSource(source);
+    Hash hash2 = new Hash();
+    hash2.setMain("gcmain2".getBytes());
+    hash2.setChunks(Arrays.asList(createChunk(10, x2), createChunk(10, x3)));
+    file2.setHash(hash2);
+
+    storage.updateHashes(Arrays.asList(file1, file2));
+    List<byte[]> chunks = Arrays.asList(x1, x2, x3);
+    Iterator<byte[]> iterator = chunks.iterator();
+    assertEquals(3, storage.storeChunks(chunks, () -> iterator.next()));
+
+    // x1 is only used by file1, x2 is shared with file2
+    storage.runSQL(session -> {
+      return script.run(session.getConnection(),
+          "delete from files where name = 'file1'");
+    });
+
+    Pair<Integer, Long> reclaimed = storage.reclaimChunks();
+    assertEquals(1, (int) reclaimed.getFirst());
+    assertFalse(storage.getChunkPath(x1).exists());
+    assertTrue(storage.getChunkPath(x2).exists());
+    assertTrue(storage.getChunkPath(x3).exists());
+
+    storage.runSQL(session -> {
+      return script.run(session.getConnection(),
+          "count :: select count(*) from reclaim_queue");
+    });
+    assertEquals(0, vars.getInt("count"));
+  }
+
   @Test
   public void testKeyPair() throws Exception {
     StorageConfiguration sc = storage.getStorageConfiguration();
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.storage;
+
+import com.cromoteca.bfts.model.PackedChunk;
+import com.cromoteca.bfts.testutil.DirectoryWalker;
+import com.cromoteca.bfts.testutil.TestUtils;
+import com.cromoteca.bfts.util.FilePath;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PackStoreTest {
+  private FilePath dir;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = TestUtils.getTestDir(PackStoreTest.class);
+    DirectoryWalker.rmDirSilent(dir);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    DirectoryWalker.rmDirSilent(dir);
+  }
+
+  @Test
+  public void testAppendAndRead() throws Exception {
+    byte[] data1 = TestUtils.randomBytes(1000);
+    byte[] data2 = TestUtils.randomBytes(3000);
+
+    try (PackStore store = new PackStore(dir)) {
+      PackedChunk c1 = store.append("hash1".getBytes(), data1);
+      PackedChunk c2 = store.append("hash2".getBytes(), data2);
+      store.sync();
+
+      assertEquals(1, c1.getSegment());
+      assertArrayEquals(data1, store.read(c1));
+      assertArrayEquals(data2, store.read(c2));
+
+      // the active segment grows after being mapped
+      byte[] data3 = TestUtils.randomBytes(500);
+      PackedChunk c3 = store.append("hash3".getBytes(), data3);
+      assertArrayEquals(data3, store.read(c3));
+    }
+  }
+
+  @Test
+  public void testScanAndRepair() throws Exception {
+    try (PackStore store = new PackStore(dir)) {
+      store.append("hash1".getBytes(), TestUtils.randomBytes(100));
+      store.append("hash2".getBytes(), TestUtils.randomBytes(200));
+    }
+
+    FilePath segment = dir.resolve("00000001.pack");
+    long size = segment.size();
+
+    // simulate a crash while appending
+    try (OutputStream out = Files.newOutputStream(
+        segment.toFile().toPath(), StandardOpenOption.APPEND)) {
+      out.write(new byte[] { 0, 0, 0, 5, 'h', 'a' });
+    }
+
+    try (PackStore store = new PackStore(dir)) {
+      assertEquals(size, segment.size());
+      assertEquals(Arrays.asList(1), store.getSegments());
+
+      List<String> hashes = new ArrayList<>();
+      store.scan(1, chunk -> hashes.add(new String(chunk.getChunk())));
+      assertEquals(Arrays.asList("hash1", "hash2"), hashes);
+    }
+  }
+
+  @Test
+  public void testMarkedSegments() throws Exception {
+    try (PackStore store = new PackStore(dir)) {
+      store.append("hash1".getBytes(), TestUtils.randomBytes(100));
+    }
+
+    // simulate a segment that could not be deleted while mapped
+    FilePath segment = dir.resolve("00000001.pack");
+    segment.move(dir.resolve("00000002.pack"));
+    segment.write(new byte[] { 1, 2, 3 });
+    FilePath marker = dir.resolve("00000001.deleted");
+    marker.write(new byte[0]);
+
+    try (PackStore store = new PackStore(dir)) {
+      assertFalse(segment.exists());
+      assertFalse(marker.exists());
+      assertEquals(Arrays.asList(2), store.getSegments());
+      assertEquals(2, store.getActiveSegment());
+    }
+  }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.storage;
+
+import com.cromoteca.bfts.cryptography.Cryptographer;
+import com.cromoteca.bfts.model.Pair;
+import com.cromoteca.bfts.model.Source;
+import com.cromoteca.bfts.model.StorageConfiguration;
+import com.cromoteca.bfts.testutil.DirectoryWalker;
+import com.cromoteca.bfts.testutil.TestUtils;
+import com.cromoteca.bfts.util.FilePath;
+import com.cromoteca.bfts.util.lambdas.IOSupplier;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Luciano Vernaschi (luciano at cromoteca.com)
+ */
+public class RemoteStorageTest {
+  private static final char[] PASSWORD = "nicepassword".toCharArray();
+  private static final int PORT = 20203;
+  private static FilePath testDir;
+  private static LocalStorage localStorage;
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    testDir = TestUtils.getTestDir(RemoteStorageTest.class);
+    testDir.createDirectories();
+    StorageConfiguration config = new StorageConfiguration();
+    localStorage = new LocalStorage(testDir, true, config);
+    localStorage.addKeyPair(new Cryptographer(config.getSalt(), PASSWORD)
+        .generateKeyPair());
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception {
+    DirectoryWalker.rmDirSilent(testDir);
+  }
+
+  @Test
+  public void testFlowControlViolation() throws Exception {
+    try (ServerSocket serverSocket = new ServerSocket(0);
+        Socket client = new Socket("localhost", serverSocket.getLocalPort());
+        Socket socket = serverSocket.accept()) {
+      // the request is never read, so no room is given back
+      MultiplexedConnection connection
+          = new MultiplexedConnection(socket, channel -> {}, 10000);
+      DataOutputStream out = new DataOutputStream(client.getOutputStream());
+      ByteArrayOutputStream open = new ByteArrayOutputStream();
+      DataOutputStream openData = new DataOutputStream(open);
+      openData.writeUTF("path");
+      openData.writeShort(0);
+      writeFrame(out, 1, 1, open.toByteArray());
+      byte[] data = new byte[MultiplexedConnection.MAX_FRAME_SIZE];
+
+      try {
+        for (int sent = 0; sent <= MultiplexedConnection.WINDOW_SIZE;
+            sent += data.length) {
+          writeFrame(out, 1, 2, data);
+        }
+
+        client.setSoTimeout(10000);
+        assertEquals(-1, client.getInputStream().read());
+      } catch (IOException ex) {
+        // connection reset by the peer
+      }
+
+      assertFalse(connection.isOpen());
+    }
+  }
+
+  @Test
+  public void testMultiplexedResponseHeaders() throws Exception {
+    try (ServerSocket serverSocket = new ServerSocket(0);
+        Socket client = new Socket("localhost", serverSocket.getLocalPort());
+        Socket socket = serverSocket.accept()) {
+      MultiplexedConnection server
+          = new MultiplexedConnection(socket, channel -> {
+            try {
+              channel.setResponseHeader(RemoteStorage.RETRY_AFTER_HEADER, "7");
+              channel.sendResponse(503);
+              channel.close();
+            } catch (IOException ex) {
+              fail(ex.getMessage());
+            }
+          }, 10000);
+      MultiplexedConnection connection
+          = new MultiplexedConnection(client, null, 10000);
+      RemoteCall call = connection.open("path");
+
+      assertEquals(503, call.getResponseCode());
+      assertEquals("7",
+          call.getResponseHeader(RemoteStorage.RETRY_AFTER_HEADER));
+      assertNull(call.getResponseHeader("Other"));
+      connection.close();
+      server.close();
+    }
+  }
+
+  private static void writeFrame(DataOutputStream out, int id, int type,
+      byte[] payload) throws IOException {
+    out.writeInt(id);
+    out.writeByte(type);
+    out.writeInt(payload.length);
+    out.write(payload);
+    out.flush();
+  }
+
+  @Test
+  public void testMultiplexedConnection() throws Exception {
+    RemoteStorageServer server = new RemoteStorageServer(localStorage);
+    IntConsumer stop = server.startHTTPServer(PORT)
+        .andThen(server.startMultiplexedServer(PORT + 1));
+    Storage storage = EncryptedStorages.getEncryptedStorage(
+        RemoteStorage.create("localhost", PORT, PASSWORD), PASSWORD, false);
+
+    try {
+      storage.addSource("client", "multiplexed", "path/multiplexed");
+      byte[][] hashes = new byte[20][];
+      List<byte[]> hashList = new ArrayList<>();
+      Random random = new Random(0);
+
+      for (int i = 0; i < hashes.length; i++) {
+        hashes[i] = new byte[20];
+        random.nextBytes(hashes[i]);
+        hashList.add(hashes[i]);
+      }
+
+      // larger than a window, so that flow control is used
+      byte[] data = new byte[MultiplexedConnection.WINDOW_SIZE / 4];
+      random.nextBytes(data);
+      Iterator<byte[]> iterator = hashList.iterator();
+
+      // metadata calls run while chunks are being sent
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+      List<Future<Source>> futures = new ArrayList<>();
+
+      int stored = storage.storeChunks(hashList, () -> {
+        if (!iterator.hasNext()) {
+          return null;
+        }
+
+        iterator.next();
+        futures.add(executor.submit(
+            () -> storage.getSource("client", "multiplexed")));
+        return data;
+      });
+
+      assertEquals(hashes.length, stored);
+
+      for (Future<Source> future : futures) {
+        assertEquals("path/multiplexed", future.get().getRootPath());
+      }
+
+      executor.shutdown();
+    } finally {
+      stop.accept(0);
+    }
+  }
+
+  @Test
+  public void testBatch() throws Exception {
+    IntConsumer stop
+        = new RemoteStorageServer(localStorage).startHTTPServer(PORT);
+    Storage storage = EncryptedStorages.getEncryptedStorage(
+        RemoteStorage.create("localhost", PORT, PASSWORD), PASSWORD, true);
+
+    try {
+      StorageBatch batch = new StorageBatch(storage);
+      // calls run in order, so the source is found
+      batch.run(s -> s.addSource("batchclient", "batch", "path/batch"));
+      Supplier<Source> source
+          = batch.call(s -> s.getSource("batchclient", "batch"));
+      Supplier<Source> missing
+          = batch.call(s -> s.getSource("batchclient", "missing"));
+      batch.execute();
+      assertEquals("path/batch", source.get().getRootPath());
+      assertNull(missing.get());
+
+      try {
+        batch.call(s -> s.getChunkSupplier(new ArrayList<>(), 0));
+        fail("Streaming methods cannot be batched");
+      } catch (IllegalArgumentException ex) {
+        // expected
+      }
+
+      // storages that do not support batches run calls one at a time
+      batch = new StorageBatch(localStorage);
+      batch.run(s -> s.addSource("batchclient", "local", "path/local"));
+      source = batch.call(s -> s.getSource("batchclient", "local"));
+      batch.execute();
+      assertEquals("path/local", source.get().getRootPath());
+    } finally {
+      stop.accept(0);
+    }
+  }
+
+  @Test
+  public void testSessions() throws Exception {
+    IntConsumer stop
+        = new RemoteStorageServer(localStorage).startHTTPServer(PORT);
+    Storage storage = EncryptedStorages.getEncryptedStorage(
+        RemoteStorage.create("localhost", PORT, PASSWORD), PASSWORD, true,
+        Cryptographer.Mode.GCM);
+
+    try {
+      storage.addSource("client", "source", "path/dir");
+      Source source = storage.getSource("client", "source");
+      assertEquals("path/dir", source.getRootPath());
+    } finally {
+      stop.accept(0);
+    }
+
+    // a new server does not know the session: the client must open a new one
+    stop = new RemoteStorageServer(localStorage).startHTTPServer(PORT);
+
+    try {
+      assertEquals(1, storage.selectSources("client").size());
+    } finally {
+      stop.accept(0);
+    }
+  }
+
+  @Test
+  public void testPassThrough() throws Exception {
+    // records the payload header of each call, to see which path was used
+    List<String> payloads = new CopyOnWriteArrayList<>();
+    HttpServer http = startRecordingServer(payloads);
+    Storage storage = EncryptedStorages.getEncryptedStorage(
+        RemoteStorage.create("localhost", PORT, PASSWORD), PASSWORD, false,
+        Cryptographer.Mode.GCM);
+    Cryptographer crypto = new Cryptographer(
+        localStorage.getStorageConfiguration().getSalt(), PASSWORD);
+
+    try {
+      byte[] hash = "passthrough".getBytes();
+      byte[] data = TestUtils.randomBytes(10_000);
+      Iterator<byte[]> iterator = Arrays.asList(data).iterator();
+      assertEquals(1, storage.storeChunks(Arrays.asList(hash),
+          () -> iterator.hasNext() ? iterator.next() : null));
+      assertEquals(RemoteStorage.PASS_THROUGH,
+          payloads.get(payloads.size() - 1));
+
+      // the server stores chunks as encrypted by the client
+      byte[] stored
+          = localStorage.getChunkPath(crypto.encrypt(hash)).readAllBytes();
+      assertArrayEquals(data, crypto.decrypt(stored));
+
+      IOSupplier<byte[]> supplier = storage.getChunkSupplier(
+          Arrays.asList(new Pair<>(1L, hash)), 10);
+      assertArrayEquals(data, supplier.get());
+      assertNull(supplier.get());
+      supplier.end();
+      assertEquals(RemoteStorage.PASS_THROUGH,
+          payloads.get(payloads.size() - 1));
+    } finally {
+      http.stop(0);
+    }
+  }
+
+  @Test
+  public void testNoPassThroughWithCBC() throws Exception {
+    List<String> payloads = new CopyOnWriteArrayList<>();
+    HttpServer http = startRecordingServer(payloads);
+    // the CBC format would reveal a hash of each chunk
+    Storage storage = EncryptedStorages.getEncryptedStorage(
+        RemoteStorage.create("localhost", PORT, PASSWORD), PASSWORD, false);
+
+    try {
+      byte[] hash = "nopassthrough".getBytes();
+      byte[] data = TestUtils.randomBytes(10_000);
+      Iterator<byte[]> iterator = Arrays.asList(data).iterator();
+      assertEquals(1, storage.storeChunks(Arrays.asList(hash),
+          () -> iterator.hasNext() ? iterator.next() : null));
+      assertFalse(payloads.contains(RemoteStorage.PASS_THROUGH));
+
+      IOSupplier<byte[]> supplier = storage.getChunkSupplier(
+          Arrays.asList(new Pair<>(1L, hash)), 10);
+      assertArrayEquals(data, supplier.get());
+      assertNull(supplier.get());
+      supplier.end();
+      assertFalse(payloads.contains(RemoteStorage.PASS_THROUGH));
+    } finally {
+      http.stop(0);
+    }
+  }
+
+  /**
+   * Starts an HTTP server for the remote storage that adds the payload header
+   * of each call to a list.
+   */
+  private static HttpServer startRecordingServer(List<String> payloads)
+      throws Exception {
+    RemoteStorageServer server = new RemoteStorageServer(localStorage);
+    HttpServer http = HttpServer.create(new InetSocketAddress(PORT), 0);
+    http.createContext("/", e -> {
+      String payload
+          = e.getRequestHeaders().getFirst(RemoteStorage.PAYLOAD_HEADER);
+      payloads.add(payload == null ? "" : payload);
+      server.handle(e);
+    });
+    http.start();
+    return http;
+  }
+}
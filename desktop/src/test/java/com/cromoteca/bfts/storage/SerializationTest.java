@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.storage;
+
+import com.cromoteca.bfts.model.Chunk;
+import com.cromoteca.bfts.model.File;
+import com.cromoteca.bfts.model.Hash;
+import com.cromoteca.bfts.model.Pair;
+import com.cromoteca.bfts.model.Source;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SerializationTest {
+  // used to get a generic type
+  private List<File> type;
+  private List<Pair<Long, byte[]>> pairs;
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    List<File> files = Arrays.asList(new File("a", "dir", 10, 1000),
+        new File("b", "dir"));
+    byte[] data = Serialization.serialize(files);
+    List<File> result = Serialization.deserialize(
+        SerializationTest.class.getDeclaredField("type").getGenericType(),
+        data);
+    assertEquals(files, result);
+    assertEquals(10, result.get(0).getSize());
+    assertNull(Serialization.deserialize(String.class,
+        Serialization.serialize(null)));
+  }
+
+  @Test
+  public void testBinary() throws Exception {
+    Type fileList = SerializationTest.class.getDeclaredField("type")
+        .getGenericType();
+    Source source = new Source();
+    source.setName("source");
+    source.setSyncTarget(true);
+    List<File> files = new ArrayList<>();
+
+    for (int i = 0; i < 1000; i++) {
+      File file = new File("file" + i, "some/long/parent/dir" + i / 10,
+          i * 100, -i);
+      file.setId(i);
+      file.setSource(source);
+      Hash hash = new Hash();
+      hash.setMain(new byte[] { (byte) i, 1, 2 });
+      Chunk chunk = new Chunk();
+      chunk.setHash(new byte[20]);
+      chunk.setLength(i);
+      hash.getChunks().add(chunk);
+      file.setHash(hash);
+      files.add(file);
+    }
+
+    files.add(new File("dir", null));
+    files.add(null);
+
+    byte[] binary = Serialization.serialize(files, fileList, true);
+    byte[] json = Serialization.serialize(files);
+    assertTrue(binary.length < json.length);
+
+    List<File> result = Serialization.deserialize(fileList, binary);
+    assertEquals(files, result);
+
+    for (int i = 0; i < 1000; i++) {
+      File file = result.get(i);
+      assertEquals(i, file.getId());
+      assertEquals(i * 100, file.getSize());
+      assertEquals(-i, (long) file.getLastModified());
+      assertEquals("source", file.getSource().getName());
+      assertTrue(file.getSource().isSyncTarget());
+      assertFalse(file.getSource().isSyncSource());
+      assertArrayEquals(files.get(i).getHash().getMain(),
+          file.getHash().getMain());
+      assertEquals(i, file.getHash().getChunks().get(0).getLength());
+      assertEquals(-1, file.getHash().getChunks().get(0).getOffset());
+    }
+
+    assertNull(result.get(1000).getLastModified());
+    assertNull(result.get(1001));
+
+    // JSON is still understood
+    assertEquals(files, Serialization.deserialize(fileList, json));
+
+    Type pairList = SerializationTest.class.getDeclaredField("pairs")
+        .getGenericType();
+    List<Pair<Long, byte[]>> list = Arrays.asList(
+        new Pair<>(5L, new byte[] { 1 }), new Pair<>(null, null));
+    List<Pair<Long, byte[]>> pairResult = Serialization.deserialize(pairList,
+        Serialization.serialize(list, pairList, true));
+    assertEquals(5L, (long) pairResult.get(0).getFirst());
+    assertArrayEquals(new byte[] { 1 }, pairResult.get(0).getSecond());
+    assertNull(pairResult.get(1).getFirst());
+    assertNull(pairResult.get(1).getSecond());
+  }
+}
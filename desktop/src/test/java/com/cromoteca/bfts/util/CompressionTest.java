@@ -17,8 +17,11 @@
 package com.cromoteca.bfts.util;
 
 import com.cromoteca.bfts.testutil.TestUtils;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
@@ -37,4 +40,67 @@ public class CompressionTest {
     byte[] decompressed = Compression.decompress(compressed);
     assertArrayEquals(data, decompressed);
   }
+
+  @Test
+  public void testBuffers() throws IOException {
+    byte[] data = new byte[100_000];
+
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i % 100);
+    }
+
+    byte[] out = new byte[data.length];
+
+    // instances are reused from the pool
+    for (int i = 0; i < 100; i++) {
+      int length = Compression.compress(data, 0, data.length, 9, out, 10,
+          data.length - 10);
+      assertTrue(length > 0);
+      byte[] decompressed = new byte[data.length];
+      Compression.decompress(out, 10, length, decompressed, 0, data.length);
+      assertArrayEquals(data, decompressed);
+    }
+
+    // compression stops when data does not fit
+    byte[] random = TestUtils.randomBytes(16384);
+    assertEquals(-1, Compression.compress(random, 0, random.length, 6, out, 0,
+        random.length - 1));
+  }
+
+  @Test
+  public void testLargeData() throws IOException {
+    // grows the scratch buffer, then exceeds its maximum size
+    for (int size : new int[] { 100_000, 600_000, 300_000, 5_000_000 }) {
+      byte[] data = TestUtils.randomBytes(size);
+      byte[] compressed = Compression.compress(data);
+      assertArrayEquals(data, Compression.decompress(compressed));
+    }
+  }
+
+  @Test
+  public void testStreams() throws IOException {
+    byte[] data = TestUtils.randomBytes(1000);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+    try (OutputStream os = Compression.compressingStream(baos)) {
+      os.write(data);
+      os.write(data);
+    }
+
+    byte[] decompressed = new byte[data.length * 2];
+
+    try (InputStream is = Compression.decompressingStream(
+        new ByteArrayInputStream(baos.toByteArray()))) {
+      int n = 0;
+      int read;
+
+      while ((read = is.read(decompressed, n, decompressed.length - n)) > 0) {
+        n += read;
+      }
+
+      assertEquals(decompressed.length, n);
+    }
+
+    assertArrayEquals(Compression.decompress(baos.toByteArray()), decompressed);
+  }
 }
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.client;
+
+/**
+ * Splits file contents into chunks.
+ *
+ * @author Luciano Vernaschi (luciano at cromoteca.com)
+ */
+public interface Chunker {
+  /**
+   * Maximum length of a chunk.
+   */
+  int getMaxChunkSize();
+
+  /**
+   * Finds the end of the chunk that starts at the beginning of the passed data.
+   * The caller must pass at least {@link #getMaxChunkSize()} bytes, unless the
+   * end of the file has been reached, otherwise boundaries would depend on how
+   * the file is read.
+   *
+   * @param data   the buffer
+   * @param offset start of the chunk in the buffer
+   * @param length number of available bytes
+   * @return the length of the chunk
+   */
+  int cut(byte[] data, int offset, int length);
+}
@@ -18,6 +18,9 @@ package com.cromoteca.bfts.client;
 
 import com.cromoteca.bfts.client.Filesystem.CreationOutcome;
 import com.cromoteca.bfts.client.Filesystem.DeletionOutcome;
+import com.cromoteca.bfts.compression.ChunkCodec;
+import com.cromoteca.bfts.compression.ChunkCodecs;
+import com.cromoteca.bfts.compression.DeflateCodec;
 import com.cromoteca.bfts.model.Chunk;
 import com.cromoteca.bfts.model.DeletedFileInfo;
 import com.cromoteca.bfts.model.File;
@@ -25,8 +28,12 @@ import com.cromoteca.bfts.model.IgnoredFileChecker;
 import com.cromoteca.bfts.model.Pair;
 import com.cromoteca.bfts.model.Source;
 import com.cromoteca.bfts.model.Stats;
+import com.cromoteca.bfts.model.StorageConfiguration;
+import com.cromoteca.bfts.model.TreeDigest;
 import com.cromoteca.bfts.storage.FileStatus;
 import com.cromoteca.bfts.storage.Storage;
+import com.cromoteca.bfts.storage.StorageBatch;
+import com.cromoteca.bfts.storage.StorageException;
 import com.cromoteca.bfts.util.Counter;
 import com.cromoteca.bfts.util.FilePath;
 import com.cromoteca.bfts.util.Hex;
@@ -39,17 +46,30 @@ import java.nio.file.Paths;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.slf4j.Logger;
@@ -67,6 +87,20 @@ public class ClientActivities {
   private static final Logger log
       = LoggerFactory.getLogger(ClientActivities.class);
   private static final Logger syncLog = LoggerFactory.getLogger("sync");
+  /**
+   * Uploads shorter than this are not used to choose the number of streams.
+   */
+  private static final long MIN_MEASURED_UPLOAD_TIME = 1000;
+  /**
+   * Directories containing fewer files are always sent, since asking the
+   * storage for their digest would cost more than sending them.
+   */
+  private static final int MIN_TREE_DIGEST_SIZE = 100;
+  /**
+   * Digests requested at once for each file to scan, since the contents of
+   * skipped directories contain other directories with a digest.
+   */
+  private static final int TREE_DIGESTS_PER_FILE = 4;
 
   private final String client;
   private final Filesystem filesystem;
@@ -76,8 +110,26 @@ public class ClientActivities {
   private final Counter sequence;
   private int maxNumberOfFilesToHash = 200;
   private int maxNumberOfChunksToStore = 300;
+  private boolean streamingUpload;
+  private boolean treeDigests;
+  private long streamingBufferSize = 64 * 1024 * 1024;
+  private long readAheadBufferSize = 16 * 1024 * 1024;
+  private int maxUploadStreams = 1;
+  // current number of upload streams, adapted to the observed throughput
+  private int uploadStreams = 1;
+  // +1 or -1: the direction of the last change of uploadStreams
+  private int uploadStreamsStep = -1;
+  private double lastUploadThroughput;
+  // runs upload streams, created when more than one is used
+  private ThreadPoolExecutor uploadExecutor;
 
   private Map<Source, WatchKey> fsWatch;
+  // directories whose contents were not all sent by the last call, by source
+  private final Map<Integer, SentTrees> sentTrees = new ConcurrentHashMap<>();
+  private boolean storageConfigured;
+  private volatile ChunkCodec codec = new DeflateCodec();
+  // the filesystem is shared by all storages, so it can't hold this one
+  private volatile Chunker chunker;
 
   /**
    * Creates an instance with all required parameters (see details).
@@ -100,6 +152,7 @@ public class ClientActivities {
     this.storage = storage;
     this.connectionName = connectionName;
     this.longOperationDuration = longOperationDuration;
+    chunker = filesystem.getChunker();
     sequence = new Counter();
 
     if (Util.isWindows()) {
@@ -129,6 +182,88 @@ public class ClientActivities {
     this.maxNumberOfChunksToStore = maxNumberOfChunksToStore;
   }
 
+  /**
+   * When true, chunks are compressed and uploaded while hashing files, so files
+   * are read only once. Chunks that don't fit in the streaming buffer will be
+   * read again by {@link #uploadChunks(FileStatus, int...)}.
+   */
+  public boolean isStreamingUpload() {
+    return streamingUpload;
+  }
+
+  public void setStreamingUpload(boolean streamingUpload) {
+    this.streamingUpload = streamingUpload;
+  }
+
+  /**
+   * When true, the contents of large directories are not sent if their digest
+   * matches the one in the storage. Requires a storage that supports
+   * {@link Storage#addFilesWithDigests(int, long, List, List)}.
+   */
+  public boolean isTreeDigests() {
+    return treeDigests;
+  }
+
+  public void setTreeDigests(boolean treeDigests) {
+    this.treeDigests = treeDigests;
+  }
+
+  /**
+   * Maximum number of bytes of chunk content kept in memory while hashing
+   * files, when using streaming upload.
+   */
+  public long getStreamingBufferSize() {
+    return streamingBufferSize;
+  }
+
+  public void setStreamingBufferSize(long streamingBufferSize) {
+    this.streamingBufferSize = streamingBufferSize;
+  }
+
+  /**
+   * Maximum number of bytes of chunk content read ahead of uploads.
+   */
+  public long getReadAheadBufferSize() {
+    return readAheadBufferSize;
+  }
+
+  public void setReadAheadBufferSize(long readAheadBufferSize) {
+    this.readAheadBufferSize = readAheadBufferSize;
+  }
+
+  /**
+   * Maximum number of concurrent streams used to upload chunks. The number
+   * of streams actually used changes after each upload, looking for the one
+   * that gives the best throughput.
+   */
+  public int getMaxUploadStreams() {
+    return maxUploadStreams;
+  }
+
+  public synchronized void setMaxUploadStreams(int maxUploadStreams) {
+    if (maxUploadStreams < 1) {
+      throw new IllegalArgumentException("At least one upload stream is"
+          + " required");
+    }
+
+    // start from the maximum, then look for fewer streams
+    this.maxUploadStreams = maxUploadStreams;
+    uploadStreams = maxUploadStreams;
+    uploadStreamsStep = -1;
+    lastUploadThroughput = 0;
+
+    if (uploadExecutor != null) {
+      // the maximum size can't be smaller than the core size
+      if (maxUploadStreams > uploadExecutor.getMaximumPoolSize()) {
+        uploadExecutor.setMaximumPoolSize(maxUploadStreams);
+        uploadExecutor.setCorePoolSize(maxUploadStreams);
+      } else {
+        uploadExecutor.setCorePoolSize(maxUploadStreams);
+        uploadExecutor.setMaximumPoolSize(maxUploadStreams);
+      }
+    }
+  }
+
   public Storage getStorage() {
     return storage;
   }
@@ -192,11 +327,40 @@ public class ClientActivities {
         .findFirst().orElse(sources.get(0));
   }
 
+  /**
+   * Sends file information to backup, then syncs deletions and additions made
+   * by other clients. Storage calls are batched, so that only a few requests
+   * are needed when the storage is remote.
+   *
+   * @return the number of sent, deleted and added files
+   */
+  public int sendFilesAndSync(Source source) {
+    StorageBatch batch = new StorageBatch(storage);
+    // the deletion list is requested after file information has been stored
+    Supplier<Integer> sent = sendFiles(source, batch);
+    Supplier<List<File>> deletions = requestDeletions(source, false, batch);
+    batch.execute();
+    int count = sent.get();
+    count += deleteFiles(source, deletions.get(), batch).size();
+    // deletions are marked before the new file list is requested
+    Supplier<List<File>> additions = requestAdditions(source, false, batch);
+    batch.execute();
+    count += copyNewFiles(source, additions.get()).size();
+    return count;
+  }
+
   /**
    * Sends file information to backup. Name, size and date are collected for a
    * number of files, then all this information is sent to the storage.
    */
   public int sendFiles(Source source) {
+    StorageBatch batch = new StorageBatch(storage);
+    Supplier<Integer> count = sendFiles(source, batch);
+    batch.execute();
+    return count.get();
+  }
+
+  private Supplier<Integer> sendFiles(Source source, StorageBatch batch) {
     int count = 0;
 
     // we must always check that the source is still available: availability can
@@ -211,9 +375,16 @@ public class ClientActivities {
           lastPath = source.getRootPath();
         }
 
+        // digests of the directories whose contents have been checked
+        Map<File, TreeDigest> digests = new IdentityHashMap<>();
+        Filesystem.TreeFilter filter = !treeDigests ? null
+            : getTreeFilter(source, digests);
+
         // collect files (may take some time)
         List<File> files = filesystem.getFiles(FilePath.get(source.getRootPath()),
-            lastPath, source.getIgnoredFileChecker());
+            lastPath, source.getIgnoredFileChecker(), filter);
+        List<TreeDigest> trees = !treeDigests ? Collections.emptyList()
+            : getTreeDigests(source, files, digests);
 
         count = files.size();
 
@@ -221,17 +392,133 @@ public class ClientActivities {
         if (count > 0 && source.isAvailable()) {
           TaskDuration duration = new TaskDuration();
           // send file information to storage (returns the number of new files)
-          count = storage.addFiles(source.getId(),
-              source.getNewestFile().getId(), files);
-          log.debug("{}-{}->{}: sent {} files in {} seconds ({} files are new)",
-              client, source, connectionName, files.size(), duration, count);
+          Supplier<Integer> added = batch.call(s -> trees.isEmpty()
+              ? s.addFiles(source.getId(), source.getNewestFile().getId(),
+                  files)
+              : s.addFilesWithDigests(source.getId(),
+                  source.getNewestFile().getId(), files, trees));
+
+          return () -> {
+            int newFiles = added.get();
+            log.debug("{}-{}->{}: sent {} files in {} seconds ({} files are "
+                + "new)", client, source, connectionName, files.size(),
+                duration, newFiles);
+            return newFiles;
+          };
         }
       } catch (IOException ex) {
         log.error(null, ex);
       }
     }
 
-    return count;
+    int result = count;
+    return () -> result;
+  }
+
+  /**
+   * Returns a filter that skips directories whose digest matches the one in
+   * the storage. The digests of the directories that the list of files is
+   * going to contain are requested with a single call, and the storage is
+   * only asked again for directories found beyond them.
+   *
+   * @param digests filled with the digests of the checked directories
+   */
+  private Filesystem.TreeFilter getTreeFilter(Source source,
+      Map<File, TreeDigest> digests) {
+    int max = filesystem.getFilesystemScanSize() * TREE_DIGESTS_PER_FILE;
+    List<TreeDigest> list = storage.getTreeDigests(source.getId(), max);
+    // no other directory of the source has a digest
+    boolean complete = list.size() < max;
+    Map<Pair<String, String>, TreeDigest> stored = new HashMap<>();
+    list.forEach(tree
+        -> stored.put(new Pair<>(tree.getParent(), tree.getName()), tree));
+
+    return (directory, digest, size) -> {
+      if (size < MIN_TREE_DIGEST_SIZE) {
+        return false;
+      }
+
+      Pair<String, String> key
+          = new Pair<>(directory.getParent(), directory.getName());
+      TreeDigest previous = complete || stored.containsKey(key)
+          ? stored.get(key) : storage.getTreeDigest(source.getId(),
+              directory.getParent(), directory.getName());
+      TreeDigest tree = new TreeDigest();
+      tree.setDigest(digest);
+      tree.setSize(size);
+      tree.setSkipped(previous != null && previous.getSize() == size
+          && Arrays.equals(previous.getDigest(), digest));
+      digests.put(directory, tree);
+      return tree.isSkipped();
+    };
+  }
+
+  /**
+   * Returns the digests to send with a list of files. The digest of a
+   * directory that has not been skipped is only sent once all its contents
+   * have been sent, and if they are as many as when the digest was computed,
+   * since the directory may have changed in the meanwhile. The contents of a
+   * skipped subdirectory count as sent, since the storage keeps them. When
+   * the list ends inside a directory, its digest is sent with one of the next
+   * lists, referring to the rows already added.
+   */
+  private List<TreeDigest> getTreeDigests(Source source, List<File> files,
+      Map<File, TreeDigest> digests) {
+    List<TreeDigest> trees = new ArrayList<>();
+    // directories whose contents are being sent, outermost first
+    Deque<OpenTree> open = new ArrayDeque<>();
+    SentTrees previous = sentTrees.remove(source.getId());
+
+    if (previous != null && previous.isContinuedBy(source.getNewestFile())) {
+      for (OpenTree openTree : previous.open) {
+        // the directory is followed by the rows already added
+        openTree.tree.setIndex(-openTree.rows - 1);
+        open.add(openTree);
+      }
+    }
+
+    boolean lastSkipped = false;
+
+    for (int i = 0; i < files.size(); i++) {
+      File file = files.get(i);
+
+      while (!open.isEmpty() && !isInside(file, open.peekLast().directory)) {
+        OpenTree closed = open.pollLast();
+
+        if (closed.rows == closed.tree.getSize()) {
+          trees.add(closed.tree);
+        }
+      }
+
+      TreeDigest tree = digests.remove(file);
+      lastSkipped = tree != null && tree.isSkipped();
+      int rows = lastSkipped ? tree.getSize() + 1 : 1;
+      open.forEach(openTree -> openTree.rows += rows);
+
+      if (tree != null) {
+        tree.setIndex(i);
+
+        if (tree.isSkipped()) {
+          trees.add(tree);
+        } else {
+          open.add(new OpenTree(file, tree));
+        }
+      }
+    }
+
+    if (!files.isEmpty() && !open.isEmpty()) {
+      sentTrees.put(source.getId(), new SentTrees(files.get(files.size() - 1),
+          lastSkipped, open));
+    }
+
+    return trees;
+  }
+
+  private static boolean isInside(File file, File directory) {
+    String path = directory.getParent().isEmpty() ? directory.getName()
+        : directory.getParent() + '/' + directory.getName();
+    return file.getParent().equals(path)
+        || file.getParent().startsWith(path + '/');
   }
 
   /**
@@ -242,56 +529,76 @@ public class ClientActivities {
    * @return number of deleted files
    */
   public List<File> syncDeletions(Source source, boolean allTime) {
+    StorageBatch batch = new StorageBatch(storage);
+    Supplier<List<File>> deletedFiles
+        = requestDeletions(source, allTime, batch);
+    batch.execute();
+    List<File> deleted = deleteFiles(source, deletedFiles.get(), batch);
+    batch.execute();
+    return deleted;
+  }
+
+  private Supplier<List<File>> requestDeletions(Source source, boolean allTime,
+      StorageBatch batch) {
     // as always, make sure that the source is still available
     if (source.isSyncTarget() && source.isAvailable()) {
       // get deleted files from storage
-      List<File> deletedFiles
-          = storage.getFilesDeletedFromOtherClients(source.getId(), allTime);
-      // take note of successful deletions
-      List<File> successfullyDeletedFiles = new ArrayList<>();
-      deletedFiles.removeIf(source.getIgnoredFileChecker()::checkMatched);
-
-      if (!deletedFiles.isEmpty()) {
-        // sort deletions so that dir1/dir2/file.txt comes before dir1/dir2,
-        // otherwise dir2 cannot be deleted
-        deletedFiles.sort((f1, f2) -> FilePath.get(f2.toString())
-            .compareTo(FilePath.get(f1.toString())));
-        FilePath root = FilePath.get(source.getRootPath());
+      return batch.call(s
+          -> s.getFilesDeletedFromOtherClients(source.getId(), allTime));
+    }
 
-        for (File file : deletedFiles) {
-          if (source.isAvailable()) {
-            try {
-              FilePath path = file.getPath(source.getRootPath());
-              DeletionOutcome result
-                  = filesystem.deleteFile(file, path, root);
-              log.debug("{}->{}: deletion of file {}: {}", connectionName,
-                  client, path, result);
-
-              if (result != DeletionOutcome.FAILED) {
-                successfullyDeletedFiles.add(file);
-                syncLog.info("{}: {} ({} bytes, hash {})", path, result,
-                    file.getSize(), file.getHash());
-              }
-            } catch (IOException ex) {
-              log.error(null, ex);
+    return ArrayList::new;
+  }
+
+  /**
+   * Deletes files, then adds to the batch the call that marks them as deleted.
+   */
+  private List<File> deleteFiles(Source source, List<File> deletedFiles,
+      StorageBatch batch) {
+    // take note of successful deletions
+    List<File> successfullyDeletedFiles = new ArrayList<>();
+    deletedFiles.removeIf(source.getIgnoredFileChecker()::checkMatched);
+
+    if (!deletedFiles.isEmpty()) {
+      // sort deletions so that dir1/dir2/file.txt comes before dir1/dir2,
+      // otherwise dir2 cannot be deleted
+      deletedFiles.sort((f1, f2) -> FilePath.get(f2.toString())
+          .compareTo(FilePath.get(f1.toString())));
+      FilePath root = FilePath.get(source.getRootPath());
+
+      for (File file : deletedFiles) {
+        if (source.isAvailable()) {
+          try {
+            FilePath path = file.getPath(source.getRootPath());
+            DeletionOutcome result
+                = filesystem.deleteFile(file, path, root);
+            log.debug("{}->{}: deletion of file {}: {}", connectionName,
+                client, path, result);
+
+            if (result != DeletionOutcome.FAILED) {
+              successfullyDeletedFiles.add(file);
+              syncLog.info("{}: {} ({} bytes, hash {})", path, result,
+                  file.getSize(), file.getHash());
             }
+          } catch (IOException ex) {
+            log.error(null, ex);
           }
         }
+      }
 
-        if (!successfullyDeletedFiles.isEmpty()) {
-          // files will be identified by their IDs, so this is only correct
-          // if sendFiles has not been called meanwhile
-          storage.markFilesDeletedFromSync(successfullyDeletedFiles.stream()
-              // map every file to id and deletion time
-              .map(file -> new Pair<>(file.getId(), file.getSyncTime()))
-              .collect(Collectors.toList()));
-          log.debug("{} files have been deleted", successfullyDeletedFiles.size());
-          return successfullyDeletedFiles;
-        }
+      if (!successfullyDeletedFiles.isEmpty()) {
+        // files will be identified by their IDs, so this is only correct
+        // if sendFiles has not been called meanwhile
+        List<Pair<Long, Long>> deletions = successfullyDeletedFiles.stream()
+            // map every file to id and deletion time
+            .map(file -> new Pair<>(file.getId(), file.getSyncTime()))
+            .collect(Collectors.toList());
+        batch.run(s -> s.markFilesDeletedFromSync(deletions));
+        log.debug("{} files have been deleted", successfullyDeletedFiles.size());
       }
     }
 
-    return Collections.emptyList();
+    return successfullyDeletedFiles;
   }
 
   /**
@@ -300,74 +607,87 @@ public class ClientActivities {
    * @return number of added files
    */
   public List<File> syncAdditions(Source source, boolean allTime) {
-    List<File> added = new ArrayList<>();
+    StorageBatch batch = new StorageBatch(storage);
+    Supplier<List<File>> newFiles = requestAdditions(source, allTime, batch);
+    batch.execute();
+    return copyNewFiles(source, newFiles.get());
+  }
 
+  private Supplier<List<File>> requestAdditions(Source source, boolean allTime,
+      StorageBatch batch) {
     if (source.isSyncTarget() && source.isAvailable()) {
-      try {
-        List<File> newFiles
-            = storage.getNewFilesFromOtherClients(source.getId(), allTime);
-        newFiles.removeIf(source.getIgnoredFileChecker()::checkMatched);
+      return batch.call(s
+          -> s.getNewFilesFromOtherClients(source.getId(), allTime));
+    }
 
-        if (newFiles.size() > 0) {
-          log.debug("Received {} files that are new on other clients",
-              newFiles.size());
-        }
+    return ArrayList::new;
+  }
 
-        if (!newFiles.isEmpty()) {
-          FilePath root = FilePath.get(source.getRootPath());
-          List<Pair<FilePath, File>> files = newFiles.stream()
-              // the real file path is needed too
-              .map(file -> new Pair<>(file.getPath(source.getRootPath()), file))
-              // exclude already existing files
-              .filter(pair -> !pair.getFirst().exists())
-              .collect(Collectors.toList());
-
-          if (source.isAvailable()) {
-            log.debug("{} files out of {} can be created", files.size(),
-                newFiles.size());
-            // create trivial files (directories and empty files)
-            files = filesystem.createFiles(files, root, afterNewFile(added,
-                source.getRootPath()));
-            // remaining files
-            log.debug("{} files must be downloaded from servers", files.size());
-
-            // list the hashes of all chunks that must be requested on server
-            // (order is important!)
-            List<Pair<Long, byte[]>> hashes = files.stream()
-                .flatMap(pair -> {
-                  File file = pair.getSecond();
-                  List<Chunk> chunks = file.getHash().getChunks();
-                  return chunks.stream().map(chunk
-                      -> new Pair<>(file.getId(), chunk.getHash()));
-                }).collect(Collectors.toList());
-
-            log.debug("{} chunks will be requested to server", hashes.size());
-
-            // will provide chunk data when requested
-            IOSupplier<byte[]> bytesFromStorage
-                = storage.getChunkSupplier(hashes, longOperationDuration);
-            // actual file download
-            filesystem.getFilesFromStorage(files, root, bytesFromStorage,
-                afterNewFile(added, source.getRootPath()));
-            // close connection
-            bytesFromStorage.end();
-
-            int count = added.size();
-
-            if (count > 0) {
-              // storage must know immediately that those files have been added,
-              // so it won't try to add them again and it will remember the
-              // original creation time, instead of marking files as created
-              // when synced
-              storage.markFilesAddedFromSync(source.getId(), added);
-              log.debug("{}->{}-{}: received {} files", connectionName, client,
-                  source, count);
-            }
+  private List<File> copyNewFiles(Source source, List<File> newFiles) {
+    List<File> added = new ArrayList<>();
+
+    try {
+      newFiles.removeIf(source.getIgnoredFileChecker()::checkMatched);
+
+      if (newFiles.size() > 0) {
+        log.debug("Received {} files that are new on other clients",
+            newFiles.size());
+      }
+
+      if (!newFiles.isEmpty()) {
+        FilePath root = FilePath.get(source.getRootPath());
+        List<Pair<FilePath, File>> files = newFiles.stream()
+            // the real file path is needed too
+            .map(file -> new Pair<>(file.getPath(source.getRootPath()), file))
+            // exclude already existing files
+            .filter(pair -> !pair.getFirst().exists())
+            .collect(Collectors.toList());
+
+        if (source.isAvailable()) {
+          log.debug("{} files out of {} can be created", files.size(),
+              newFiles.size());
+          // create trivial files (directories and empty files)
+          files = filesystem.createFiles(files, root, afterNewFile(added,
+              source.getRootPath()));
+          // remaining files
+          log.debug("{} files must be downloaded from servers", files.size());
+
+          // list the hashes of all chunks that must be requested on server
+          // (order is important!)
+          List<Pair<Long, byte[]>> hashes = files.stream()
+              .flatMap(pair -> {
+                File file = pair.getSecond();
+                List<Chunk> chunks = file.getHash().getChunks();
+                return chunks.stream().map(chunk
+                    -> new Pair<>(file.getId(), chunk.getHash()));
+              }).collect(Collectors.toList());
+
+          log.debug("{} chunks will be requested to server", hashes.size());
+
+          // will provide chunk data when requested
+          IOSupplier<byte[]> bytesFromStorage
+              = storage.getChunkSupplier(hashes, longOperationDuration);
+          // actual file download
+          filesystem.getFilesFromStorage(files, root, bytesFromStorage,
+              afterNewFile(added, source.getRootPath()));
+          // close connection
+          bytesFromStorage.end();
+
+          int count = added.size();
+
+          if (count > 0) {
+            // storage must know immediately that those files have been added,
+            // so it won't try to add them again and it will remember the
+            // original creation time, instead of marking files as created
+            // when synced
+            storage.markFilesAddedFromSync(source.getId(), added);
+            log.debug("{}->{}-{}: received {} files", connectionName, client,
+                source, count);
           }
         }
-      } catch (IOException ex) {
-        log.error(null, ex);
       }
+    } catch (IOException ex) {
+      log.error(null, ex);
     }
 
     return added;
@@ -488,6 +808,7 @@ public class ClientActivities {
    */
   public int sendHashes(FileStatus status, int... sourceIds) {
     try {
+      configureStorage();
       List<File> files = storage.getNotHashedFiles(client, status.getCode(),
           maxNumberOfFilesToHash, sourceIds);
 
@@ -495,14 +816,49 @@ public class ClientActivities {
         // collect successfully hashes files
         List<File> hashedFiles = new ArrayList<>();
         TaskDuration duration = new TaskDuration(longOperationDuration * 1000);
+        // files being hashed, in the same order they have been returned
+        Deque<Pair<File, Future<Boolean>>> pending = new ArrayDeque<>();
+        int threads = filesystem.getHashingThreads();
+        // keep all threads busy, without starting too many files that would
+        // be wasted if the timeout is reached
+        int window = threads == 1 ? 1 : threads * 2;
+        Iterator<File> iterator = files.iterator();
+        boolean timedOut = false;
+        // chunk content read while hashing, by chunk hash
+        Map<String, byte[]> streamed = new ConcurrentHashMap<>();
+        AtomicLong streamedBytes = new AtomicLong();
+
+        while (true) {
+          while (!timedOut && pending.size() < window && iterator.hasNext()) {
+            File file = iterator.next();
+            // the hash method checks file existence, so isAvailable is not
+            // needed
+            BiConsumer<Chunk, byte[]> chunkConsumer = !streamingUpload ? null
+                : (chunk, data) -> streamChunk(file, chunk, data, streamed,
+                    streamedBytes);
+            pending.add(new Pair<>(file,
+                filesystem.submitHash(file, chunker, chunkConsumer)));
+          }
 
-        for (File file : files) {
-          // the hash method checks file existence, so isAvailable is not needed
-          if (filesystem.hash(file)) {
-            hashedFiles.add(file);
+          Pair<File, Future<Boolean>> next = pending.poll();
+
+          if (next == null) {
+            break;
           }
 
-          if (duration.timedOut()) {
+          if (Boolean.TRUE.equals(getResult(next.getSecond()))) {
+            hashedFiles.add(next.getFirst());
+          }
+
+          if (!timedOut && duration.timedOut()) {
+            timedOut = true;
+          }
+
+          // after the timeout, only keep files already hashed, as long as
+          // they are contiguous, so files are still sent in order
+          if (timedOut && !pending.isEmpty()
+              && !pending.peek().getSecond().isDone()) {
+            pending.forEach(pair -> pair.getSecond().cancel(false));
             break;
           }
         }
@@ -512,6 +868,10 @@ public class ClientActivities {
           storage.updateHashes(hashedFiles);
           log.debug("{}->{}: {} files hashed in {} seconds", client,
               connectionName, hashedFiles.size(), duration);
+
+          if (!streamed.isEmpty()) {
+            uploadStreamedChunks(streamed);
+          }
         }
 
         return hashedFiles.size();
@@ -523,12 +883,102 @@ public class ClientActivities {
     return 0;
   }
 
+  /**
+   * Compresses and keeps a chunk read while hashing a file, if it fits in the
+   * streaming buffer. Chunks that don't fit will be read again when uploaded.
+   */
+  private void streamChunk(File file, Chunk chunk, byte[] data,
+      Map<String, byte[]> streamed, AtomicLong streamedBytes) {
+    if (streamedBytes.get() < streamingBufferSize) {
+      try {
+        byte[] stored = filesystem.compressChunk(chunk, file,
+            chunk.getOffset(), data, codec);
+        String key = Hex.printHexBinary(chunk.getHash());
+
+        if (streamed.putIfAbsent(key, stored) == null) {
+          streamedBytes.addAndGet(stored.length);
+        }
+      } catch (IOException ex) {
+        log.warn(null, ex);
+      }
+    }
+  }
+
+  /**
+   * Uploads chunks read while hashing, skipping those already known to the
+   * storage.
+   *
+   * @param streamed chunk content by chunk hash
+   */
+  private void uploadStreamedChunks(Map<String, byte[]> streamed) {
+    TaskDuration duration = new TaskDuration(longOperationDuration * 1000);
+    List<byte[]> hashes = storage.getNotUploadedChunkHashes(streamed.keySet()
+        .stream().map(Hex::parseHexBinary).collect(Collectors.toList()));
+
+    if (!hashes.isEmpty()) {
+      // an encrypted storage replaces the hashes in the passed list
+      Iterator<byte[]> iterator = new ArrayList<>(hashes).iterator();
+
+      // as in uploadChunks, remaining chunks will be uploaded later
+      int count = storage.storeChunks(hashes, () -> {
+        if (!duration.timedOut() && iterator.hasNext()) {
+          return streamed.get(Hex.printHexBinary(iterator.next()));
+        } else {
+          return null;
+        }
+      });
+
+      log.debug("{}->{}: uploaded {} chunks while hashing in {} seconds",
+          client, connectionName, count, duration);
+    }
+  }
+
+  /**
+   * Waits for a task executed by the hashing threads.
+   *
+   * @return the task result, or null if the thread has been interrupted
+   */
+  private static <T> T getResult(Future<T> result) throws IOException {
+    try {
+      return result.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof IOException) {
+        throw (IOException) ex.getCause();
+      }
+
+      throw new RuntimeException(ex.getCause());
+    }
+  }
+
+  /**
+   * Uses the chunking mode and the codec selected in the storage configuration.
+   */
+  private synchronized void configureStorage() {
+    if (!storageConfigured) {
+      StorageConfiguration config = storage.getStorageConfiguration();
+      codec = ChunkCodecs.forConfiguration(config);
+
+      if (config.getChunkAverageSize() > 0) {
+        chunker = new FastCdcChunker(config.getChunkMinSize(),
+            config.getChunkAverageSize(), config.getChunkMaxSize());
+        log.info("{}->{}: using content-defined chunking", client,
+            connectionName);
+      }
+
+      storageConfigured = true;
+    }
+  }
+
   /**
    * Uploads missing chunks to storage.
    *
    * @return number of uploaded chunks
    */
   public int uploadChunks(FileStatus status, int... sourceIds) {
+    configureStorage();
     List<Chunk> chunks = storage.getNotUploadedChunks(client, status.getCode(),
         maxNumberOfChunksToStore, sourceIds);
     chunks = new ArrayList<>(chunks.stream()
@@ -536,27 +986,53 @@ public class ClientActivities {
         .collect(Collectors.toMap(c -> Hex.printHexBinary(c.getHash()),
             Function.identity(), (a, b) -> a))
         .values());
+    // back in file order, so that files are read sequentially
+    chunks.sort(Comparator.comparing((Chunk c) -> c.getFile().getPath()
+        .toString()).thenComparingLong(Chunk::getOffset));
 
     if (!chunks.isEmpty()) {
       TaskDuration duration = new TaskDuration(longOperationDuration * 1000);
-      List<byte[]> hashes = chunks.stream().map(Chunk::getHash)
-          .collect(Collectors.toList());
-      Iterator<Chunk> iterator = chunks.iterator();
+      int streams = Math.min(getUploadStreams(), chunks.size());
+      // with one thread, chunks are read by a single background thread
+      int threads = filesystem.getHashingThreads();
+      // read-ahead limits are shared between streams
+      int window = Math.max(1, Math.max(2, threads * 2) / streams);
+      long windowBytes = readAheadBufferSize / streams;
+      AtomicLong bytes = new AtomicLong();
+      int count = 0;
+
+      if (streams == 1) {
+        count = uploadChunks(chunks, duration, window, windowBytes, bytes);
+      } else {
+        // contiguous parts, so that each stream reads files sequentially
+        ExecutorService executor = getUploadExecutor();
+        List<Future<Integer>> parts = new ArrayList<>();
+
+        for (int i = 0; i < streams; i++) {
+          List<Chunk> part = chunks.subList(i * chunks.size() / streams,
+              (i + 1) * chunks.size() / streams);
+          parts.add(executor.submit(()
+              -> uploadChunks(part, duration, window, windowBytes, bytes)));
+        }
 
-      // this operation can be slow in case of HTTP upload, so it will stop
-      // after a soft timeout. Storage will ask for one chunk at a time,
-      // Filesystem will provide them if the timeout has not been reached
-      int count = storage.storeChunks(hashes, () -> {
-        if (!duration.timedOut() && iterator.hasNext()) {
-          return filesystem.readChunk(iterator.next());
-        } else {
-          return null;
+        try {
+          for (Future<Integer> part : parts) {
+            Integer uploaded = getResult(part);
+            count += uploaded == null ? 0 : uploaded;
+          }
+        } catch (IOException ex) {
+          // storeChunks only throws unchecked exceptions
+          throw new StorageException(ex);
+        } finally {
+          parts.forEach(part -> part.cancel(true));
         }
-      });
+      }
 
       if (count > 0) {
-        log.debug("{}->{}: uploaded {} chunks in {} seconds", client,
-            connectionName, count, duration);
+        log.debug("{}->{}: uploaded {} chunks using {} streams in {} seconds",
+            client, connectionName, count, streams, duration);
+        log.debug("Compression: {}", filesystem.getCompressionPolicy());
+        adaptUploadStreams(streams, bytes.get(), duration.getMilliseconds());
       }
 
       return count;
@@ -565,6 +1041,86 @@ public class ClientActivities {
     return 0;
   }
 
+  /**
+   * Uploads chunks using a single stream.
+   *
+   * @param bytes incremented by the number of uploaded bytes
+   */
+  private int uploadChunks(List<Chunk> chunks, TaskDuration duration,
+      int window, long windowBytes, AtomicLong bytes) {
+    List<byte[]> hashes = chunks.stream().map(Chunk::getHash)
+        .collect(Collectors.toList());
+    ReadAhead readAhead = new ReadAhead(chunks, window, windowBytes);
+
+    try {
+      // this operation can be slow in case of HTTP upload, so it will stop
+      // after a soft timeout. Storage will ask for one chunk at a time,
+      // Filesystem will provide them if the timeout has not been reached,
+      // while the next ones are read and compressed by other threads
+      return storage.storeChunks(hashes, () -> {
+        if (duration.timedOut()) {
+          return null;
+        }
+
+        byte[] data = readAhead.next();
+
+        if (data != null) {
+          bytes.addAndGet(data.length);
+        }
+
+        return data;
+      });
+    } finally {
+      // chunks read ahead of the timeout are not needed anymore
+      readAhead.cancel();
+    }
+  }
+
+  private synchronized ExecutorService getUploadExecutor() {
+    if (uploadExecutor == null) {
+      uploadExecutor = new ThreadPoolExecutor(maxUploadStreams,
+          maxUploadStreams, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+          runnable -> {
+            Thread thread = new Thread(runnable, "chunk-upload");
+            thread.setDaemon(true);
+            return thread;
+          });
+      // no idle threads between uploads
+      uploadExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    return uploadExecutor;
+  }
+
+  private synchronized int getUploadStreams() {
+    return uploadStreams;
+  }
+
+  /**
+   * Changes the number of upload streams by one, keeping the direction of the
+   * previous change if throughput has improved and reversing it otherwise.
+   * Uploads that have been too short don't give a reliable measure.
+   */
+  private synchronized void adaptUploadStreams(int streams, long bytes,
+      long milliseconds) {
+    if (maxUploadStreams == 1 || streams != uploadStreams
+        || milliseconds < MIN_MEASURED_UPLOAD_TIME) {
+      return;
+    }
+
+    double throughput = bytes / (double) milliseconds;
+
+    if (throughput < lastUploadThroughput) {
+      uploadStreamsStep = -uploadStreamsStep;
+    }
+
+    lastUploadThroughput = throughput;
+    uploadStreams = (int) Util.constrain(uploadStreams + uploadStreamsStep, 1,
+        maxUploadStreams);
+    log.debug("{}->{}: {} KB/s using {} streams, next upload will use {}",
+        client, connectionName, (long) throughput, streams, uploadStreams);
+  }
+
   /**
    * Gets some backup stats
    *
@@ -573,4 +1129,102 @@ public class ClientActivities {
   public Stats getStats() {
     return storage.getClientStats(client);
   }
+
+  /**
+   * A directory whose digest will be sent once all its contents have been
+   * sent.
+   */
+  private static class OpenTree {
+    final File directory;
+    final TreeDigest tree;
+    // rows added after the one of the directory, including moved ones
+    int rows;
+
+    OpenTree(File directory, TreeDigest tree) {
+      this.directory = directory;
+      this.tree = tree;
+    }
+  }
+
+  /**
+   * The directories left open by a list of files.
+   */
+  private static class SentTrees {
+    final File last;
+    final boolean lastSkipped;
+    final Deque<OpenTree> open;
+
+    SentTrees(File last, boolean lastSkipped, Deque<OpenTree> open) {
+      this.last = last;
+      this.lastSkipped = lastSkipped;
+      this.open = open;
+    }
+
+    /**
+     * Returns true if the next list starts right after this one, i.e. the
+     * last file of the source in the storage is the last one of this list,
+     * or the last file moved after it if it is a skipped directory.
+     */
+    boolean isContinuedBy(File newest) {
+      return newest != null && newest.getId() > 0
+          && (last.toString().equals(newest.toString())
+          || lastSkipped && isInside(newest, last));
+    }
+  }
+
+  /**
+   * Reads and compresses chunks ahead of their upload, in the same order. The
+   * number of chunks being read and their total size are limited.
+   */
+  class ReadAhead {
+    private final List<Chunk> chunks;
+    private final int maxChunks;
+    private final long maxBytes;
+    private final Deque<Pair<Chunk, Future<byte[]>>> pending
+        = new ArrayDeque<>();
+    private int position;
+    private long bytes;
+
+    ReadAhead(List<Chunk> chunks, int maxChunks, long maxBytes) {
+      this.chunks = chunks;
+      this.maxChunks = maxChunks;
+      this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the next chunk content, or null if there are no more chunks.
+     */
+    byte[] next() throws IOException {
+      fill();
+      Pair<Chunk, Future<byte[]>> next = pending.poll();
+
+      if (next == null) {
+        return null;
+      }
+
+      bytes -= next.getFirst().getLength();
+      byte[] data = getResult(next.getSecond());
+      // the following chunks are read while this one is being sent
+      fill();
+      return data;
+    }
+
+    private void fill() {
+      // the chunk length is the maximum size of its compressed content
+      while (position < chunks.size() && pending.size() < maxChunks
+          && (pending.isEmpty()
+          || bytes + chunks.get(position).getLength() <= maxBytes)) {
+        Chunk chunk = chunks.get(position++);
+        bytes += chunk.getLength();
+        pending.add(new Pair<>(chunk,
+            filesystem.submitReadChunk(chunk, codec)));
+      }
+    }
+
+    void cancel() {
+      pending.forEach(pair -> pair.getSecond().cancel(false));
+      pending.clear();
+      bytes = 0;
+    }
+  }
 }
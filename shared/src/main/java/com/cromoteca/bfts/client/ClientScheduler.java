@@ -119,9 +119,7 @@ public class ClientScheduler {
         Source source = activity.selectSource(false);
 
         if (source != null) {
-          int count = activity.sendFiles(source);
-          count += activity.syncDeletions(source, false).size();
-          count += activity.syncAdditions(source, false).size();
+          int count = activity.sendFilesAndSync(source);
 
           // if the source was empty and is still empty, it will always be
           // selected first, so let's process another one too
@@ -129,9 +127,7 @@ public class ClientScheduler {
             source = activity.selectSource(true);
 
             if (source != null) {
-              count = activity.sendFiles(source);
-              count += activity.syncDeletions(source, false).size();
-              count += activity.syncAdditions(source, false).size();
+              count = activity.sendFilesAndSync(source);
             }
           }
 
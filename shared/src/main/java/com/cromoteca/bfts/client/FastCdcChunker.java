@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.client;
+
+/**
+ * Content-defined chunking based on FastCDC: boundaries are found using a gear
+ * rolling hash, so inserting or removing bytes only changes the chunks around
+ * the modification. Normalized chunking is used to keep chunk sizes close to
+ * the average.
+ *
+ * @author Luciano Vernaschi (luciano at cromoteca.com)
+ */
+public class FastCdcChunker implements Chunker {
+  /**
+   * Random values for each byte. They must never change, otherwise already
+   * stored chunks would no longer be recognized.
+   */
+  private static final long[] GEAR = new long[256];
+
+  static {
+    // SplitMix64 with a fixed seed
+    long seed = 0x6266747343444321L;
+
+    for (int i = 0; i < GEAR.length; i++) {
+      long z = (seed += 0x9E3779B97F4A7C15L);
+      z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+      z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+      GEAR[i] = z ^ (z >>> 31);
+    }
+  }
+
+  private final int minSize;
+  private final int averageSize;
+  private final int maxSize;
+  private final long maskSmall;
+  private final long maskLarge;
+
+  public FastCdcChunker(int minSize, int averageSize, int maxSize) {
+    if (minSize <= 0 || minSize > averageSize || averageSize > maxSize) {
+      throw new IllegalArgumentException(String.format("Invalid chunk sizes:"
+          + " min %d, average %d, max %d", minSize, averageSize, maxSize));
+    }
+
+    this.minSize = minSize;
+    this.averageSize = averageSize;
+    this.maxSize = maxSize;
+
+    int bits = 31 - Integer.numberOfLeadingZeros(averageSize);
+    // harder to match before the average size, easier after it
+    maskSmall = highBits(bits + 1);
+    maskLarge = highBits(Math.max(bits - 1, 1));
+  }
+
+  private static long highBits(int count) {
+    return -1L << (64 - count);
+  }
+
+  public int getMinSize() {
+    return minSize;
+  }
+
+  public int getAverageSize() {
+    return averageSize;
+  }
+
+  @Override
+  public int getMaxChunkSize() {
+    return maxSize;
+  }
+
+  @Override
+  public int cut(byte[] data, int offset, int length) {
+    if (length <= minSize) {
+      return length;
+    }
+
+    int end = Math.min(length, maxSize);
+    int normal = Math.min(end, averageSize);
+    long fingerprint = 0;
+    int i = minSize;
+
+    for (; i < normal; i++) {
+      fingerprint = (fingerprint << 1) + GEAR[data[offset + i] & 0xff];
+
+      if ((fingerprint & maskSmall) == 0) {
+        return i + 1;
+      }
+    }
+
+    for (; i < end; i++) {
+      fingerprint = (fingerprint << 1) + GEAR[data[offset + i] & 0xff];
+
+      if ((fingerprint & maskLarge) == 0) {
+        return i + 1;
+      }
+    }
+
+    return end;
+  }
+}
@@ -16,37 +16,58 @@
  */
 package com.cromoteca.bfts.client;
 
+import com.cromoteca.bfts.compression.ChunkCodec;
+import com.cromoteca.bfts.compression.ChunkCodecs;
+import com.cromoteca.bfts.compression.CompressionPolicy;
+import com.cromoteca.bfts.compression.CompressionPolicy.Decision;
+import com.cromoteca.bfts.compression.DeflateCodec;
+import com.cromoteca.bfts.compression.NoCodec;
 import com.cromoteca.bfts.model.Chunk;
 import com.cromoteca.bfts.model.File;
 import com.cromoteca.bfts.model.Hash;
 import com.cromoteca.bfts.model.IgnoredFileChecker;
 import com.cromoteca.bfts.model.Pair;
 import com.cromoteca.bfts.model.Source;
-import com.cromoteca.bfts.util.Compression;
-import com.cromoteca.bfts.util.Factory;
 import com.cromoteca.bfts.util.FilePath;
 import com.cromoteca.bfts.util.Hex;
 import com.cromoteca.bfts.util.TaskDuration;
 import com.cromoteca.bfts.util.lambdas.IOSupplier;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
-import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
-import java.util.function.Predicate;
 import java.util.stream.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -65,11 +86,54 @@ public class Filesystem {
    */
   public static final String HASH_ALGORITHM = "SHA-1";
   public static final int DEFAULT_CHUNK_SIZE = 512 * 1024;
+  /**
+   * Files with at least this number of maximum size chunks have their chunks
+   * hashed in parallel.
+   */
+  private static final int PARALLEL_HASH_CHUNKS = 4;
+  private static final ChunkCodec DEFAULT_CODEC = new DeflateCodec();
+  /**
+   * Directories with at least this number of entries have their sorted
+   * listing cached.
+   */
+  private static final int LISTING_CACHE_MIN_SIZE = 1000;
+  /**
+   * Maximum number of file names in cached listings.
+   */
+  private static final int LISTING_CACHE_SIZE = 1_000_000;
+  /**
+   * Directories modified more recently than this are not cached, since a
+   * further change with the same modification time would go unnoticed.
+   */
+  private static final long LISTING_CACHE_DELAY = 2000;
+  /**
+   * Maximum number of directory digests kept between scans.
+   */
+  private static final int DIGEST_CACHE_SIZE = 100_000;
 
   private boolean skipRecycledHashCheck = true;
   private int filesystemScanSize = 800;
   private final int chunkSize;
-  private final Factory hashBufferFactory;
+  private final CompressionPolicy compressionPolicy = new CompressionPolicy();
+  private volatile Chunker chunker;
+  private int hashingThreads;
+  // null when files are hashed in the calling thread
+  private volatile ForkJoinPool hashingPool;
+  // keeps at most one buffer for each hashing thread
+  private BlockingQueue<byte[]> hashBuffers;
+  // reads chunks ahead of uploads when there is no hashing pool
+  private ThreadPoolExecutor readAheadExecutor;
+  private int scanThreads;
+  // null when directories are listed in the calling thread
+  private volatile ForkJoinPool scanPool;
+  // sorted listings of large directories, least recently used first
+  private final LinkedHashMap<FilePath, CachedListing> listingCache
+      = new LinkedHashMap<>(16, 0.75f, true);
+  private int cachedNames;
+  // digests of subdirectories computed with the one of their parent, until a
+  // scan reaches them, least recently used first
+  private final LinkedHashMap<FilePath, DirectoryDigest> digestCache
+      = new LinkedHashMap<>(16, 0.75f, true);
 
   public Filesystem() {
     this(DEFAULT_CHUNK_SIZE);
@@ -77,8 +141,9 @@ public class Filesystem {
 
   public Filesystem(int chunkSize) {
     this.chunkSize = chunkSize;
-    hashBufferFactory = new Factory();
-    hashBufferFactory.registerThreadLocal(byte[].class, () -> new byte[chunkSize]);
+    setChunker(new FixedSizeChunker(chunkSize));
+    setHashingThreads(1);
+    setScanThreads(1);
   }
 
   /**
@@ -93,12 +158,84 @@ public class Filesystem {
   }
 
   /**
-   * Size of a file chunk
+   * Size of a file chunk when using fixed size chunks. Also used to read chunks
+   * hashed by older versions, whose offset is not known.
    */
   public int getChunkSize() {
     return chunkSize;
   }
 
+  /**
+   * Decides which chunks are worth compressing
+   */
+  public CompressionPolicy getCompressionPolicy() {
+    return compressionPolicy;
+  }
+
+  /**
+   * Splits files into chunks while hashing them
+   */
+  public Chunker getChunker() {
+    return chunker;
+  }
+
+  public synchronized void setChunker(Chunker chunker) {
+    this.chunker = chunker;
+
+    // buffers must be as large as the largest chunk
+    if (hashBuffers != null) {
+      hashBuffers.clear();
+    }
+  }
+
+  /**
+   * Number of threads used to hash files. When greater than 1, several files
+   * are hashed at the same time, and the chunks of large files are hashed in
+   * parallel too. The same threads read and compress chunks to be uploaded.
+   */
+  public int getHashingThreads() {
+    return hashingThreads;
+  }
+
+  public synchronized void setHashingThreads(int hashingThreads) {
+    if (hashingThreads < 1) {
+      throw new IllegalArgumentException("At least one hashing thread is"
+          + " required");
+    }
+
+    if (hashingPool != null) {
+      // running tasks will complete anyway
+      hashingPool.shutdown();
+    }
+
+    this.hashingThreads = hashingThreads;
+    hashingPool = hashingThreads > 1 ? new ForkJoinPool(hashingThreads) : null;
+    hashBuffers = new ArrayBlockingQueue<>(hashingThreads);
+  }
+
+  /**
+   * Number of threads used to list directories while collecting files. When
+   * greater than 1, the next subdirectories are listed while the current one
+   * is being collected.
+   */
+  public int getScanThreads() {
+    return scanThreads;
+  }
+
+  public synchronized void setScanThreads(int scanThreads) {
+    if (scanThreads < 1) {
+      throw new IllegalArgumentException("At least one scan thread is"
+          + " required");
+    }
+
+    if (scanPool != null) {
+      scanPool.shutdown();
+    }
+
+    this.scanThreads = scanThreads;
+    scanPool = scanThreads > 1 ? new ForkJoinPool(scanThreads) : null;
+  }
+
   /**
    * Returns true if the hash check for recycled files will be skipped
    * (downloaded files are always checked).
@@ -126,6 +263,16 @@ public class Filesystem {
    */
   public List<File> getFiles(FilePath root, String from,
       IgnoredFileChecker checker) throws IOException {
+    return getFiles(root, from, checker, null);
+  }
+
+  /**
+   * Collects files like
+   * {@link #getFiles(FilePath, String, IgnoredFileChecker)}, but does not
+   * collect the contents of the directories that the filter skips.
+   */
+  public List<File> getFiles(FilePath root, String from,
+      IgnoredFileChecker checker, TreeFilter filter) throws IOException {
     TaskDuration duration = new TaskDuration();
 
     List<File> files = new ArrayList<>();
@@ -143,14 +290,14 @@ public class Filesystem {
     // start != null is useful when root is a filesystem root (e.g. f:\)
     while (files.size() < filesystemScanSize && start != null
         && start.startsWith(root)) {
-      addFilesToList(files, p -> p.compareTo(fromPath) > 0, root, start, checker);
+      addFilesToList(files, fromPath, true, root, start, checker, filter);
       start = start.getParent();
     }
 
     // if we haven't found enough files, we must "rewind" and start from the
     // root dir, until we get enough files or we reach the initial file again
     if (files.size() < filesystemScanSize) {
-      addFilesToList(files, p -> p.compareTo(fromPath) <= 0, root, root, checker);
+      addFilesToList(files, fromPath, false, root, root, checker, filter);
     }
 
     log.debug("{} files collected in {} seconds", files.size(), duration);
@@ -161,42 +308,405 @@ public class Filesystem {
    * Recursively add files to the passed list. Items in the same directory are
    * ordered alphabetically.
    *
-   * @param files     the list of files
-   * @param condition must be satisfied to be included into the list
-   * @param root      directory root
-   * @param what      directory to add
-   * @param max       maximum number of files
-   */
-  private void addFilesToList(List<File> files, Predicate<FilePath> condition,
-      FilePath root, FilePath what, IgnoredFileChecker checker)
-      throws IOException {
-    try (Stream<FilePath> list = what.list()) {
-      // order by file name
-      Iterator<FilePath> i
-          = list.sorted(orderBy(FilePath::getFileName)).iterator();
+   * @param files the list of files
+   * @param from  the initial file
+   * @param after true to collect the files that come after the initial file,
+   *              false to collect the initial file and the ones before it
+   * @param root  directory root
+   * @param what  directory to add
+   */
+  private void addFilesToList(List<File> files, FilePath from, boolean after,
+      FilePath root, FilePath what, IgnoredFileChecker checker,
+      TreeFilter filter) throws IOException {
+    Scan scan = new Scan(from, after, root, checker, filter, scanPool);
+    scan.collect(files, scan.list(what));
+  }
 
-      while (files.size() < filesystemScanSize && i.hasNext()) {
-        FilePath p = i.next();
+  /**
+   * Returns the names of the entries of a directory, sorted. Listings of large
+   * directories are kept until the directory is modified, so that scans
+   * resuming from a file inside them don't need to list and sort them again.
+   */
+  private String[] getSortedNames(FilePath dir) throws IOException {
+    FileTime modified = dir.getLastModifiedTime();
 
-        // only files satisfying the condition can be collected
-        if (condition.test(p) && p.isReadable()) {
-          File f = getFile(p, root, checker);
+    synchronized (listingCache) {
+      CachedListing cached = listingCache.get(dir);
+
+      if (cached != null && cached.modified.equals(modified)) {
+        return cached.names;
+      }
+    }
+
+    String[] names;
+
+    try (Stream<FilePath> list = dir.list()) {
+      names = list.map(FilePath::getFileName).sorted().toArray(String[]::new);
+    }
+
+    if (names.length >= LISTING_CACHE_MIN_SIZE && System.currentTimeMillis()
+        - modified.toMillis() > LISTING_CACHE_DELAY) {
+      synchronized (listingCache) {
+        CachedListing previous
+            = listingCache.put(dir, new CachedListing(modified, names));
+        cachedNames += names.length
+            - (previous == null ? 0 : previous.names.length);
+        Iterator<CachedListing> i = listingCache.values().iterator();
+
+        while (cachedNames > LISTING_CACHE_SIZE) {
+          cachedNames -= i.next().names.length;
+          i.remove();
+        }
+      }
+    }
+
+    return names;
+  }
+
+  /**
+   * Returns and forgets the digest of a directory computed with the one of
+   * its parent, possibly by a previous scan, so that each scan does not
+   * compute again the digests of whole subtrees to collect a few files. The
+   * digest is discarded if the directory has been modified since then.
+   * Changes deeper in the subtree are not seen by a cached digest: since it
+   * is only used once, they are found by the next scan of the parent.
+   */
+  private DirectoryDigest takeDigest(FilePath dir) throws IOException {
+    DirectoryDigest digest;
+
+    synchronized (digestCache) {
+      digest = digestCache.remove(dir);
+    }
+
+    return digest == null
+        || !digest.modified.equals(dir.getLastModifiedTime()) ? null : digest;
+  }
+
+  /**
+   * Keeps the digests of the subdirectories of a directory whose contents
+   * will be collected.
+   */
+  private void putDigests(FilePath dir,
+      Map<String, DirectoryDigest> subdirectories) {
+    synchronized (digestCache) {
+      subdirectories.forEach((name, subdirectory)
+          -> digestCache.put(dir.resolve(name), subdirectory));
+      Iterator<DirectoryDigest> i = digestCache.values().iterator();
+
+      while (digestCache.size() > DIGEST_CACHE_SIZE) {
+        i.next();
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * Collects files in the order described in
+   * {@link #getFiles(FilePath, String, IgnoredFileChecker)}. When a pool is
+   * available, the next subdirectories of each directory are listed in
+   * advance, so that slow filesystems are read by several threads while
+   * files are still collected in the same order.
+   */
+  private class Scan {
+    private final FilePath from;
+    private final boolean after;
+    private final FilePath root;
+    private final IgnoredFileChecker checker;
+    private final TreeFilter filter;
+    private final ForkJoinPool pool;
+
+    Scan(FilePath from, boolean after, FilePath root,
+        IgnoredFileChecker checker, TreeFilter filter, ForkJoinPool pool) {
+      this.from = from;
+      this.after = after;
+      this.root = root;
+      this.checker = checker;
+      this.filter = filter;
+      this.pool = pool;
+    }
+
+    /**
+     * Lists the entries of a directory that can be collected. When running in
+     * the pool, also reads them.
+     */
+    Listing list(FilePath dir) throws IOException {
+      Listing listing = new Listing(dir, getSortedNames(dir));
+      // entries are sorted, so the ones coming after the initial file follow
+      // all the other ones
+      int index = listing.search(from);
+
+      if (after) {
+        listing.start = index;
+      } else {
+        listing.end = index;
+      }
+
+      if (pool != null) {
+        // no more than this number of files can be collected anyway
+        int max = Math.min(listing.end, listing.start + filesystemScanSize);
+
+        for (int i = listing.start; i < max; i++) {
+          read(listing.get(i));
+        }
+      }
+
+      return listing;
+    }
+
+    /**
+     * Adds the entries of a directory to the list, and the contents of their
+     * subdirectories.
+     */
+    void collect(List<File> files, Listing listing) throws IOException {
+      // subdirectories being listed in advance
+      Deque<Pair<ScanEntry, ForkJoinTask<Listing>>> pending
+          = new ArrayDeque<>();
+      int next = listing.start;
+
+      try {
+        for (int i = listing.start; files.size() < filesystemScanSize
+            && i < listing.end; i++) {
+          while (pool != null && pending.size() < scanThreads * 2
+              && next < listing.end) {
+            ScanEntry entry = listing.get(next++);
+
+            if (read(entry) != null && entry.file.isDirectory()) {
+              pending.add(new Pair<>(entry,
+                  pool.submit(() -> list(entry.path))));
+            }
+          }
+
+          ScanEntry entry = listing.get(i);
+          File f = read(entry);
 
           if (f != null) {
             files.add(f);
 
             if (f.isDirectory()) {
               log.debug("Collected directory {}", f);
-              addFilesToList(files, condition, root, p, checker);
+              boolean listed = !pending.isEmpty()
+                  && pending.peek().getFirst() == entry;
+
+              if (skip(f, entry.path)) {
+                log.debug("Skipped unchanged directory {}", f);
+
+                if (listed) {
+                  pending.poll().getSecond().cancel(false);
+                }
+              } else {
+                collect(files, listed ? join(pending.poll().getSecond())
+                    : list(entry.path));
+              }
             } else {
               log.debug("Collected File {}", f);
             }
           }
         }
+      } finally {
+        pending.forEach(p -> p.getSecond().cancel(false));
+      }
+    }
+
+    /**
+     * Asks the filter whether the contents of a directory must be skipped.
+     * Directories that contain the initial file are never skipped, since only
+     * part of their contents is collected.
+     */
+    boolean skip(File directory, FilePath path) throws IOException {
+      if (filter == null || from.startsWith(path)) {
+        return false;
+      }
+
+      DirectoryDigest digest = takeDigest(path);
+
+      if (digest == null) {
+        digest = digest(path);
+      }
+
+      if (filter.skip(directory, digest.digest, digest.size)) {
+        return true;
+      }
+
+      // subdirectories will be collected next, maybe by the next scans
+      putDigests(path, digest.subdirectories);
+      return false;
+    }
+
+    /**
+     * Computes the digest of the contents of a directory, over the names,
+     * sizes and modification times of the entries that would be collected.
+     */
+    DirectoryDigest digest(FilePath dir) throws IOException {
+      FileTime modified = dir.getLastModifiedTime();
+      MessageDigest md = getMessageDigest();
+      ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES * 2);
+      Map<String, DirectoryDigest> subdirectories = new HashMap<>();
+      int size = 0;
+
+      for (String name : getSortedNames(dir)) {
+        ScanEntry entry = new ScanEntry(dir.resolve(name));
+        File f = read(entry);
+
+        if (f != null) {
+          size++;
+          md.update(name.getBytes(StandardCharsets.UTF_8));
+
+          if (f.isDirectory()) {
+            DirectoryDigest subdirectory = digest(entry.path);
+            subdirectories.put(name, subdirectory);
+            size += subdirectory.size;
+            md.update((byte) 1);
+            md.update(subdirectory.digest);
+          } else {
+            buffer.clear();
+            buffer.putLong(f.getSize()).putLong(f.getLastModified());
+            md.update((byte) 0);
+            md.update(buffer.array());
+          }
+        }
+      }
+
+      return new DirectoryDigest(modified, md.digest(), size, subdirectories);
+    }
+
+    /**
+     * Reads an entry if not done yet.
+     *
+     * @return the file, or null if it can't be collected
+     */
+    File read(ScanEntry entry) throws IOException {
+      if (!entry.read) {
+        File f = getFile(entry.path, root, checker);
+        entry.file = f == null || !entry.path.isReadable() ? null : f;
+        entry.read = true;
+      }
+
+      return entry.file;
+    }
+
+    private Listing join(ForkJoinTask<Listing> task) throws IOException {
+      try {
+        return task.get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      } catch (ExecutionException ex) {
+        if (ex.getCause() instanceof IOException) {
+          throw (IOException) ex.getCause();
+        }
+
+        throw new IllegalStateException(ex.getCause());
+      }
+    }
+  }
+
+  /**
+   * The entries of a directory that can be collected, from start (inclusive)
+   * to end (exclusive). Entries are created when first needed, so that a
+   * scan of a large directory only creates the ones it collects.
+   */
+  private static class Listing {
+    final FilePath dir;
+    final String[] names;
+    final List<ScanEntry> entries = new ArrayList<>();
+    int start;
+    int end;
+
+    Listing(FilePath dir, String[] names) {
+      this.dir = dir;
+      this.names = names;
+      end = names.length;
+    }
+
+    /**
+     * Returns the index of the first entry coming after a path.
+     */
+    int search(FilePath path) {
+      int low = 0;
+      int high = names.length;
+
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+
+        if (dir.resolve(names[middle]).compareTo(path) > 0) {
+          high = middle;
+        } else {
+          low = middle + 1;
+        }
       }
+
+      return low;
+    }
+
+    ScanEntry get(int index) {
+      while (entries.size() <= index - start) {
+        entries.add(new ScanEntry(dir.resolve(names[start + entries.size()])));
+      }
+
+      return entries.get(index - start);
+    }
+  }
+
+  /**
+   * A directory entry, read when first needed.
+   */
+  private static class ScanEntry {
+    final FilePath path;
+    File file;
+    boolean read;
+
+    ScanEntry(FilePath path) {
+      this.path = path;
+    }
+  }
+
+  /**
+   * The digest of the contents of a directory, with the ones of its
+   * subdirectories.
+   */
+  private static class DirectoryDigest {
+    final FileTime modified;
+    final byte[] digest;
+    final int size;
+    final Map<String, DirectoryDigest> subdirectories;
+
+    DirectoryDigest(FileTime modified, byte[] digest, int size,
+        Map<String, DirectoryDigest> subdirectories) {
+      this.modified = modified;
+      this.digest = digest;
+      this.size = size;
+      this.subdirectories = subdirectories;
+    }
+  }
+
+  /**
+   * The sorted names of the entries of a directory, valid as long as the
+   * directory is not modified.
+   */
+  private static class CachedListing {
+    final FileTime modified;
+    final String[] names;
+
+    CachedListing(FileTime modified, String[] names) {
+      this.modified = modified;
+      this.names = names;
     }
   }
 
+  /**
+   * Decides whether the contents of a collected directory can be skipped.
+   */
+  public interface TreeFilter {
+    /**
+     * @param directory the directory
+     * @param digest    the digest of its contents
+     * @param size      the number of files and directories that it contains,
+     *                  including the ones in its subdirectories
+     * @return true if its contents must not be collected
+     */
+    boolean skip(File directory, byte[] digest, int size);
+  }
+
   public File getFile(FilePath path, FilePath root, IgnoredFileChecker checker)
       throws IOException {
     File file = null;
@@ -209,12 +719,21 @@ public class Filesystem {
 
       if (checker == null || checker.checkNotMatched(fileName, fileDir)) {
         FilePath absolute = path.isAbsolute() ? path : root.resolve(path);
+        BasicFileAttributes attributes;
+
+        try {
+          // a single call instead of one for each attribute
+          attributes = absolute.readAttributes();
+        } catch (IOException ex) {
+          // does not exist anymore, or can't be read
+          return null;
+        }
 
-        if (absolute.isDirectory()) {
+        if (attributes.isDirectory()) {
           file = new File(fileName, fileDir);
-        } else if (absolute.isRegularFile()) {
-          file = new File(fileName, fileDir, absolute.size(),
-              absolute.getLastModifiedTime().to(TimeUnit.MILLISECONDS));
+        } else if (attributes.isRegularFile()) {
+          file = new File(fileName, fileDir, attributes.size(),
+              attributes.lastModifiedTime().to(TimeUnit.MILLISECONDS));
         }
       }
     }
@@ -228,14 +747,30 @@ public class Filesystem {
    */
   private boolean isUnchanged(FilePath path, long size, long lastModified)
       throws IOException {
-    return path.isRegularFile() && path.size() == size
-        && path.getLastModifiedTime().to(TimeUnit.MILLISECONDS) == lastModified;
+    BasicFileAttributes attributes;
+
+    try {
+      attributes = path.readAttributes();
+    } catch (IOException ex) {
+      return false;
+    }
+
+    return attributes.isRegularFile() && attributes.size() == size
+        && attributes.lastModifiedTime().to(TimeUnit.MILLISECONDS)
+        == lastModified;
   }
 
   /**
-   * Reads a file chunk.
+   * Reads a file chunk, compressing it with deflate.
    */
   public byte[] readChunk(Chunk chunk) {
+    return readChunk(chunk, DEFAULT_CODEC);
+  }
+
+  /**
+   * Reads a file chunk, compressing it with the passed codec.
+   */
+  public byte[] readChunk(Chunk chunk, ChunkCodec codec) {
     File file = chunk.getFile();
     FilePath path = FilePath.get(file.getSource().getRootPath())
         .resolve(file.getParent()).resolve(file.getName());
@@ -247,20 +782,20 @@ public class Filesystem {
         log.debug("File {} changed before reading chunk #{}", file,
             chunk.getIndex());
       } else {
-        // last chunk can be smaller than others
-        int length = (int) Math.min(size - chunk.getIndex() * (long) chunkSize,
-            chunkSize);
-
-        if (length != chunk.getLength()) {
-          log.warn("The chunk #{} of {} has a size of {} bytes, but was"
-              + " expected to be {} bytes long", chunk.getIndex(), file, length,
-              chunk.getLength());
+        // chunks hashed by older versions only have an index
+        long offset = chunk.getOffset() < 0
+            ? chunk.getIndex() * (long) chunkSize : chunk.getOffset();
+        int length = chunk.getLength();
+
+        if (offset + length > size) {
+          log.warn("The chunk #{} of {} ends at {}, but file size is {}",
+              chunk.getIndex(), file, offset + length, size);
         } else {
           MessageDigest md = getMessageDigest();
 
           try (RandomAccessFile is = new RandomAccessFile(path.toFile(), "r")) {
             // seek is much faster than FileInputStream.skip
-            is.seek(chunk.getIndex() * (long) chunkSize);
+            is.seek(offset);
             byte[] data = new byte[length];
             int n = is.read(data);
 
@@ -277,19 +812,7 @@ public class Filesystem {
                 log.warn("Hash is different from expected: file {}, chunk #{}",
                     file, chunk.getIndex());
               } else {
-                byte[] compressed = Compression.compress(data);
-
-                // use compression if it makes the chunk smaller
-                if (compressed.length < length) {
-                  if (log.isDebugEnabled()) {
-                    log.debug("Chunk {} compressed to {}% of its original"
-                        + " size", chunk, compressed.length * 100 / length);
-                  }
-
-                  data = compressed;
-                } else {
-                  log.debug("Chunk {} not compressed", chunk);
-                }
+                data = compressChunk(chunk, file, offset, data, codec);
 
                 if (isUnchanged(path, size, lastModified)) {
                   return data;
@@ -311,6 +834,47 @@ public class Filesystem {
     return null;
   }
 
+  /**
+   * Prepares chunk content to be stored, compressing it only if that makes it
+   * smaller. Compression is not even tried if the compression policy considers
+   * the chunk incompressible.
+   *
+   * @param chunk  the chunk
+   * @param file   the file containing the chunk
+   * @param offset the chunk position in the file
+   * @param data   the chunk content
+   * @param codec  the codec used to compress data
+   */
+  public byte[] compressChunk(Chunk chunk, File file, long offset, byte[] data,
+      ChunkCodec codec) throws IOException {
+    if (codec.getId() == NoCodec.ID) {
+      return data;
+    }
+
+    Decision decision = compressionPolicy.decide(file, offset, data);
+
+    if (decision != Decision.COMPRESS) {
+      log.debug("Chunk {} not compressed: {}", chunk, decision);
+      return data;
+    }
+
+    byte[] compressed = ChunkCodecs.encode(codec, data);
+    boolean reduced = compressed.length < data.length;
+    compressionPolicy.record(file, offset, reduced);
+
+    if (reduced) {
+      if (log.isDebugEnabled()) {
+        log.debug("Chunk {} compressed to {}% of its original size", chunk,
+            compressed.length * 100 / data.length);
+      }
+
+      return compressed;
+    } else {
+      log.debug("Chunk {} not compressed", chunk);
+      return data;
+    }
+  }
+
   public DeletionOutcome deleteFile(File file, FilePath path, FilePath root)
       throws IOException {
     if (!path.exists()) {
@@ -523,12 +1087,16 @@ public class Filesystem {
                 byte[] data = bytesFromStorage.get();
 
                 if (data != null) {
-                  if (data.length < chunk.getLength()) {
-                    // if a chunk is smaller than expected, it is compressed
-                    data = Compression.decompress(data);
+                  // if a chunk is smaller than expected, it is compressed
+                  try {
+                    data = ChunkCodecs.decode(data, chunk.getLength());
+                  } catch (IOException ex) {
+                    // corrupted or truncated compressed data
+                    log.debug(null, ex);
+                    data = null;
                   }
 
-                  if (data.length != chunk.getLength()) {
+                  if (data == null || data.length != chunk.getLength()) {
                     log.warn("Chunk {} has wrong size", chunk);
                   } else {
                     verifyDigest.update(data);
@@ -652,6 +1220,37 @@ public class Filesystem {
    * @throws IOException
    */
   public boolean hash(File file) throws IOException {
+    return hash(file, null);
+  }
+
+  /**
+   * Hashes a file and its chunks, passing the content of each chunk to a
+   * consumer, so it can be used without reading the file again. Chunks are
+   * passed before checking that the file has not changed, but their hash
+   * always matches their content. The consumer can be called by different
+   * threads.
+   *
+   * @param file          the file
+   * @param chunkConsumer receives chunks and their content, can be null
+   * @return true if the hashes have been calculated
+   */
+  public boolean hash(File file, BiConsumer<Chunk, byte[]> chunkConsumer)
+      throws IOException {
+    return hash(file, chunker, chunkConsumer);
+  }
+
+  /**
+   * Hashes a file like {@link #hash(File, BiConsumer)}, splitting it using the
+   * passed chunker instead of the one set in this filesystem, which can be
+   * shared by several storages.
+   *
+   * @param file          the file
+   * @param chunker       splits the file into chunks
+   * @param chunkConsumer receives chunks and their content, can be null
+   * @return true if the hashes have been calculated
+   */
+  public boolean hash(File file, Chunker chunker,
+      BiConsumer<Chunk, byte[]> chunkConsumer) throws IOException {
     FilePath path = FilePath.get(file.getSource().getRootPath())
         .resolve(file.getParent()).resolve(file.getName());
     log.debug("Hashing {}", path);
@@ -659,7 +1258,7 @@ public class Filesystem {
     long lastModified = file.getLastModified();
 
     if (isUnchanged(path, size, lastModified)) {
-      Hash hash = hash(path, true);
+      Hash hash = hash(path, true, chunker, chunkConsumer);
 
       if (hash != null && isUnchanged(path, size, lastModified)) {
         file.setHash(hash);
@@ -670,6 +1269,75 @@ public class Filesystem {
     return false;
   }
 
+  /**
+   * Hashes a file using the hashing threads, or in the calling thread if only
+   * one hashing thread is configured.
+   *
+   * @return the result of {@link #hash(File, BiConsumer)}
+   */
+  public Future<Boolean> submitHash(File file,
+      BiConsumer<Chunk, byte[]> chunkConsumer) {
+    return submitHash(file, chunker, chunkConsumer);
+  }
+
+  /**
+   * Hashes a file using the hashing threads and the passed chunker.
+   *
+   * @return the result of {@link #hash(File, Chunker, BiConsumer)}
+   */
+  public Future<Boolean> submitHash(File file, Chunker chunker,
+      BiConsumer<Chunk, byte[]> chunkConsumer) {
+    return submit(() -> hash(file, chunker, chunkConsumer));
+  }
+
+  /**
+   * Reads and compresses a chunk using the hashing threads, or a background
+   * thread if only one hashing thread is configured, so that the caller can
+   * send a chunk while the next one is being read.
+   *
+   * @return the result of {@link #readChunk(Chunk, ChunkCodec)}
+   */
+  public Future<byte[]> submitReadChunk(Chunk chunk, ChunkCodec codec) {
+    if (hashingPool != null) {
+      return submit(() -> readChunk(chunk, codec));
+    }
+
+    return getReadAheadExecutor().submit(() -> readChunk(chunk, codec));
+  }
+
+  private synchronized ExecutorService getReadAheadExecutor() {
+    if (readAheadExecutor == null) {
+      readAheadExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "chunk-read-ahead");
+            thread.setDaemon(true);
+            return thread;
+          });
+      // no idle thread between uploads
+      readAheadExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    return readAheadExecutor;
+  }
+
+  private <T> Future<T> submit(IOSupplier<T> task) {
+    ForkJoinPool pool = hashingPool;
+
+    if (pool != null) {
+      return pool.submit(task::get);
+    }
+
+    CompletableFuture<T> result = new CompletableFuture<>();
+
+    try {
+      result.complete(task.get());
+    } catch (IOException ex) {
+      result.completeExceptionally(ex);
+    }
+
+    return result;
+  }
+
   /**
    * Hashes a file.
    *
@@ -678,6 +1346,11 @@ public class Filesystem {
    *                  computed
    */
   public Hash hash(FilePath p, boolean partialHashes) throws IOException {
+    return hash(p, partialHashes, chunker, null);
+  }
+
+  private Hash hash(FilePath p, boolean partialHashes, Chunker currentChunker,
+      BiConsumer<Chunk, byte[]> chunkConsumer) {
     Hash h = new Hash();
 
     try {
@@ -688,32 +1361,101 @@ public class Filesystem {
       long fileSize = p.size();
       MessageDigest fullDigest = getMessageDigest();
       MessageDigest chunkDigest = getMessageDigest();
+      ForkJoinPool pool;
+      byte[] buf;
+
+      synchronized (this) {
+        pool = hashingPool;
+        buf = hashBuffers.poll();
+      }
 
-      try (final DigestInputStream dis
-          = new DigestInputStream(p.newInputStream(), fullDigest)) {
+      if (buf == null || buf.length != currentChunker.getMaxChunkSize()) {
+        buf = new byte[currentChunker.getMaxChunkSize()];
+      }
+
+      // the main hash must be computed sequentially, but chunk hashes of
+      // large files can be computed by other threads
+      if (!partialHashes
+          || fileSize < PARALLEL_HASH_CHUNKS * (long) buf.length) {
+        pool = null;
+      }
+
+      try (InputStream is = p.newInputStream()) {
         List<Chunk> chunks = new ArrayList<>();
-        byte[] buf = hashBufferFactory.obtain(byte[].class);
-        int read;
+        Deque<ForkJoinTask<?>> pending = new ArrayDeque<>();
+        int filled = 0;
         long totalRead = 0;
+        boolean eof = false;
+
+        while (true) {
+          // fill the buffer, so boundaries don't depend on how data is read
+          while (!eof && filled < buf.length) {
+            int read = is.read(buf, filled, buf.length - filled);
+
+            if (read == -1) {
+              eof = true;
+            } else {
+              filled += read;
+            }
+          }
 
-        while ((read = dis.read(buf)) != -1) {
-          totalRead += read;
+          if (filled == 0) {
+            break;
+          }
+
+          int length = currentChunker.cut(buf, 0, filled);
+          fullDigest.update(buf, 0, length);
 
           if (partialHashes) {
-            chunkDigest.update(buf, 0, read);
             Chunk c = new Chunk();
-            c.setLength(read);
-            c.setHash(chunkDigest.digest(longToBytes(read)));
+            c.setLength(length);
+            c.setOffset(totalRead);
             chunks.add(c);
+
+            if (pool == null) {
+              chunkDigest.update(buf, 0, length);
+              c.setHash(chunkDigest.digest(longToBytes(length)));
+
+              if (chunkConsumer != null) {
+                chunkConsumer.accept(c, Arrays.copyOf(buf, length));
+              }
+            } else {
+              byte[] data = Arrays.copyOf(buf, length);
+
+              pending.add(fork(pool, () -> {
+                c.setHash(chunkHash(data));
+
+                if (chunkConsumer != null) {
+                  chunkConsumer.accept(c, data);
+                }
+              }));
+
+              // limit the memory used by chunks waiting to be hashed
+              if (pending.size() > pool.getParallelism()) {
+                pending.poll().join();
+              }
+            }
           }
+
+          totalRead += length;
+          filled -= length;
+          // move remaining data to the beginning of the buffer
+          System.arraycopy(buf, length, buf, 0, filled);
         }
 
+        pending.forEach(ForkJoinTask::join);
+
         if (totalRead == p.size()) {
           h.setChunks(chunks);
         } else {
           throw new IOException(String.format("%d bytes were read instead of %d",
               totalRead, p.size()));
         }
+      } finally {
+        synchronized (this) {
+          // buffers of other sizes are replaced when polled
+          hashBuffers.offer(buf);
+        }
       }
 
       h.setMain(fullDigest.digest(longToBytes(fileSize)));
@@ -725,6 +1467,31 @@ public class Filesystem {
     return h;
   }
 
+  /**
+   * Runs a task in the passed pool, or forks it if the current thread already
+   * belongs to that pool.
+   */
+  private static ForkJoinTask<?> fork(ForkJoinPool pool, Runnable runnable) {
+    ForkJoinTask<?> task = ForkJoinTask.adapt(runnable);
+
+    if (ForkJoinTask.getPool() == pool) {
+      task.fork();
+    } else {
+      pool.execute(task);
+    }
+
+    return task;
+  }
+
+  /**
+   * Computes the hash of a chunk, which includes its length.
+   */
+  private static byte[] chunkHash(byte[] data) {
+    MessageDigest md = getMessageDigest();
+    md.update(data);
+    return md.digest(longToBytes(data.length));
+  }
+
   private static MessageDigest getMessageDigest() {
     try {
       return MessageDigest.getInstance(HASH_ALGORITHM);
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.compression;
+
+import java.io.IOException;
+
+/**
+ * Compresses chunk contents. Each codec is identified by a number, stored in
+ * the header of encoded chunks (see {@link ChunkCodecs}).
+ *
+ * @author Luciano Vernaschi (luciano at cromoteca.com)
+ */
+public interface ChunkCodec {
+  /**
+   * Number that identifies this codec in chunk headers.
+   */
+  int getId();
+
+  /**
+   * Name used to select this codec in the storage configuration.
+   */
+  String getName();
+
+  /**
+   * Compresses data.
+   */
+  byte[] encode(byte[] data) throws IOException;
+
+  /**
+   * Compresses data into a buffer supplied by the caller.
+   *
+   * @param data      the data to compress
+   * @param out       the buffer that will contain compressed data
+   * @param outOffset start of compressed data
+   * @param outLength available space for compressed data
+   * @return the length of compressed data, or -1 if it does not fit
+   */
+  default int encode(byte[] data, byte[] out, int outOffset, int outLength)
+      throws IOException {
+    byte[] encoded = encode(data);
+
+    if (encoded.length > outLength) {
+      return -1;
+    }
+
+    System.arraycopy(encoded, 0, out, outOffset, encoded.length);
+    return encoded.length;
+  }
+
+  /**
+   * Decompresses data.
+   *
+   * @param data           the buffer containing compressed data
+   * @param offset         start of compressed data
+   * @param length         length of compressed data
+   * @param originalLength length of decompressed data
+   */
+  byte[] decode(byte[] data, int offset, int length, int originalLength)
+      throws IOException;
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.compression;
+
+import com.cromoteca.bfts.model.StorageConfiguration;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encodes and decodes stored chunks. A chunk can be stored in three ways:
+ * <ul>
+ * <li>uncompressed, when its length is equal to the original length</li>
+ * <li>as a zlib stream without header, as done by older versions</li>
+ * <li>with a two bytes header: {@link #MAGIC} and the codec id</li>
+ * </ul>
+ * Encoded chunks are always shorter than the original data, and zlib streams
+ * never start with {@link #MAGIC}, so the three formats can't be confused.
+ *
+ * @author Luciano Vernaschi (luciano at cromoteca.com)
+ */
+public class ChunkCodecs {
+  /**
+   * First byte of chunks stored with a codec header.
+   */
+  public static final byte MAGIC = (byte) 0xB5;
+  private static final int HEADER_LENGTH = 2;
+  private static final Map<Integer, ChunkCodec> codecs
+      = new ConcurrentHashMap<>();
+  // encoding buffer, as large as the largest encoded chunk
+  private static final ThreadLocal<byte[]> scratch = new ThreadLocal<>();
+
+  static {
+    register(new DeflateCodec());
+    register(new SnappyCodec());
+    register(new NoCodec());
+  }
+
+  private ChunkCodecs() {
+  }
+
+  /**
+   * Makes a codec available for decoding. Ids must fit in a byte.
+   */
+  public static void register(ChunkCodec codec) {
+    if (codec.getId() < 0 || codec.getId() > 255) {
+      throw new IllegalArgumentException("Invalid codec id " + codec.getId());
+    }
+
+    codecs.put(codec.getId(), codec);
+  }
+
+  /**
+   * Returns the codec registered with the passed id, or null if missing.
+   */
+  public static ChunkCodec get(int id) {
+    return codecs.get(id);
+  }
+
+  /**
+   * Returns the codec registered with the passed name, or null if missing.
+   */
+  public static ChunkCodec forName(String name) {
+    return codecs.values().stream().filter(c -> c.getName().equals(name))
+        .findFirst().orElse(null);
+  }
+
+  /**
+   * Returns the codec selected in a storage configuration.
+   */
+  public static ChunkCodec forConfiguration(StorageConfiguration config) {
+    if (config.getChunkCodec() == DeflateCodec.ID) {
+      int level = config.getCompressionLevel();
+      return level == 0 ? new DeflateCodec() : new DeflateCodec(level);
+    }
+
+    ChunkCodec codec = get(config.getChunkCodec());
+
+    if (codec == null) {
+      throw new IllegalArgumentException("Unknown codec "
+          + config.getChunkCodec());
+    }
+
+    return codec;
+  }
+
+  /**
+   * Encodes chunk content, or returns it as is if encoding does not make it
+   * smaller.
+   */
+  public static byte[] encode(ChunkCodec codec, byte[] data)
+      throws IOException {
+    // deflated chunks don't have a header, to be compatible with older
+    // versions
+    int headerLength = codec.getId() == DeflateCodec.ID ? 0 : HEADER_LENGTH;
+    // encoded data must be smaller than original data
+    int available = data.length - 1 - headerLength;
+
+    if (available <= 0) {
+      return data;
+    }
+
+    byte[] out = scratch.get();
+
+    // chunks are never larger than the maximum chunk size, so the buffer
+    // won't grow indefinitely
+    if (out == null || out.length < data.length) {
+      out = new byte[data.length];
+      scratch.set(out);
+    }
+
+    // encoding stops as soon as the available space is full
+    int length = codec.encode(data, out, headerLength, available);
+
+    if (length < 0) {
+      return data;
+    }
+
+    if (headerLength > 0) {
+      out[0] = MAGIC;
+      out[1] = (byte) codec.getId();
+    }
+
+    return Arrays.copyOf(out, headerLength + length);
+  }
+
+  /**
+   * Decodes stored chunk content.
+   *
+   * @param data   stored data
+   * @param length the original chunk length
+   */
+  public static byte[] decode(byte[] data, int length) throws IOException {
+    if (data.length >= length) {
+      // not compressed (or wrong, the caller will check)
+      return data;
+    }
+
+    if (data.length > HEADER_LENGTH && data[0] == MAGIC) {
+      int id = data[1] & 0xFF;
+      ChunkCodec codec = get(id);
+
+      if (codec == null) {
+        throw new IOException("Unknown codec " + id);
+      }
+
+      return codec.decode(data, HEADER_LENGTH, data.length - HEADER_LENGTH,
+          length);
+    }
+
+    // headerless zlib stream
+    return get(DeflateCodec.ID).decode(data, 0, data.length, length);
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.compression;
+
+import com.cromoteca.bfts.model.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether compressing a chunk is worth trying. Data that is already
+ * compressed (pictures, videos, archives, encrypted files) is detected by file
+ * extension, by magic number and by measuring the entropy of the beginning of
+ * the chunk. When the first chunk of a file can't be compressed, the other
+ * chunks of the same file are not compressed either.
+ *
+ * @author Luciano Vernaschi (luciano at cromoteca.com)
+ */
+public class CompressionPolicy {
+  /**
+   * Outcomes of {@link #decide(File, long, byte[])}.
+   */
+  public static enum Decision {
+    COMPRESS, SKIP_EXTENSION, SKIP_MAGIC, SKIP_ENTROPY, SKIP_FILE;
+  }
+
+  private static final Set<String> INCOMPRESSIBLE_EXTENSIONS
+      = new HashSet<>(Arrays.asList("7z", "aac", "apk", "avi", "bz2", "docx",
+          "epub", "flac", "gif", "gz", "heic", "jar", "jpeg", "jpg", "lz4",
+          "m4a", "m4v", "mkv", "mov", "mp3", "mp4", "odp", "ods", "odt", "ogg",
+          "opus", "png", "pptx", "rar", "tgz", "webm", "webp", "xlsx", "xz",
+          "zip", "zst"));
+  private static final byte[][] MAGIC_NUMBERS = new byte[][] {
+    { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF }, // jpeg
+    { (byte) 0x89, 'P', 'N', 'G' }, // png
+    { 'G', 'I', 'F', '8' }, // gif
+    { 'P', 'K', 3, 4 }, // zip and derived formats
+    { 0x1F, (byte) 0x8B }, // gzip
+    { 'B', 'Z', 'h' }, // bzip2
+    { (byte) 0xFD, '7', 'z', 'X', 'Z', 0 }, // xz
+    { '7', 'z', (byte) 0xBC, (byte) 0xAF, 0x27, 0x1C }, // 7z
+    { 'R', 'a', 'r', '!' }, // rar
+    { 0x28, (byte) 0xB5, 0x2F, (byte) 0xFD }, // zstd
+    { 'O', 'g', 'g', 'S' }, // ogg
+    { 'f', 'L', 'a', 'C' }, // flac
+    { 0x1A, 0x45, (byte) 0xDF, (byte) 0xA3 } // matroska and webm
+  };
+  /**
+   * Number of bytes used to estimate entropy.
+   */
+  private static final int SAMPLE_SIZE = 4096;
+  /**
+   * Bits per byte above which data is considered incompressible. Random data
+   * gives about 7.95 with 4096 bytes.
+   */
+  private static final double MAX_ENTROPY = 7.9;
+  private static final int REMEMBERED_FILES = 1024;
+
+  private final Map<String, Boolean> incompressibleFiles
+      = Collections.synchronizedMap(new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+          return size() > REMEMBERED_FILES;
+        }
+      });
+  private final Map<Decision, AtomicLong> decisions
+      = new EnumMap<>(Decision.class);
+  private final AtomicLong wasted = new AtomicLong();
+
+  public CompressionPolicy() {
+    for (Decision decision : Decision.values()) {
+      decisions.put(decision, new AtomicLong());
+    }
+  }
+
+  /**
+   * Decides whether a chunk should be compressed.
+   *
+   * @param file   the file containing the chunk
+   * @param offset the chunk position in the file
+   * @param data   the chunk content
+   */
+  public Decision decide(File file, long offset, byte[] data) {
+    Decision decision = evaluate(file, offset, data);
+    decisions.get(decision).incrementAndGet();
+
+    if (decision != Decision.COMPRESS && offset == 0) {
+      incompressibleFiles.put(getKey(file), Boolean.TRUE);
+    }
+
+    return decision;
+  }
+
+  private Decision evaluate(File file, long offset, byte[] data) {
+    if (offset > 0 && incompressibleFiles.containsKey(getKey(file))) {
+      return Decision.SKIP_FILE;
+    }
+
+    String name = file.getName();
+    int dot = name.lastIndexOf('.');
+
+    if (dot >= 0 && INCOMPRESSIBLE_EXTENSIONS
+        .contains(name.substring(dot + 1).toLowerCase(Locale.ENGLISH))) {
+      return Decision.SKIP_EXTENSION;
+    }
+
+    if (offset == 0 && hasMagicNumber(data)) {
+      return Decision.SKIP_MAGIC;
+    }
+
+    if (data.length >= SAMPLE_SIZE && entropy(data, SAMPLE_SIZE) > MAX_ENTROPY) {
+      return Decision.SKIP_ENTROPY;
+    }
+
+    return Decision.COMPRESS;
+  }
+
+  /**
+   * Records the result of a compression attempt.
+   *
+   * @param file    the file containing the chunk
+   * @param offset  the chunk position in the file
+   * @param reduced true if compression made the chunk smaller
+   */
+  public void record(File file, long offset, boolean reduced) {
+    if (!reduced) {
+      wasted.incrementAndGet();
+
+      if (offset == 0) {
+        incompressibleFiles.put(getKey(file), Boolean.TRUE);
+      }
+    }
+  }
+
+  /**
+   * Percentage of incompressible chunks that have been detected without trying
+   * to compress them.
+   */
+  public int getHitRate() {
+    long skipped = getSkipped();
+    long total = skipped + wasted.get();
+    return total == 0 ? 100 : (int) (skipped * 100 / total);
+  }
+
+  private long getSkipped() {
+    return decisions.entrySet().stream()
+        .filter(e -> e.getKey() != Decision.COMPRESS)
+        .mapToLong(e -> e.getValue().get()).sum();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d chunks compressed (%d not reduced), %d skipped"
+        + " (extension %d, magic number %d, entropy %d, file %d), hit rate %d%%",
+        decisions.get(Decision.COMPRESS).get(), wasted.get(), getSkipped(),
+        decisions.get(Decision.SKIP_EXTENSION).get(),
+        decisions.get(Decision.SKIP_MAGIC).get(),
+        decisions.get(Decision.SKIP_ENTROPY).get(),
+        decisions.get(Decision.SKIP_FILE).get(), getHitRate());
+  }
+
+  private static String getKey(File file) {
+    return file.getPath() + "@" + file.getLastModified();
+  }
+
+  private static boolean hasMagicNumber(byte[] data) {
+    for (byte[] magic : MAGIC_NUMBERS) {
+      if (data.length >= magic.length
+          && Arrays.equals(magic, Arrays.copyOf(data, magic.length))) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Computes the Shannon entropy of the beginning of data, in bits per byte.
+   */
+  static double entropy(byte[] data, int length) {
+    int[] counts = new int[256];
+
+    for (int i = 0; i < length; i++) {
+      counts[data[i] & 0xFF]++;
+    }
+
+    double entropy = 0;
+
+    for (int count : counts) {
+      if (count > 0) {
+        double p = (double) count / length;
+        entropy -= p * Math.log(p);
+      }
+    }
+
+    return entropy / Math.log(2);
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.compression;
+
+import com.cromoteca.bfts.util.Compression;
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+/**
+ * Deflate compression, using the zlib format. This is the format used by older
+ * versions, so deflated chunks are stored without a codec header.
+ *
+ * @author Luciano Vernaschi (luciano at cromoteca.com)
+ */
+public class DeflateCodec implements ChunkCodec {
+  public static final int ID = 0;
+  private final int level;
+
+  public DeflateCodec() {
+    this(Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * Creates a codec using the passed compression level.
+   *
+   * @param level from 1 (fastest) to 9 (smallest), or -1 for the default
+   */
+  public DeflateCodec(int level) {
+    if (level != Deflater.DEFAULT_COMPRESSION && (level < 1 || level > 9)) {
+      throw new IllegalArgumentException("Compression level must be between 1"
+          + " and 9");
+    }
+
+    this.level = level;
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  @Override
+  public int getId() {
+    return ID;
+  }
+
+  @Override
+  public String getName() {
+    return "deflate";
+  }
+
+  @Override
+  public byte[] encode(byte[] data) throws IOException {
+    return Compression.compress(data, level);
+  }
+
+  @Override
+  public int encode(byte[] data, byte[] out, int outOffset, int outLength) {
+    return Compression.compress(data, 0, data.length, level, out, outOffset,
+        outLength);
+  }
+
+  @Override
+  public byte[] decode(byte[] data, int offset, int length, int originalLength)
+      throws IOException {
+    byte[] decoded = new byte[originalLength];
+    Compression.decompress(data, offset, length, decoded, 0, originalLength);
+    return decoded;
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.compression;
+
+import java.util.Arrays;
+
+/**
+ * Does not compress data, which is useful for data that is already compressed
+ * or when the network is faster than compression.
+ *
+ * @author Luciano Vernaschi (luciano at cromoteca.com)
+ */
+public class NoCodec implements ChunkCodec {
+  public static final int ID = 2;
+
+  @Override
+  public int getId() {
+    return ID;
+  }
+
+  @Override
+  public String getName() {
+    return "none";
+  }
+
+  @Override
+  public byte[] encode(byte[] data) {
+    return data;
+  }
+
+  @Override
+  public byte[] decode(byte[] data, int offset, int length,
+      int originalLength) {
+    return Arrays.copyOfRange(data, offset, offset + length);
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.compression;
+
+import java.io.IOException;
+import org.iq80.snappy.CorruptionException;
+import org.iq80.snappy.Snappy;
+
+/**
+ * Snappy compression: compresses less than deflate, but it is many times
+ * faster.
+ *
+ * @author Luciano Vernaschi (luciano at cromoteca.com)
+ */
+public class SnappyCodec implements ChunkCodec {
+  public static final int ID = 1;
+
+  @Override
+  public int getId() {
+    return ID;
+  }
+
+  @Override
+  public String getName() {
+    return "snappy";
+  }
+
+  @Override
+  public byte[] encode(byte[] data) {
+    return Snappy.compress(data);
+  }
+
+  @Override
+  public byte[] decode(byte[] data, int offset, int length, int originalLength)
+      throws IOException {
+    try {
+      if (Snappy.getUncompressedLength(data, offset) != originalLength) {
+        throw new IOException("Unexpected uncompressed length");
+      }
+
+      return Snappy.uncompress(data, offset, length);
+    } catch (CorruptionException ex) {
+      throw new IOException(ex);
+    }
+  }
+}
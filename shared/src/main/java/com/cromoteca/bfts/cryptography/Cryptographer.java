@@ -16,6 +16,7 @@
  */
 package com.cromoteca.bfts.cryptography;
 
+import com.cromoteca.bfts.util.Factory;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
@@ -24,13 +25,18 @@ import java.security.KeyPairGenerator;
 import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.SecureRandom;
 import java.security.Security;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
 import java.util.Base64;
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -38,6 +44,11 @@ import javax.crypto.spec.SecretKeySpec;
 /**
  * Encrypts and decrypts data.&nbsp;Java Cryptographer Extension (JCE) Unlimited
  * Strength is required.
+ * <p>
+ * Two formats are supported: the original AES-CBC one, whose IV is derived from
+ * data so that equal values give equal results, and an authenticated AES-GCM
+ * one with a random nonce, preceded by a short header. Decryption recognizes
+ * both. Cipher instances are cached per thread.
  *
  * @author Luciano Vernaschi (luciano at cromoteca.com)
  */
@@ -69,11 +80,83 @@ public class Cryptographer {
    */
   public static final String KEY_PAIR_ALGORITHM = KEY_PAIR_TRANSFORMATION
       .substring(0, KEY_PAIR_TRANSFORMATION.indexOf('/'));
+  /**
+   * Transformation used by the authenticated format.
+   */
+  public static final String GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+  public static final int NONCE_SIZE = 12;
+  public static final int TAG_SIZE = 16;
+  /**
+   * Size of the header of the authenticated format: a magic byte, a version
+   * byte and the nonce.
+   */
+  public static final int HEADER_SIZE = 2 + NONCE_SIZE;
+  /**
+   * Bytes added to data by the authenticated format.
+   */
+  public static final int GCM_OVERHEAD = HEADER_SIZE + TAG_SIZE;
+  /**
+   * Algorithm used to authenticate data that is not encrypted again.
+   */
+  public static final String MAC_ALGORITHM = "HmacSHA256";
+  public static final int MAC_SIZE = 32;
+  private static final byte MAGIC = (byte) 0xC7;
+  private static final byte VERSION_GCM = 1;
+  private static final String DIGEST_ALGORITHM = "MD5";
+  private static final Factory factory;
+  private static final SecureRandom random = new SecureRandom();
   private final SecretKey secretKey;
+  private volatile SecretKey macKey;
+
+  /**
+   * Encryption formats.
+   */
+  public enum Mode {
+    /**
+     * AES-CBC with an IV derived from data: equal values are encrypted the
+     * same way, so they can be used for lookups.
+     */
+    CBC,
+    /**
+     * AES-GCM with a random nonce: authenticated and faster, since data is
+     * read only once.
+     */
+    GCM
+  }
 
   static {
     // valid since Java SE 8u151
     Security.setProperty("crypto.policy", "unlimited");
+
+    factory = new Factory();
+
+    for (String transformation : new String[] { TRANSFORMATION,
+      GCM_TRANSFORMATION, KEY_PAIR_TRANSFORMATION }) {
+      factory.registerThreadLocal(Cipher.class, transformation, () -> {
+        try {
+          return Cipher.getInstance(transformation);
+        } catch (GeneralSecurityException ex) {
+          // these transformations are available on every platform
+          throw new IllegalStateException(ex);
+        }
+      });
+    }
+
+    factory.registerThreadLocal(Mac.class, () -> {
+      try {
+        return Mac.getInstance(MAC_ALGORITHM);
+      } catch (GeneralSecurityException ex) {
+        throw new IllegalStateException(ex);
+      }
+    });
+
+    factory.registerThreadLocal(MessageDigest.class, () -> {
+      try {
+        return MessageDigest.getInstance(DIGEST_ALGORITHM);
+      } catch (GeneralSecurityException ex) {
+        throw new IllegalStateException(ex);
+      }
+    });
   }
 
   /**
@@ -129,47 +212,173 @@ public class Cryptographer {
   }
 
   /**
-   * Encrypts a byte array.
+   * Encrypts a byte array using the CBC format, so that the result is always
+   * the same for the same array.
    */
   public byte[] encrypt(byte[] b) throws GeneralSecurityException {
+    return encrypt(b, Mode.CBC);
+  }
+
+  /**
+   * Encrypts a byte array using the passed format.
+   */
+  public byte[] encrypt(byte[] b, Mode mode) throws GeneralSecurityException {
     byte[] result = null;
 
     if (b != null) {
-      // a random IV shoud be used, but we need to get the same result when
-      // encrypting the same message
-      MessageDigest md = MessageDigest.getInstance("MD5");
-      byte[] iv = md.digest(b);
-
-      IvParameterSpec ivspec = new IvParameterSpec(iv);
-      Cipher c = Cipher.getInstance(TRANSFORMATION);
-      c.init(Cipher.ENCRYPT_MODE, secretKey, ivspec);
-
-      byte[] enc = c.doFinal(b);
-      result = new byte[IV_SIZE + enc.length];
-      System.arraycopy(iv, 0, result, 0, IV_SIZE);
-      System.arraycopy(enc, 0, result, IV_SIZE, enc.length);
+      if (mode == Mode.GCM) {
+        result = new byte[b.length + GCM_OVERHEAD];
+        encrypt(b, 0, b.length, result, 0);
+      } else {
+        // a random IV shoud be used, but we need to get the same result when
+        // encrypting the same message
+        byte[] iv = factory.obtain(MessageDigest.class).digest(b);
+
+        Cipher c = factory.obtain(Cipher.class, TRANSFORMATION);
+        c.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(iv));
+
+        result = new byte[IV_SIZE + c.getOutputSize(b.length)];
+        System.arraycopy(iv, 0, result, 0, IV_SIZE);
+        c.doFinal(b, 0, b.length, result, IV_SIZE);
+      }
     }
 
     return result;
   }
 
   /**
-   * Decrypts a byte array.
+   * Encrypts data into a buffer supplied by the caller, using the GCM format.
+   * Buffers can overlap, so data can be encrypted in place if it starts
+   * {@link #HEADER_SIZE} bytes after the output.
+   *
+   * @param data      the buffer containing data
+   * @param offset    start of data
+   * @param length    length of data
+   * @param out       the buffer that will contain encrypted data, which needs
+   *                  {@link #GCM_OVERHEAD} bytes more than data
+   * @param outOffset start of encrypted data
+   * @return the length of encrypted data
+   */
+  public int encrypt(byte[] data, int offset, int length, byte[] out,
+      int outOffset) throws GeneralSecurityException {
+    byte[] nonce = new byte[NONCE_SIZE];
+    random.nextBytes(nonce);
+
+    Cipher c = factory.obtain(Cipher.class, GCM_TRANSFORMATION);
+    c.init(Cipher.ENCRYPT_MODE, secretKey,
+        new GCMParameterSpec(TAG_SIZE * 8, nonce));
+
+    out[outOffset] = MAGIC;
+    out[outOffset + 1] = VERSION_GCM;
+    System.arraycopy(nonce, 0, out, outOffset + 2, NONCE_SIZE);
+    return HEADER_SIZE
+        + c.doFinal(data, offset, length, out, outOffset + HEADER_SIZE);
+  }
+
+  /**
+   * Decrypts a byte array, whatever format was used to encrypt it.
    */
   public byte[] decrypt(byte[] b) throws GeneralSecurityException {
     byte[] result = null;
 
     if (b != null) {
+      AEADBadTagException gcmFailure = null;
+
+      if (isAuthenticated(b, 0, b.length)) {
+        try {
+          result = new byte[b.length - GCM_OVERHEAD];
+          decrypt(b, 0, b.length, result, 0);
+          return result;
+        } catch (AEADBadTagException ex) {
+          // a CBC result always has a length multiple of the block size, but
+          // it can start with the same bytes by chance
+          if (b.length % IV_SIZE != 0) {
+            throw ex;
+          }
+
+          gcmFailure = ex;
+        }
+      }
+
       IvParameterSpec ivspec = new IvParameterSpec(b, 0, IV_SIZE);
-      Cipher c = Cipher.getInstance(TRANSFORMATION);
+      Cipher c = factory.obtain(Cipher.class, TRANSFORMATION);
       c.init(Cipher.DECRYPT_MODE, secretKey, ivspec);
 
-      result = c.doFinal(b, IV_SIZE, b.length - IV_SIZE);
+      try {
+        result = c.doFinal(b, IV_SIZE, b.length - IV_SIZE);
+      } catch (GeneralSecurityException ex) {
+        throw gcmFailure == null ? ex : gcmFailure;
+      }
+
+      // the CBC IV is the digest of the original data: checking it tells a
+      // CBC result from tampered GCM data that happens to have valid padding
+      if (gcmFailure != null && !MessageDigest.isEqual(
+          factory.obtain(MessageDigest.class).digest(result),
+          Arrays.copyOf(b, IV_SIZE))) {
+        throw gcmFailure;
+      }
     }
 
     return result;
   }
 
+  /**
+   * Decrypts data encrypted using the GCM format into a buffer supplied by the
+   * caller, which needs {@link #GCM_OVERHEAD} bytes less than encrypted data.
+   *
+   * @return the length of decrypted data
+   */
+  public int decrypt(byte[] data, int offset, int length, byte[] out,
+      int outOffset) throws GeneralSecurityException {
+    if (!isAuthenticated(data, offset, length)) {
+      throw new AEADBadTagException("Unknown encryption format");
+    }
+
+    Cipher c = factory.obtain(Cipher.class, GCM_TRANSFORMATION);
+    c.init(Cipher.DECRYPT_MODE, secretKey,
+        new GCMParameterSpec(TAG_SIZE * 8, data, offset + 2, NONCE_SIZE));
+    return c.doFinal(data, offset + HEADER_SIZE, length - HEADER_SIZE, out,
+        outOffset);
+  }
+
+  /**
+   * Computes an authentication code for data that is already encrypted, so
+   * that it can be transferred without being encrypted again.
+   *
+   * @return a code of {@link #MAC_SIZE} bytes
+   */
+  public byte[] authenticate(byte[] b) throws GeneralSecurityException {
+    Mac mac = factory.obtain(Mac.class);
+    mac.init(getMacKey());
+    return mac.doFinal(b);
+  }
+
+  /**
+   * Checks a code computed by {@link #authenticate(byte[])}.
+   */
+  public void verify(byte[] b, byte[] code) throws GeneralSecurityException {
+    if (!MessageDigest.isEqual(authenticate(b), code)) {
+      throw new AEADBadTagException("Authentication failed");
+    }
+  }
+
+  private SecretKey getMacKey() throws GeneralSecurityException {
+    if (macKey == null) {
+      // derived from the encryption key, which is not used directly
+      Mac mac = factory.obtain(Mac.class);
+      mac.init(new SecretKeySpec(secretKey.getEncoded(), MAC_ALGORITHM));
+      macKey = new SecretKeySpec(mac.doFinal("authentication"
+          .getBytes(StandardCharsets.UTF_8)), MAC_ALGORITHM);
+    }
+
+    return macKey;
+  }
+
+  private static boolean isAuthenticated(byte[] data, int offset, int length) {
+    return length >= GCM_OVERHEAD && data[offset] == MAGIC
+        && data[offset + 1] == VERSION_GCM;
+  }
+
   /**
    * Encrypts a byte array using a public key.
    *
@@ -179,11 +388,27 @@ public class Cryptographer {
    */
   public byte[] encrypt(byte[] data, byte[] encryptedEncodedPublicKey)
       throws GeneralSecurityException {
+    return encrypt(data, decryptPublicKey(encryptedEncodedPublicKey));
+  }
+
+  /**
+   * Decrypts a public key encrypted using the key used to create this object,
+   * so that it can be reused.
+   */
+  public PublicKey decryptPublicKey(byte[] encryptedEncodedPublicKey)
+      throws GeneralSecurityException {
     byte[] encodedPublicKey = decrypt(encryptedEncodedPublicKey);
     X509EncodedKeySpec spec = new X509EncodedKeySpec(encodedPublicKey);
     KeyFactory keyFactory = KeyFactory.getInstance(KEY_PAIR_ALGORITHM);
-    PublicKey publicKey = keyFactory.generatePublic(spec);
-    Cipher cipher = Cipher.getInstance(KEY_PAIR_TRANSFORMATION);
+    return keyFactory.generatePublic(spec);
+  }
+
+  /**
+   * Encrypts a byte array using a public key.
+   */
+  public static byte[] encrypt(byte[] data, PublicKey publicKey)
+      throws GeneralSecurityException {
+    Cipher cipher = factory.obtain(Cipher.class, KEY_PAIR_TRANSFORMATION);
     cipher.init(Cipher.ENCRYPT_MODE, publicKey);
     byte[] encryptedData = cipher.doFinal(data);
     return encryptedData;
@@ -200,7 +425,7 @@ public class Cryptographer {
     PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(encodedPrivateKey);
     KeyFactory keyFactory = KeyFactory.getInstance(KEY_PAIR_ALGORITHM);
     PrivateKey privateKey = keyFactory.generatePrivate(spec);
-    Cipher cipher = Cipher.getInstance(KEY_PAIR_TRANSFORMATION);
+    Cipher cipher = factory.obtain(Cipher.class, KEY_PAIR_TRANSFORMATION);
     cipher.init(Cipher.DECRYPT_MODE, privateKey);
     byte[] decryptedData = cipher.doFinal(encryptedData);
     return decryptedData;
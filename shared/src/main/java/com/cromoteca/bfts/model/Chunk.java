@@ -27,6 +27,7 @@ public class Chunk {
   private File file;
   private int index;
   private int length;
+  private long offset = -1;
   private byte[] hash;
 
   /**
@@ -73,6 +74,18 @@ public class Chunk {
     this.length = length;
   }
 
+  /**
+   * Position of chunk data in file, or -1 if unknown (chunks hashed by older
+   * versions, that start at index * chunk size)
+   */
+  public long getOffset() {
+    return offset;
+  }
+
+  public void setOffset(long offset) {
+    this.offset = offset;
+  }
+
   @Override
   public String toString() {
     return Hex.printHexBinary(hash);
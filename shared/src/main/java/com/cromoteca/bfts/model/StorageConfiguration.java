@@ -31,6 +31,13 @@ public class StorageConfiguration {
   private int databaseBackupIntervalMinutes = 240;
   private int databaseBackupsToKeep = 12;
   private byte[] encryptedPublicKey;
+  private boolean packedChunks;
+  private int databaseReaders = 4;
+  private int chunkMinSize;
+  private int chunkAverageSize;
+  private int chunkMaxSize;
+  private int chunkCodec;
+  private int compressionLevel;
 
   {
     SecureRandom random = new SecureRandom();
@@ -93,4 +100,87 @@ public class StorageConfiguration {
   public void setEncryptedPublicKey(byte[] encryptedPublicKey) {
     this.encryptedPublicKey = encryptedPublicKey;
   }
+
+  /**
+   * Whether chunks are appended to pack segments instead of being stored in
+   * individual files
+   */
+  public boolean isPackedChunks() {
+    return packedChunks;
+  }
+
+  public void setPackedChunks(boolean packedChunks) {
+    this.packedChunks = packedChunks;
+  }
+
+  /**
+   * Number of read-only database connections that run queries in parallel.
+   * When 0, a new connection is opened for every query and the database file
+   * is released when idle, which is needed for storages on removable drives.
+   */
+  public int getDatabaseReaders() {
+    return databaseReaders;
+  }
+
+  public void setDatabaseReaders(int databaseReaders) {
+    this.databaseReaders = databaseReaders;
+  }
+
+  /**
+   * Minimum chunk size for content-defined chunking
+   */
+  public int getChunkMinSize() {
+    return chunkMinSize;
+  }
+
+  public void setChunkMinSize(int chunkMinSize) {
+    this.chunkMinSize = chunkMinSize;
+  }
+
+  /**
+   * Average chunk size for content-defined chunking. When 0, files are split
+   * into chunks of fixed size.
+   */
+  public int getChunkAverageSize() {
+    return chunkAverageSize;
+  }
+
+  public void setChunkAverageSize(int chunkAverageSize) {
+    this.chunkAverageSize = chunkAverageSize;
+  }
+
+  /**
+   * Maximum chunk size for content-defined chunking
+   */
+  public int getChunkMaxSize() {
+    return chunkMaxSize;
+  }
+
+  public void setChunkMaxSize(int chunkMaxSize) {
+    this.chunkMaxSize = chunkMaxSize;
+  }
+
+  /**
+   * Codec used to compress chunks (see
+   * {@link com.cromoteca.bfts.compression.ChunkCodecs})
+   */
+  public int getChunkCodec() {
+    return chunkCodec;
+  }
+
+  public void setChunkCodec(int chunkCodec) {
+    this.chunkCodec = chunkCodec;
+  }
+
+  /**
+   * Compression level, when supported by the codec. When 0, the default level
+   * of the codec is used.
+   */
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  public void setCompressionLevel(int compressionLevel) {
+    this.compressionLevel = compressionLevel;
+  }
 }
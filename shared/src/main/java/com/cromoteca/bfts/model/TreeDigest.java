@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.model;
+
+import com.cromoteca.bfts.util.Hex;
+
+/**
+ * Digest of the contents of a directory, computed over names, sizes and
+ * modification times of all its files and subdirectories.
+ *
+ * @author Luciano Vernaschi (luciano at cromoteca.com)
+ */
+public class TreeDigest {
+  private long id;
+  private String parent;
+  private String name;
+  private int index;
+  private byte[] digest;
+  private int size;
+  private boolean skipped;
+
+  /**
+   * The id of the directory in the database
+   */
+  public long getId() {
+    return id;
+  }
+
+  public void setId(long id) {
+    this.id = id;
+  }
+
+  /**
+   * The parent of the directory, only set by
+   * {@link com.cromoteca.bfts.storage.Storage#getTreeDigests(int, int)}
+   */
+  public String getParent() {
+    return parent;
+  }
+
+  public void setParent(String parent) {
+    this.parent = parent;
+  }
+
+  /**
+   * The name of the directory, only set by
+   * {@link com.cromoteca.bfts.storage.Storage#getTreeDigests(int, int)}
+   */
+  public String getName() {
+    return name;
+  }
+
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Position of the directory in the list of files sent to the storage. A
+   * negative value -n refers to a directory added by a previous call, which
+   * is followed by n - 1 rows in the storage.
+   */
+  public int getIndex() {
+    return index;
+  }
+
+  public void setIndex(int index) {
+    this.index = index;
+  }
+
+  /**
+   * The digest
+   */
+  public byte[] getDigest() {
+    return digest;
+  }
+
+  public void setDigest(byte[] digest) {
+    this.digest = digest;
+  }
+
+  /**
+   * Number of files and directories contained in the directory and its
+   * subdirectories
+   */
+  public int getSize() {
+    return size;
+  }
+
+  public void setSize(int size) {
+    this.size = size;
+  }
+
+  /**
+   * True if the directory contents have not been sent, since they are
+   * identical to the ones already in the storage
+   */
+  public boolean isSkipped() {
+    return skipped;
+  }
+
+  public void setSkipped(boolean skipped) {
+    this.skipped = skipped;
+  }
+
+  @Override
+  public String toString() {
+    return "TreeDigest{" + "index=" + index + ", digest="
+        + (digest == null ? null : Hex.printHexBinary(digest)) + ", size="
+        + size + ", skipped=" + skipped + '}';
+  }
+}
@@ -0,0 +1,512 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.storage;
+
+import com.cromoteca.bfts.model.Chunk;
+import com.cromoteca.bfts.model.File;
+import com.cromoteca.bfts.model.Hash;
+import com.cromoteca.bfts.model.Pair;
+import com.cromoteca.bfts.model.Source;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact binary encoding of the model classes exchanged by remote storages.
+ * The declared type is known on both sides, so no type information is written:
+ * numbers are varints, strings and byte arrays are prefixed by their length
+ * and file parents share their prefix with the parent of the previous file.
+ * Any change to the encoding requires a new {@link #VERSION}.
+ *
+ * @author Luciano Vernaschi (luciano at cromoteca.com)
+ */
+class BinaryCodec {
+  /**
+   * Version of the encoding.
+   */
+  static final int VERSION = 1;
+
+  /**
+   * Tells whether values of the passed type can be encoded.
+   */
+  static boolean supports(Type type) {
+    if (type instanceof ParameterizedType) {
+      ParameterizedType pt = (ParameterizedType) type;
+      Type raw = pt.getRawType();
+
+      return (raw == List.class || raw == Pair.class)
+          && Arrays.stream(pt.getActualTypeArguments())
+              .allMatch(BinaryCodec::supports);
+    }
+
+    return type == String.class || type == byte[].class
+        || type == Integer.class || type == int.class
+        || type == Long.class || type == long.class
+        || type == Boolean.class || type == boolean.class
+        || type == Byte.class || type == byte.class
+        || type == File.class || type == Chunk.class || type == Hash.class
+        || type == Source.class;
+  }
+
+  /**
+   * Writes values.
+   */
+  static class Encoder {
+    private byte[] buffer;
+    private int size;
+    // parent of the last written file
+    private String lastParent = "";
+
+    Encoder(int initialCapacity) {
+      buffer = new byte[initialCapacity];
+    }
+
+    /**
+     * Returns a copy of the written bytes.
+     */
+    byte[] toByteArray() {
+      return Arrays.copyOf(buffer, size);
+    }
+
+    int size() {
+      return size;
+    }
+
+    /**
+     * Returns the internal buffer, whose first {@link #size()} bytes are
+     * valid.
+     */
+    byte[] buffer() {
+      return buffer;
+    }
+
+    void write(Type type, Object value) {
+      if (type instanceof ParameterizedType) {
+        ParameterizedType pt = (ParameterizedType) type;
+        Type[] arguments = pt.getActualTypeArguments();
+
+        if (pt.getRawType() == List.class) {
+          List<?> list = (List<?>) value;
+
+          if (list == null) {
+            writeVarLong(0);
+          } else {
+            writeVarLong(list.size() + 1);
+
+            for (Object item : list) {
+              write(arguments[0], item);
+            }
+          }
+        } else {
+          Pair<?, ?> pair = (Pair<?, ?>) value;
+
+          if (writePresence(pair)) {
+            write(arguments[0], pair.getFirst());
+            write(arguments[1], pair.getSecond());
+          }
+        }
+      } else if (type == String.class) {
+        writeString((String) value);
+      } else if (type == byte[].class) {
+        writeBytes((byte[]) value);
+      } else if (type == int.class || type == long.class) {
+        writeSignedVarLong(((Number) value).longValue());
+      } else if (type == Integer.class || type == Long.class) {
+        if (writePresence(value)) {
+          writeSignedVarLong(((Number) value).longValue());
+        }
+      } else if (type == byte.class || type == Byte.class) {
+        if (type == byte.class || writePresence(value)) {
+          writeByte((Byte) value);
+        }
+      } else if (type == boolean.class) {
+        writeByte((Boolean) value ? 1 : 0);
+      } else if (type == Boolean.class) {
+        writeByte(value == null ? 2 : (Boolean) value ? 1 : 0);
+      } else if (type == File.class) {
+        writeFile((File) value);
+      } else if (type == Chunk.class) {
+        writeChunk((Chunk) value);
+      } else if (type == Hash.class) {
+        writeHash((Hash) value);
+      } else if (type == Source.class) {
+        writeSource((Source) value);
+      } else {
+        throw new IllegalArgumentException("Unsupported type " + type);
+      }
+    }
+
+    private void writeFile(File file) {
+      if (writePresence(file)) {
+        writeSignedVarLong(file.getId());
+        writeString(file.getName());
+        writeParent(file.getParent());
+        writeSource(file.getSource());
+        write(Long.class, file.getLastModified());
+        writeSignedVarLong(file.getSize());
+        writeHash(file.getHash());
+        writeSignedVarLong(file.getSyncTime());
+      }
+    }
+
+    private void writeChunk(Chunk chunk) {
+      if (writePresence(chunk)) {
+        writeFile(chunk.getFile());
+        writeSignedVarLong(chunk.getIndex());
+        writeSignedVarLong(chunk.getLength());
+        writeSignedVarLong(chunk.getOffset());
+        writeBytes(chunk.getHash());
+      }
+    }
+
+    private void writeHash(Hash hash) {
+      if (writePresence(hash)) {
+        writeBytes(hash.getMain());
+        List<Chunk> chunks = hash.getChunks();
+
+        if (chunks == null) {
+          writeVarLong(0);
+        } else {
+          writeVarLong(chunks.size() + 1);
+          chunks.forEach(this::writeChunk);
+        }
+
+        writeSignedVarLong(hash.getUploaded());
+      }
+    }
+
+    private void writeSource(Source source) {
+      if (writePresence(source)) {
+        writeSignedVarLong(source.getId());
+        writeString(source.getName());
+        writeString(source.getClient());
+        writeString(source.getRootPath());
+        writeFile(source.getOldestFile());
+        writeFile(source.getNewestFile());
+        writeSignedVarLong(source.getPriority());
+        writeByte((source.isSyncSource() ? 1 : 0)
+            | (source.isSyncTarget() ? 2 : 0));
+        writeString(source.getIgnoredPatterns());
+      }
+    }
+
+    /**
+     * Writes the length of the prefix shared with the last parent, followed by
+     * the rest of the path.
+     */
+    private void writeParent(String parent) {
+      if (parent == null) {
+        writeVarLong(0);
+      } else {
+        int max = Math.min(parent.length(), lastParent.length());
+        int shared = 0;
+
+        while (shared < max
+            && parent.charAt(shared) == lastParent.charAt(shared)) {
+          shared++;
+        }
+
+        // don't split surrogate pairs
+        if (shared > 0
+            && Character.isHighSurrogate(parent.charAt(shared - 1))) {
+          shared--;
+        }
+
+        writeVarLong(shared + 1);
+        writeString(parent.substring(shared));
+        lastParent = parent;
+      }
+    }
+
+    private boolean writePresence(Object o) {
+      writeByte(o == null ? 0 : 1);
+      return o != null;
+    }
+
+    private void writeString(String s) {
+      writeBytes(s == null ? null : s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeBytes(byte[] b) {
+      if (b == null) {
+        writeVarLong(0);
+      } else {
+        writeVarLong(b.length + 1);
+        ensureCapacity(b.length);
+        System.arraycopy(b, 0, buffer, size, b.length);
+        size += b.length;
+      }
+    }
+
+    private void writeSignedVarLong(long value) {
+      // zigzag encoding keeps small negative numbers short
+      writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    private void writeVarLong(long value) {
+      ensureCapacity(10);
+
+      while ((value & ~0x7FL) != 0) {
+        buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+
+      buffer[size++] = (byte) value;
+    }
+
+    private void writeByte(int b) {
+      ensureCapacity(1);
+      buffer[size++] = (byte) b;
+    }
+
+    private void ensureCapacity(int n) {
+      if (size + n > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + n));
+      }
+    }
+  }
+
+  /**
+   * Reads values written by an {@link Encoder}.
+   */
+  static class Decoder {
+    private final byte[] data;
+    private final int end;
+    private int position;
+    private String lastParent = "";
+
+    Decoder(byte[] data, int offset, int length) {
+      this.data = data;
+      position = offset;
+      end = offset + length;
+    }
+
+    Object read(Type type) throws IOException {
+      if (type instanceof ParameterizedType) {
+        ParameterizedType pt = (ParameterizedType) type;
+        Type[] arguments = pt.getActualTypeArguments();
+
+        if (pt.getRawType() == List.class) {
+          int size = (int) readVarLong() - 1;
+
+          if (size < 0) {
+            return null;
+          }
+
+          List<Object> list = new ArrayList<>(Math.min(size, end - position));
+
+          for (int i = 0; i < size; i++) {
+            list.add(read(arguments[0]));
+          }
+
+          return list;
+        } else {
+          return readPresence()
+              ? new Pair<>(read(arguments[0]), read(arguments[1])) : null;
+        }
+      } else if (type == String.class) {
+        return readString();
+      } else if (type == byte[].class) {
+        return readBytes();
+      } else if (type == int.class) {
+        return (int) readSignedVarLong();
+      } else if (type == long.class) {
+        return readSignedVarLong();
+      } else if (type == Integer.class) {
+        return readPresence() ? (int) readSignedVarLong() : null;
+      } else if (type == Long.class) {
+        return readPresence() ? readSignedVarLong() : null;
+      } else if (type == byte.class) {
+        return readByte();
+      } else if (type == Byte.class) {
+        return readPresence() ? readByte() : null;
+      } else if (type == boolean.class) {
+        return readByte() == 1;
+      } else if (type == Boolean.class) {
+        byte b = readByte();
+        return b == 2 ? null : b == 1;
+      } else if (type == File.class) {
+        return readFile();
+      } else if (type == Chunk.class) {
+        return readChunk();
+      } else if (type == Hash.class) {
+        return readHash();
+      } else if (type == Source.class) {
+        return readSource();
+      } else {
+        throw new IllegalArgumentException("Unsupported type " + type);
+      }
+    }
+
+    private File readFile() throws IOException {
+      if (!readPresence()) {
+        return null;
+      }
+
+      long id = readSignedVarLong();
+      String name = readString();
+      File file = new File(name, readParent());
+      file.setId(id);
+      file.setSource(readSource());
+      file.setLastModified((Long) read(Long.class));
+      file.setSize(readSignedVarLong());
+      file.setHash(readHash());
+      file.setSyncTime(readSignedVarLong());
+      return file;
+    }
+
+    private Chunk readChunk() throws IOException {
+      if (!readPresence()) {
+        return null;
+      }
+
+      Chunk chunk = new Chunk();
+      chunk.setFile(readFile());
+      chunk.setIndex((int) readSignedVarLong());
+      chunk.setLength((int) readSignedVarLong());
+      chunk.setOffset(readSignedVarLong());
+      chunk.setHash(readBytes());
+      return chunk;
+    }
+
+    private Hash readHash() throws IOException {
+      if (!readPresence()) {
+        return null;
+      }
+
+      Hash hash = new Hash();
+      hash.setMain(readBytes());
+      int size = (int) readVarLong() - 1;
+
+      if (size < 0) {
+        hash.setChunks(null);
+      } else {
+        List<Chunk> chunks = new ArrayList<>(Math.min(size, end - position));
+
+        for (int i = 0; i < size; i++) {
+          chunks.add(readChunk());
+        }
+
+        hash.setChunks(chunks);
+      }
+
+      hash.setUploaded(readSignedVarLong());
+      return hash;
+    }
+
+    private Source readSource() throws IOException {
+      if (!readPresence()) {
+        return null;
+      }
+
+      Source source = new Source();
+      source.setId((int) readSignedVarLong());
+      source.setName(readString());
+      source.setClient(readString());
+      source.setRootPath(readString());
+      source.setOldestFile(readFile());
+      source.setNewestFile(readFile());
+      source.setPriority((int) readSignedVarLong());
+      byte flags = readByte();
+      source.setSyncSource((flags & 1) != 0);
+      source.setSyncTarget((flags & 2) != 0);
+      source.setIgnoredPatterns(readString());
+      return source;
+    }
+
+    private String readParent() throws IOException {
+      int shared = (int) readVarLong() - 1;
+
+      if (shared < 0) {
+        return null;
+      }
+
+      if (shared > lastParent.length()) {
+        throw new IOException("Invalid parent prefix");
+      }
+
+      lastParent = lastParent.substring(0, shared) + readString();
+      return lastParent;
+    }
+
+    private boolean readPresence() throws IOException {
+      return readByte() != 0;
+    }
+
+    private String readString() throws IOException {
+      int length = (int) readVarLong() - 1;
+
+      if (length < 0) {
+        return null;
+      }
+
+      checkAvailable(length);
+      String s = new String(data, position, length, StandardCharsets.UTF_8);
+      position += length;
+      return s;
+    }
+
+    private byte[] readBytes() throws IOException {
+      int length = (int) readVarLong() - 1;
+
+      if (length < 0) {
+        return null;
+      }
+
+      checkAvailable(length);
+      byte[] b = Arrays.copyOfRange(data, position, position + length);
+      position += length;
+      return b;
+    }
+
+    private long readSignedVarLong() throws IOException {
+      long value = readVarLong();
+      return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readVarLong() throws IOException {
+      long value = 0;
+
+      for (int shift = 0; shift < 64; shift += 7) {
+        byte b = readByte();
+        value |= (long) (b & 0x7F) << shift;
+
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+
+      throw new IOException("Malformed varint");
+    }
+
+    private byte readByte() throws IOException {
+      checkAvailable(1);
+      return data[position++];
+    }
+
+    private void checkAvailable(int n) throws IOException {
+      if (n < 0 || position + n > end) {
+        throw new EOFException();
+      }
+    }
+  }
+}
@@ -28,6 +28,7 @@ import java.lang.reflect.Proxy;
 import java.security.GeneralSecurityException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Collectors;
 
 /**
  *
@@ -46,6 +47,19 @@ public class EncryptedStorages {
 
   public static Storage getEncryptedStorage(Storage storage,
       char[] password, boolean encryptStrings) {
+    return getEncryptedStorage(storage, password, encryptStrings,
+        Cryptographer.Mode.CBC);
+  }
+
+  /**
+   * Returns a storage that encrypts data using the passed password.
+   *
+   * @param chunkMode format used to encrypt chunk contents. Hashes and strings
+   *                  always use the CBC format, since they are used for
+   *                  lookups and must be encrypted the same way every time
+   */
+  public static Storage getEncryptedStorage(Storage storage,
+      char[] password, boolean encryptStrings, Cryptographer.Mode chunkMode) {
     Container<Cryptographer> crypto = new Container<>(() -> {
       byte[] salt = storage.getStorageConfiguration().getSalt();
       try {
@@ -55,24 +69,61 @@ public class EncryptedStorages {
       }
     });
 
+    if (storage instanceof PassThroughStorage) {
+      // chunk contents are encrypted here and don't need to be encrypted
+      // again, but only if the format does not reveal anything about them:
+      // the CBC format uses a hash of the plain text as its IV
+      ((PassThroughStorage) storage).setChunksEncrypted(
+          chunkMode == Cryptographer.Mode.GCM);
+    }
+
     ClassLoader loader = EncryptedStorages.class.getClassLoader();
-    Class[] storageClass = new Class[] { Storage.class };
+    Class[] storageClass = new Class[] { Storage.class, BatchedStorage.class };
 
     return (Storage) Proxy.newProxyInstance(loader, storageClass, (p, m, a) -> {
+      if (m.getDeclaringClass() == BatchedStorage.class) {
+        // batched calls are encrypted one by one, then run together
+        List<StorageBatch.Call> calls = (List<StorageBatch.Call>) a[0];
+        List<StorageBatch.Call> encrypted = calls.stream()
+            .map(c -> new StorageBatch.Call(c.method, Arrays.stream(c.arguments)
+            .map(o -> doEncryptionDecryption(o, crypto.getValue(), true,
+            encryptStrings, chunkMode))
+            .toArray(Object[]::new)))
+            .collect(Collectors.toList());
+
+        if (storage instanceof BatchedStorage) {
+          ((BatchedStorage) storage).execute(encrypted);
+        } else {
+          StorageBatch.executeSequentially(storage, encrypted);
+        }
+
+        for (int i = 0; i < calls.size(); i++) {
+          try {
+            calls.get(i).setResult(doEncryptionDecryption(
+                encrypted.get(i).getResult(), crypto.getValue(), false,
+                encryptStrings, chunkMode));
+          } catch (RuntimeException ex) {
+            calls.get(i).setError(ex);
+          }
+        }
+
+        return null;
+      }
+
       Object[] args = a == null ? null : Arrays.stream(a)
           .map(o -> doEncryptionDecryption(o, crypto.getValue(), true,
-          encryptStrings))
+          encryptStrings, chunkMode))
           .toArray(Object[]::new);
 
       Object returnValue = m.invoke(storage, args);
       returnValue = doEncryptionDecryption(returnValue,
-          crypto.getValue(), false, encryptStrings);
+          crypto.getValue(), false, encryptStrings, chunkMode);
       return returnValue;
     });
   }
 
   private static <T> T doEncryptionDecryption(T t, Cryptographer crypto,
-      boolean enc, boolean strings) {
+      boolean enc, boolean strings, Cryptographer.Mode chunkMode) {
     try {
       if (t == null) {
         return null;
@@ -89,17 +140,20 @@ public class EncryptedStorages {
 
         for (int i = 0; i < list.size(); i++) {
           Object item = get.invoke(list, i);
-          item = doEncryptionDecryption(item, crypto, enc, strings);
+          item = doEncryptionDecryption(item, crypto, enc, strings,
+              chunkMode);
           set.invoke(list, i, item);
         }
       } else if (t.getClass().isArray()) {
         for (int i = 0; i < Array.getLength(t); i++) {
           Object item = Array.get(t, i);
-          item = doEncryptionDecryption(item, crypto, enc, strings);
+          item = doEncryptionDecryption(item, crypto, enc, strings,
+              chunkMode);
           Array.set(t, i, item);
         }
       } else if (t instanceof IOSupplier<?>) {
-        t = (T) new EncryptedIOSupplier((IOSupplier<byte[]>) t, crypto, enc);
+        t = (T) new EncryptedIOSupplier((IOSupplier<byte[]>) t, crypto, enc,
+            chunkMode);
       } else {
         PropertyDescriptor[] propertyDescriptors
             = Introspector.getBeanInfo(t.getClass()).getPropertyDescriptors();
@@ -110,7 +164,8 @@ public class EncryptedStorages {
 
           if (readMethod != null && writeMethod != null) {
             Object value = readMethod.invoke(t);
-            Object treated = doEncryptionDecryption(value, crypto, enc, strings);
+            Object treated = doEncryptionDecryption(value, crypto, enc,
+                strings, chunkMode);
             writeMethod.invoke(t, treated);
           }
         }
@@ -126,18 +181,25 @@ public class EncryptedStorages {
     private IOSupplier<byte[]> origin;
     private Cryptographer crypto;
     private boolean encrypt;
+    private Cryptographer.Mode mode;
 
     public EncryptedIOSupplier(IOSupplier<byte[]> origin, Cryptographer crypto,
         boolean encrypt) {
+      this(origin, crypto, encrypt, Cryptographer.Mode.CBC);
+    }
+
+    public EncryptedIOSupplier(IOSupplier<byte[]> origin, Cryptographer crypto,
+        boolean encrypt, Cryptographer.Mode mode) {
       this.origin = origin;
       this.crypto = crypto;
       this.encrypt = encrypt;
+      this.mode = mode;
     }
 
     @Override
     public byte[] get() throws IOException {
       try {
-        return encrypt ? crypto.encrypt(origin.get())
+        return encrypt ? crypto.encrypt(origin.get(), mode)
             : crypto.decrypt(origin.get());
       } catch (GeneralSecurityException ex) {
         throw new StorageException(ex);
@@ -0,0 +1,624 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A long-lived socket connection that carries several requests at the same
+ * time, each one on its own channel. Data is sent in frames tagged with the
+ * channel id, and a channel never sends more than its peer has room for, so a
+ * chunk stream does not stop metadata calls running on other channels.
+ *
+ * @author Luciano Vernaschi (luciano at cromoteca.com)
+ */
+class MultiplexedConnection implements Closeable {
+  private static final Logger log
+      = LoggerFactory.getLogger(MultiplexedConnection.class);
+  /**
+   * Bytes a channel can send before the peer acknowledges them.
+   */
+  static final int WINDOW_SIZE = 1024 * 1024;
+  static final int MAX_FRAME_SIZE = 64 * 1024;
+  private static final int FRAME_HEADER_SIZE = 9;
+  // frame types
+  private static final byte OPEN = 1;
+  private static final byte DATA = 2;
+  private static final byte END = 3;
+  private static final byte STATUS = 4;
+  private static final byte WINDOW = 5;
+  private static final byte RESET = 6;
+  private final Socket socket;
+  private final DataInputStream in;
+  private final DataOutputStream out;
+  private final Map<Integer, Channel> channels = new ConcurrentHashMap<>();
+  private final AtomicInteger lastId = new AtomicInteger();
+  private final Consumer<Channel> requestHandler;
+  private final int timeout;
+  private volatile IOException failure;
+
+  /**
+   * Starts reading frames from a socket.
+   *
+   * @param requestHandler receives channels opened by the peer, or null if
+   *                       this side only sends requests. It is called by the
+   *                       reading thread, so it must not block
+   * @param timeout        milliseconds to wait for data or for room to send it
+   */
+  MultiplexedConnection(Socket socket, Consumer<Channel> requestHandler,
+      int timeout) throws IOException {
+    this.socket = socket;
+    this.requestHandler = requestHandler;
+    this.timeout = timeout;
+    socket.setTcpNoDelay(true);
+    in = new DataInputStream(new BufferedInputStream(socket.getInputStream(),
+        FRAME_HEADER_SIZE + MAX_FRAME_SIZE));
+    out = new DataOutputStream(new BufferedOutputStream(
+        socket.getOutputStream(), FRAME_HEADER_SIZE + MAX_FRAME_SIZE));
+
+    Thread reader = new Thread(this::readFrames,
+        "Multiplexed " + socket.getRemoteSocketAddress());
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Opens a channel to send a request.
+   */
+  Channel open(String path) throws IOException {
+    checkFailure();
+    Channel channel = new Channel(lastId.incrementAndGet(), path,
+        new LinkedHashMap<>());
+    channels.put(channel.id, channel);
+    return channel;
+  }
+
+  boolean isOpen() {
+    return failure == null;
+  }
+
+  @Override
+  public void close() {
+    fail(new IOException("Connection closed"));
+  }
+
+  private void readFrames() {
+    try {
+      while (true) {
+        int id = in.readInt();
+        byte type = in.readByte();
+        int length = in.readInt();
+
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+          throw new IOException("Invalid frame length " + length);
+        }
+
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        Channel channel = channels.get(id);
+
+        if (type == OPEN) {
+          if (requestHandler == null || channel != null) {
+            throw new IOException("Unexpected request on channel " + id);
+          }
+
+          channel = readOpenFrame(id, payload);
+          channel.incoming = true;
+          channels.put(id, channel);
+          requestHandler.accept(channel);
+        } else if (channel != null) {
+          // frames of channels already removed are ignored, and a protocol
+          // violation closes the whole connection
+          channel.receive(type, payload);
+        }
+      }
+    } catch (IOException ex) {
+      fail(ex);
+    }
+  }
+
+  private Channel readOpenFrame(int id, byte[] payload) throws IOException {
+    DataInputStream dis
+        = new DataInputStream(new ByteArrayInputStream(payload));
+    String path = dis.readUTF();
+    int headerCount = dis.readShort();
+    Map<String, String> headers = new LinkedHashMap<>();
+
+    for (int i = 0; i < headerCount; i++) {
+      headers.put(dis.readUTF(), dis.readUTF());
+    }
+
+    return new Channel(id, path, headers);
+  }
+
+  private void writeFrame(int id, byte type, byte[] data, int offset,
+      int length) throws IOException {
+    synchronized (out) {
+      checkFailure();
+
+      try {
+        out.writeInt(id);
+        out.writeByte(type);
+        out.writeInt(length);
+
+        if (length > 0) {
+          out.write(data, offset, length);
+        }
+
+        out.flush();
+      } catch (IOException ex) {
+        fail(ex);
+        throw ex;
+      }
+    }
+  }
+
+  private void writeFrame(int id, byte type, int value) throws IOException {
+    writeFrame(id, type, ByteBuffer.allocate(4).putInt(value).array(), 0, 4);
+  }
+
+  private void fail(IOException ex) {
+    if (failure == null) {
+      failure = ex;
+      log.debug("Connection to {} closed: {}", socket.getRemoteSocketAddress(),
+          ex.toString());
+
+      try {
+        socket.close();
+      } catch (IOException closeEx) {
+        log.debug(null, closeEx);
+      }
+
+      channels.values().forEach(channel -> channel.fail(ex));
+      channels.clear();
+    }
+  }
+
+  private void checkFailure() throws IOException {
+    IOException ex = failure;
+
+    if (ex != null) {
+      throw new IOException(ex.getMessage(), ex);
+    }
+  }
+
+  /**
+   * A single request and its response. The sending side uses the
+   * {@link RemoteCall} methods, the receiving side uses {@link #getPath()},
+   * {@link #getHeader(String)}, {@link #getRequestBody()} and
+   * {@link #sendResponse(int)}.
+   */
+  class Channel implements RemoteCall {
+    private final int id;
+    private final String path;
+    private final Map<String, String> headers;
+    private final Map<String, String> responseHeaders = new LinkedHashMap<>();
+    private final Deque<byte[]> received = new ArrayDeque<>();
+    private final ChannelInputStream inputStream = new ChannelInputStream();
+    private ChannelOutputStream outputStream;
+    // true if opened by the peer
+    private boolean incoming;
+    private boolean receivedEnd;
+    private boolean sentEnd;
+    private int status = -1;
+    private int credit = WINDOW_SIZE;
+    // bytes the peer can send before being given room again
+    private int peerCredit = WINDOW_SIZE;
+    private IOException error;
+
+    private Channel(int id, String path, Map<String, String> headers) {
+      this.id = id;
+      this.path = path;
+      this.headers = headers;
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+      headers.put(name, value);
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+      if (outputStream == null) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        try (DataOutputStream dos = new DataOutputStream(baos)) {
+          dos.writeUTF(path);
+          dos.writeShort(headers.size());
+
+          for (Map.Entry<String, String> header : headers.entrySet()) {
+            dos.writeUTF(header.getKey());
+            dos.writeUTF(header.getValue());
+          }
+        }
+
+        byte[] payload = baos.toByteArray();
+        writeFrame(id, OPEN, payload, 0, payload.length);
+        outputStream = new ChannelOutputStream();
+      }
+
+      return outputStream;
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+      getOutputStream().close();
+
+      synchronized (this) {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (status < 0) {
+          waitUntil(deadline);
+        }
+
+        return status;
+      }
+    }
+
+    @Override
+    public synchronized String getResponseHeader(String name) {
+      return responseHeaders.get(name);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+      int code = getResponseCode();
+
+      if (code != 200) {
+        throw new IOException("Server returned status " + code + " for "
+            + path);
+      }
+
+      return inputStream;
+    }
+
+    String getPath() {
+      return path;
+    }
+
+    String getHeader(String name) {
+      return headers.get(name);
+    }
+
+    InputStream getRequestBody() {
+      return inputStream;
+    }
+
+    /**
+     * Sets a header sent along with the response status.
+     */
+    void setResponseHeader(String name, String value) {
+      responseHeaders.put(name, value);
+    }
+
+    /**
+     * Sends the response status and returns the stream used to write the
+     * response body, which must be closed.
+     */
+    OutputStream sendResponse(int code) throws IOException {
+      if (responseHeaders.isEmpty()) {
+        writeFrame(id, STATUS, code);
+      } else {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        try (DataOutputStream dos = new DataOutputStream(baos)) {
+          dos.writeInt(code);
+          dos.writeShort(responseHeaders.size());
+
+          for (Map.Entry<String, String> header : responseHeaders.entrySet()) {
+            dos.writeUTF(header.getKey());
+            dos.writeUTF(header.getValue());
+          }
+        }
+
+        byte[] payload = baos.toByteArray();
+        writeFrame(id, STATUS, payload, 0, payload.length);
+      }
+
+      outputStream = new ChannelOutputStream();
+      return outputStream;
+    }
+
+    /**
+     * Completes the response. If the request has not been received
+     * completely, the peer is told to stop sending it.
+     */
+    void close() throws IOException {
+      if (outputStream == null) {
+        sendResponse(500);
+      }
+
+      outputStream.close();
+      boolean reset;
+
+      synchronized (this) {
+        reset = !receivedEnd && error == null;
+      }
+
+      if (reset) {
+        abort();
+      }
+    }
+
+    private void abort() throws IOException {
+      synchronized (this) {
+        error = new IOException("Channel closed");
+        notifyAll();
+      }
+
+      channels.remove(id);
+      writeFrame(id, RESET, null, 0, 0);
+    }
+
+    private synchronized void receive(byte type, byte[] payload)
+        throws IOException {
+      switch (type) {
+        case DATA:
+          // a peer that ignores flow control would fill memory
+          if (payload.length > peerCredit) {
+            throw new IOException("Flow control window exceeded on channel "
+                + id);
+          }
+
+          peerCredit -= payload.length;
+          received.add(payload);
+          break;
+        case END:
+          receivedEnd = true;
+          removeIfCompleted();
+          break;
+        case STATUS:
+          DataInputStream dis
+              = new DataInputStream(new ByteArrayInputStream(payload));
+          int code = dis.readInt();
+
+          // headers are only sent when there are some
+          if (payload.length > 4) {
+            int headerCount = dis.readShort();
+
+            for (int i = 0; i < headerCount; i++) {
+              responseHeaders.put(dis.readUTF(), dis.readUTF());
+            }
+          }
+
+          status = code;
+          break;
+        case WINDOW:
+          credit += ByteBuffer.wrap(payload).getInt();
+          break;
+        case RESET:
+          // data already received can still be read
+          fail(new IOException("Channel reset by peer"));
+          channels.remove(id);
+          break;
+      }
+
+      notifyAll();
+    }
+
+    private synchronized void fail(IOException ex) {
+      if (error == null) {
+        error = ex;
+      }
+
+      notifyAll();
+    }
+
+    private synchronized void removeIfCompleted() {
+      if (receivedEnd && sentEnd) {
+        channels.remove(id);
+      }
+    }
+
+    /**
+     * Waits to be notified, failing if the deadline has passed or if the
+     * channel failed.
+     */
+    private void waitUntil(long deadline) throws IOException {
+      if (error != null) {
+        throw new IOException(error.getMessage(), error);
+      }
+
+      long remaining = deadline - System.currentTimeMillis();
+
+      if (remaining <= 0) {
+        throw new SocketTimeoutException("Timeout on channel " + id);
+      }
+
+      try {
+        wait(remaining);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new IOException(ex);
+      }
+    }
+
+    private class ChannelInputStream extends InputStream {
+      private byte[] current;
+      private int position;
+      private int consumed;
+
+      @Override
+      public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+          return 0;
+        }
+
+        while (current == null || position == current.length) {
+          if (!nextFrame()) {
+            return -1;
+          }
+        }
+
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        return n;
+      }
+
+      private boolean nextFrame() throws IOException {
+        int acknowledged = 0;
+        byte[] frame;
+
+        synchronized (Channel.this) {
+          if (current != null) {
+            consumed += current.length;
+            current = null;
+
+            // give room back to the peer after reading half a window
+            if (consumed >= WINDOW_SIZE / 2 && !receivedEnd) {
+              acknowledged = consumed;
+              peerCredit += consumed;
+              consumed = 0;
+            }
+          }
+
+          long deadline = System.currentTimeMillis() + timeout;
+
+          while (received.isEmpty() && !receivedEnd) {
+            waitUntil(deadline);
+          }
+
+          frame = received.poll();
+        }
+
+        if (acknowledged > 0) {
+          writeFrame(id, WINDOW, acknowledged);
+        }
+
+        if (frame == null) {
+          return false;
+        }
+
+        current = frame;
+        position = 0;
+        return true;
+      }
+
+      @Override
+      public void close() throws IOException {
+        boolean reset;
+
+        synchronized (Channel.this) {
+          reset = !incoming && !receivedEnd && error == null;
+        }
+
+        // the rest of the response is not needed
+        if (reset) {
+          abort();
+        }
+      }
+    }
+
+    private class ChannelOutputStream extends OutputStream {
+      private final byte[] buffer = new byte[MAX_FRAME_SIZE];
+      private int count;
+      private boolean closed;
+
+      @Override
+      public void write(int b) throws IOException {
+        if (count == buffer.length) {
+          sendFrame();
+        }
+
+        buffer[count++] = (byte) b;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+          if (count == buffer.length) {
+            sendFrame();
+          }
+
+          int n = Math.min(len, buffer.length - count);
+          System.arraycopy(b, off, buffer, count, n);
+          count += n;
+          off += n;
+          len -= n;
+        }
+      }
+
+      @Override
+      public void flush() throws IOException {
+        sendFrame();
+      }
+
+      @Override
+      public void close() throws IOException {
+        if (!closed) {
+          closed = true;
+          sendFrame();
+          writeFrame(id, END, null, 0, 0);
+
+          synchronized (Channel.this) {
+            sentEnd = true;
+            removeIfCompleted();
+          }
+        }
+      }
+
+      private void sendFrame() throws IOException {
+        if (count > 0) {
+          synchronized (Channel.this) {
+            long deadline = System.currentTimeMillis() + timeout;
+
+            while (credit < count) {
+              waitUntil(deadline);
+            }
+
+            if (error != null) {
+              throw new IOException(error.getMessage(), error);
+            }
+
+            credit -= count;
+          }
+
+          writeFrame(id, DATA, buffer, 0, count);
+          count = 0;
+        }
+      }
+    }
+  }
+}
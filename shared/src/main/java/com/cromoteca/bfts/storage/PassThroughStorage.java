@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.storage;
+
+/**
+ * Implemented by storages that can transfer chunk contents without encrypting
+ * them again, when they are already encrypted end-to-end.
+ *
+ * @author Luciano Vernaschi (luciano at cromoteca.com)
+ */
+interface PassThroughStorage {
+  /**
+   * Tells the storage that all chunk contents it sends and receives are
+   * encrypted by the caller, so that they only need to be authenticated.
+   */
+  void setChunksEncrypted(boolean encrypted);
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A single request to a remote storage server and its response, whatever
+ * transport is used.
+ *
+ * @author Luciano Vernaschi (luciano at cromoteca.com)
+ */
+interface RemoteCall {
+  /**
+   * Sets a request header. Must be called before writing the request body.
+   */
+  void setHeader(String name, String value);
+
+  /**
+   * Returns the stream used to write the request body.
+   */
+  OutputStream getOutputStream() throws IOException;
+
+  /**
+   * Completes the request and waits for the response code.
+   */
+  int getResponseCode() throws IOException;
+
+  /**
+   * Returns a response header, or null if not available.
+   */
+  String getResponseHeader(String name);
+
+  /**
+   * Returns the stream used to read the response body.
+   */
+  InputStream getInputStream() throws IOException;
+}
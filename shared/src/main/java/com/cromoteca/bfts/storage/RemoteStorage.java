@@ -22,15 +22,29 @@ import com.cromoteca.bfts.util.ArrayOfBytesOutputStream;
 import com.cromoteca.bfts.util.lambdas.IOSupplier;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.lang.reflect.Type;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
+import java.security.PublicKey;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static java.net.HttpURLConnection.*;
+
 /**
  * Remote storage builder: allows to connect to storages published on other
  * machines.
@@ -39,10 +53,69 @@ import org.slf4j.LoggerFactory;
  */
 public class RemoteStorage {
   private static final Logger log = LoggerFactory.getLogger(RemoteStorage.class);
-  private static final int TIMEOUT = 120_000;
+  static final int TIMEOUT = 120_000;
+  /**
+   * HTTP header used to tell the server which encryption format the client
+   * uses, so that it can reply using the same format.
+   */
+  static final String CIPHER_HEADER = "X-BFTS-Cipher";
+  /**
+   * HTTP header containing the session identifier, when a session is used
+   * instead of sending a new key with each call.
+   */
+  static final String SESSION_HEADER = "X-BFTS-Session";
+  /**
+   * HTTP header used to tell the server that the client can read data
+   * serialized using the binary format.
+   */
+  static final String FORMAT_HEADER = "X-BFTS-Format";
+  /**
+   * HTTP header telling how many seconds to wait before sending again a
+   * request that a busy server has rejected.
+   */
+  static final String RETRY_AFTER_HEADER = "Retry-After";
+  /**
+   * HTTP header telling the server that chunk contents are already encrypted
+   * end-to-end, so that they are only authenticated instead of being
+   * encrypted again.
+   */
+  static final String PAYLOAD_HEADER = "X-BFTS-Payload";
+  /**
+   * Value of {@link #PAYLOAD_HEADER} for chunk contents that are followed by
+   * their authentication code.
+   */
+  static final String PASS_THROUGH = "authenticated";
+  /**
+   * Default pause before sending again a rejected request, doubled at each
+   * attempt.
+   */
+  private static final long RETRY_DELAY = 1000;
+  private static final int MAX_ATTEMPTS = 5;
+  /**
+   * A new session is created after this time, to limit the amount of data
+   * encrypted with the same key. It must be shorter than the server timeout.
+   */
+  static final long SESSION_DURATION = 10 * 60 * 1000;
+  /**
+   * Time to wait before trying again to open a multiplexed connection.
+   */
+  private static final long RECONNECTION_DELAY = 60_000;
+  private static final SecureRandom random = new SecureRandom();
+  private String host;
   private String baseURL;
-  private byte[] encryptedPublicKey;
-  private Cryptographer keyEncrypter;
+  // decrypted once, will encrypt connection keys
+  private PublicKey publicKey;
+  private Cryptographer.Mode mode = Cryptographer.Mode.CBC;
+  private boolean binary;
+  private boolean sessionsSupported = true;
+  private boolean batchSupported = true;
+  private boolean passThroughSupported;
+  private volatile boolean chunksEncrypted;
+  private Session session;
+  // 0 if the server does not accept multiplexed connections
+  private int multiplexedPort;
+  private MultiplexedConnection connection;
+  private long nextConnectionAttempt;
 
   private RemoteStorage() {
   }
@@ -57,19 +130,36 @@ public class RemoteStorage {
    */
   public static Storage create(String host, int port, char[] password) {
     RemoteStorage remoteStorage = new RemoteStorage();
+    remoteStorage.host = host;
     remoteStorage.baseURL = "http://" + host + ':' + port + '/';
 
     ClassLoader loader = RemoteStorage.class.getClassLoader();
-    Class[] storage = new Class[] { Storage.class };
+    Class[] storage = new Class[] { Storage.class, BatchedStorage.class,
+      PassThroughStorage.class };
 
     // return a proxy that will redirect method calls to HTTP
     Storage proxy
         = (Storage) Proxy.newProxyInstance(loader, storage, (p, m, a) -> {
-          if (remoteStorage.keyEncrypter == null) {
+          if (m.getDeclaringClass() == PassThroughStorage.class) {
+            remoteStorage.chunksEncrypted = (Boolean) a[0];
+            return null;
+          }
+
+          if (remoteStorage.publicKey == null) {
             remoteStorage.configure(password);
           }
 
-          return remoteStorage.call(m.getGenericReturnType(), m.getName(), a);
+          if (m.getDeclaringClass() == BatchedStorage.class) {
+            try {
+              remoteStorage.callAll((List<StorageBatch.Call>) a[0]);
+            } catch (IOException | GeneralSecurityException ex) {
+              throw new StorageException(ex);
+            }
+
+            return null;
+          }
+
+          return remoteStorage.call(m, a);
         });
 
     return proxy;
@@ -84,67 +174,178 @@ public class RemoteStorage {
     try (ArrayOfBytesInputStream is
         = new ArrayOfBytesInputStream(conn.getInputStream())) {
       // encrypted public key: must be decrypted using password
-      // TODO: this key will be decrypted every time it will be used. It could
-      // be decrypted once
-      encryptedPublicKey = is.readArrayOfBytes();
+      byte[] encryptedPublicKey = is.readArrayOfBytes();
       byte[] salt = is.readArrayOfBytes();
-      // will encrypt connection keys
-      keyEncrypter = new Cryptographer(salt, password);
+      publicKey = new Cryptographer(salt, password)
+          .decryptPublicKey(encryptedPublicKey);
+
+      // newer servers also send the best encryption format they support
+      try {
+        String serverMode
+            = new String(is.readArrayOfBytes(), StandardCharsets.UTF_8);
+
+        if (Cryptographer.Mode.GCM.name().equals(serverMode)) {
+          mode = Cryptographer.Mode.GCM;
+        }
+
+        String serverFormat
+            = new String(is.readArrayOfBytes(), StandardCharsets.UTF_8);
+        binary = Serialization.BINARY_FORMAT.equals(serverFormat);
+
+        multiplexedPort = Integer.parseInt(
+            new String(is.readArrayOfBytes(), StandardCharsets.UTF_8));
+
+        String serverPayload
+            = new String(is.readArrayOfBytes(), StandardCharsets.UTF_8);
+        passThroughSupported = PASS_THROUGH.equals(serverPayload);
+      } catch (EOFException ex) {
+        log.debug("Server does not support newer encryption or serialization");
+      }
     }
   }
 
-  private Object call(Type returnType, String methodName, Object... arguments)
+  /**
+   * Returns the current session, creating a new one if needed. If the server
+   * does not support sessions, returns a new key for each call.
+   */
+  private synchronized Session getSession()
       throws IOException, GeneralSecurityException {
-    log.debug("Calling method {}", methodName);
-
-    if (arguments == null) {
-      arguments = new Object[0];
+    if (session != null && System.currentTimeMillis() - session.created
+        < SESSION_DURATION) {
+      return session;
     }
 
-    // key used to encrypt data sent during this connection
+    // key used to encrypt data sent during this session or connection
     byte[] randomKey = new byte[Cryptographer.KEY_SIZE];
-    SecureRandom secRandom = new SecureRandom();
-    secRandom.nextBytes(randomKey);
-    Cryptographer cryptographer = new Cryptographer(randomKey);
+    random.nextBytes(randomKey);
     // that key will be encrypted using the public key received from server
-    byte[] encryptedRandomKey
-        = keyEncrypter.encrypt(randomKey, encryptedPublicKey);
+    Session newSession = new Session(new Cryptographer(randomKey),
+        Cryptographer.encrypt(randomKey, publicKey));
 
-    URL url = new URL(baseURL + methodName);
-    URLConnection conn = url.openConnection();
-    conn.setConnectTimeout(TIMEOUT);
-    conn.setReadTimeout(TIMEOUT);
-    conn.setDoOutput(true);
+    if (sessionsSupported) {
+      RemoteCall conn = sendWhileBusy(() -> {
+        RemoteCall c = openCall("openSession");
 
-    try (ArrayOfBytesOutputStream os
-        = new ArrayOfBytesOutputStream(conn.getOutputStream())) {
-      // send key
-      os.writeArrayOfBytes(encryptedRandomKey);
-      // send number of arguments
-      os.writeInt(arguments.length);
-
-      for (Object o : arguments) {
-        if (o instanceof IOSupplier<?>) {
-          // last argument can be a supplier of byte arrays
-          IOSupplier<byte[]> supplier = (IOSupplier<byte[]>) o;
-          byte[] data;
-
-          // encrypt and send all supplied byte arrays
-          while ((data = supplier.get()) != null) {
-            data = cryptographer.encrypt(data);
-            os.writeArrayOfBytes(data);
+        try (ArrayOfBytesOutputStream os
+            = new ArrayOfBytesOutputStream(c.getOutputStream())) {
+          os.writeArrayOfBytes(newSession.encryptedKey);
+        }
+
+        return c;
+      }, true);
+
+      if (conn.getResponseCode() == HTTP_NOT_FOUND) {
+        log.info("Server does not support sessions");
+        sessionsSupported = false;
+      } else {
+        try (ArrayOfBytesInputStream is
+            = new ArrayOfBytesInputStream(conn.getInputStream())) {
+          byte[] id = is.readArrayOfBytes();
+          // the server proves that it could decrypt the key
+          byte[] proof = is.readArrayOfBytes();
+          proof = newSession.cryptographer.decrypt(proof);
+
+          if (!Arrays.equals(id, proof)) {
+            throw new GeneralSecurityException("Server authentication failed");
           }
-        } else {
-          // other arguments will be serialized and encrypted
-          byte[] data = Serialization.serialize(o);
-          data = cryptographer.encrypt(data);
-          os.writeArrayOfBytes(data);
+
+          newSession.id = Base64.getUrlEncoder().encodeToString(id);
+          session = newSession;
+          log.debug("Session opened");
         }
       }
+    }
+
+    return newSession;
+  }
+
+  private synchronized void dropSession(Session expired) {
+    if (session == expired) {
+      session = null;
+    }
+  }
+
+  /**
+   * Starts a request, using the multiplexed connection if available and HTTP
+   * otherwise.
+   */
+  private RemoteCall openCall(String path) throws IOException {
+    MultiplexedConnection c = getMultiplexedConnection();
+    RemoteCall call = c == null ? new HttpCall(new URL(baseURL + path))
+        : c.open(path);
+    call.setHeader(CIPHER_HEADER, mode.name());
+
+    if (binary) {
+      call.setHeader(FORMAT_HEADER, Serialization.BINARY_FORMAT);
+    }
+
+    return call;
+  }
+
+  /**
+   * Returns the multiplexed connection, opening it if needed, or null if it
+   * is not available.
+   */
+  private synchronized MultiplexedConnection getMultiplexedConnection() {
+    if (multiplexedPort > 0 && (connection == null || !connection.isOpen())
+        && System.currentTimeMillis() >= nextConnectionAttempt) {
+      connection = null;
+
+      try {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(host, multiplexedPort), TIMEOUT);
+        connection = new MultiplexedConnection(socket, null, TIMEOUT);
+        log.debug("Multiplexed connection to {}:{} opened", host,
+            multiplexedPort);
+      } catch (IOException ex) {
+        log.warn("Multiplexed connection to {}:{} failed, using HTTP: {}",
+            host, multiplexedPort, ex.toString());
+        nextConnectionAttempt
+            = System.currentTimeMillis() + RECONNECTION_DELAY;
+      }
+    }
 
-      log.debug("Method {}: {} bytes sent", methodName, os.size());
+    return connection != null && connection.isOpen() ? connection : null;
+  }
+
+  private Object call(Method method, Object... arguments)
+      throws IOException, GeneralSecurityException {
+    Type returnType = method.getGenericReturnType();
+    String methodName = method.getName();
+    log.debug("Calling method {}", methodName);
+
+    if (arguments == null) {
+      arguments = new Object[0];
+    }
+
+    Object[] args = arguments;
+    // supplied data is consumed while sending and can't be sent again
+    boolean repeatable
+        = Arrays.stream(arguments).noneMatch(o -> o instanceof IOSupplier<?>);
+    // chunk contents already encrypted by the caller are only authenticated
+    boolean passThrough = passThroughSupported && chunksEncrypted;
+    Session firstSession = getSession();
+    Session callSession = firstSession;
+    RemoteCall conn = sendWhileBusy(() -> send(firstSession, method, args,
+        passThrough), repeatable);
+
+    if (callSession.id != null
+        && conn.getResponseCode() == HTTP_UNAUTHORIZED) {
+      // the server restarted or dropped the session
+      dropSession(callSession);
+
+      if (!repeatable) {
+        throw new IOException("Session expired while calling " + methodName);
+      }
+
+      Session newSession = getSession();
+      callSession = newSession;
+      conn = sendWhileBusy(() -> send(newSession, method, args, passThrough),
+          true);
     }
 
+    Cryptographer cryptographer = callSession.cryptographer;
+
     if (returnType.toString().startsWith(IOSupplier.class.getName())) {
       ArrayOfBytesInputStream is
           = new ArrayOfBytesInputStream(conn.getInputStream());
@@ -160,6 +361,12 @@ public class RemoteStorage {
             total += data.length;
             log.debug("Method {}: {} bytes read (partial)", methodName,
                 data.length);
+
+            if (passThrough) {
+              cryptographer.verify(data, is.readArrayOfBytes());
+              return data;
+            }
+
             return cryptographer.decrypt(data);
           } catch (EOFException ex) {
             return null;
@@ -188,4 +395,281 @@ public class RemoteStorage {
       }
     }
   }
+
+  /**
+   * Sends a method call and its arguments.
+   */
+  private RemoteCall send(Session callSession, Method method,
+      Object[] arguments, boolean passThrough)
+      throws IOException, GeneralSecurityException {
+    String methodName = method.getName();
+    Type[] types = method.getGenericParameterTypes();
+    Cryptographer cryptographer = callSession.cryptographer;
+    RemoteCall conn = openCall(methodName);
+
+    if (callSession.id != null) {
+      conn.setHeader(SESSION_HEADER, callSession.id);
+    }
+
+    if (passThrough) {
+      conn.setHeader(PAYLOAD_HEADER, PASS_THROUGH);
+    }
+
+    try (ArrayOfBytesOutputStream os
+        = new ArrayOfBytesOutputStream(conn.getOutputStream())) {
+      if (callSession.id == null) {
+        // no session: send key
+        os.writeArrayOfBytes(callSession.encryptedKey);
+      }
+
+      writeArguments(os, cryptographer, types, arguments, passThrough);
+      log.debug("Method {}: {} bytes sent", methodName, os.size());
+    } catch (IOException ex) {
+      // a busy server replies without reading the request
+      if (conn.getResponseCode() != HTTP_UNAVAILABLE) {
+        throw ex;
+      }
+    }
+
+    return conn;
+  }
+
+  /**
+   * Sends a request, sending it again after a pause if the server is too busy
+   * to accept it.
+   *
+   * @param repeatable false if the request can't be sent again
+   */
+  private RemoteCall sendWhileBusy(Request request, boolean repeatable)
+      throws IOException, GeneralSecurityException {
+    for (int attempt = 1;; attempt++) {
+      RemoteCall conn = request.send();
+
+      if (conn.getResponseCode() != HTTP_UNAVAILABLE) {
+        return conn;
+      }
+
+      if (!repeatable || attempt == MAX_ATTEMPTS) {
+        throw new StorageException("Server busy, try again later");
+      }
+
+      long delay = RETRY_DELAY;
+      String retryAfter = conn.getResponseHeader(RETRY_AFTER_HEADER);
+
+      if (retryAfter != null) {
+        try {
+          delay = Long.parseLong(retryAfter.trim()) * 1000;
+        } catch (NumberFormatException ex) {
+          log.debug("Invalid {} header: {}", RETRY_AFTER_HEADER, retryAfter);
+        }
+      }
+
+      // random jitter, so that rejected clients don't come back together
+      delay = (delay << (attempt - 1)) + random.nextInt(500);
+      log.debug("Server busy, sending again in {} milliseconds", delay);
+
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+  }
+
+  private void writeArguments(ArrayOfBytesOutputStream os,
+      Cryptographer cryptographer, Type[] types, Object[] arguments,
+      boolean passThrough) throws IOException, GeneralSecurityException {
+    // send number of arguments
+    os.writeInt(arguments.length);
+
+    for (int i = 0; i < arguments.length; i++) {
+      Object o = arguments[i];
+
+      if (o instanceof IOSupplier<?>) {
+        // last argument can be a supplier of byte arrays
+        IOSupplier<byte[]> supplier = (IOSupplier<byte[]>) o;
+        byte[] data;
+
+        // encrypt and send all supplied byte arrays
+        while ((data = supplier.get()) != null) {
+          if (passThrough) {
+            os.writeArrayOfBytes(data);
+            os.writeArrayOfBytes(cryptographer.authenticate(data));
+          } else {
+            os.writeArrayOfBytes(cryptographer.encrypt(data, mode));
+          }
+        }
+      } else {
+        // other arguments will be serialized and encrypted
+        byte[] data = Serialization.serialize(o, types[i], binary);
+        data = cryptographer.encrypt(data, mode);
+        os.writeArrayOfBytes(data);
+      }
+    }
+  }
+
+  /**
+   * Runs several calls using a single request. Falls back to one request per
+   * call if the server does not support batches.
+   */
+  private void callAll(List<StorageBatch.Call> calls)
+      throws IOException, GeneralSecurityException {
+    RemoteCall conn = null;
+    Session callSession = null;
+
+    if (batchSupported) {
+      log.debug("Calling {} methods in a batch", calls.size());
+      Session firstSession = getSession();
+      callSession = firstSession;
+      conn = sendWhileBusy(() -> sendAll(firstSession, calls), true);
+
+      if (callSession.id != null
+          && conn.getResponseCode() == HTTP_UNAUTHORIZED) {
+        // batched calls never contain suppliers, so they can be sent again
+        dropSession(callSession);
+        Session newSession = getSession();
+        callSession = newSession;
+        conn = sendWhileBusy(() -> sendAll(newSession, calls), true);
+      }
+
+      if (conn.getResponseCode() == HTTP_NOT_FOUND) {
+        log.info("Server does not support batches");
+        batchSupported = false;
+      }
+    }
+
+    if (!batchSupported) {
+      for (StorageBatch.Call c : calls) {
+        try {
+          c.setResult(call(c.method, c.arguments));
+        } catch (RuntimeException ex) {
+          c.setError(ex);
+        } catch (IOException | GeneralSecurityException ex) {
+          c.setError(new StorageException(ex));
+        }
+      }
+
+      return;
+    }
+
+    Cryptographer cryptographer = callSession.cryptographer;
+
+    try (ArrayOfBytesInputStream is
+        = new ArrayOfBytesInputStream(conn.getInputStream())) {
+      for (StorageBatch.Call call : calls) {
+        String methodName = call.method.getName();
+        int code = is.readInt();
+
+        if (code == HTTP_OK) {
+          byte[] data = cryptographer.decrypt(is.readArrayOfBytes());
+          call.setResult(Serialization.deserialize(
+              call.method.getGenericReturnType(), data));
+        } else {
+          call.setError(new StorageException("Method " + methodName
+              + " failed on server with code " + code));
+        }
+      }
+    }
+  }
+
+  /**
+   * Sends several method calls and their arguments.
+   */
+  private RemoteCall sendAll(Session callSession,
+      List<StorageBatch.Call> calls)
+      throws IOException, GeneralSecurityException {
+    RemoteCall conn = openCall("batch");
+
+    if (callSession.id != null) {
+      conn.setHeader(SESSION_HEADER, callSession.id);
+    }
+
+    try (ArrayOfBytesOutputStream os
+        = new ArrayOfBytesOutputStream(conn.getOutputStream())) {
+      if (callSession.id == null) {
+        os.writeArrayOfBytes(callSession.encryptedKey);
+      }
+
+      os.writeInt(calls.size());
+
+      for (StorageBatch.Call call : calls) {
+        os.writeArrayOfBytes(
+            call.method.getName().getBytes(StandardCharsets.UTF_8));
+        writeArguments(os, callSession.cryptographer,
+            call.method.getGenericParameterTypes(), call.arguments, false);
+      }
+
+      log.debug("Batch: {} bytes sent", os.size());
+    } catch (IOException ex) {
+      if (conn.getResponseCode() != HTTP_UNAVAILABLE) {
+        throw ex;
+      }
+    }
+
+    return conn;
+  }
+
+  /**
+   * A call using HTTP.
+   */
+  private static class HttpCall implements RemoteCall {
+    private final HttpURLConnection conn;
+
+    HttpCall(URL url) throws IOException {
+      conn = (HttpURLConnection) url.openConnection();
+      conn.setConnectTimeout(TIMEOUT);
+      conn.setReadTimeout(TIMEOUT);
+      conn.setDoOutput(true);
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+      conn.setRequestProperty(name, value);
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+      return conn.getOutputStream();
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+      return conn.getResponseCode();
+    }
+
+    @Override
+    public String getResponseHeader(String name) {
+      return conn.getHeaderField(name);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+      return conn.getInputStream();
+    }
+  }
+
+  /**
+   * Sends a request.
+   */
+  private interface Request {
+    RemoteCall send() throws IOException, GeneralSecurityException;
+  }
+
+  /**
+   * A symmetric key shared with the server.
+   */
+  private static class Session {
+    final Cryptographer cryptographer;
+    // the key, encrypted using the public key of the server
+    final byte[] encryptedKey;
+    final long created = System.currentTimeMillis();
+    // identifier assigned by the server, null if the key is used for one call
+    String id;
+
+    Session(Cryptographer cryptographer, byte[] encryptedKey) {
+      this.cryptographer = cryptographer;
+      this.encryptedKey = encryptedKey;
+    }
+  }
 }
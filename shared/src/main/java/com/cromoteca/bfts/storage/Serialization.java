@@ -30,18 +30,35 @@ import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.databind.node.IntNode;
 import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Type;
+import java.util.Arrays;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 /**
  * Serializes objects using JSON and compresses them.&nbsp;Byte arrays are
- * treated as already serialized.
+ * treated as already serialized. Model classes can also be serialized using a
+ * compact binary format, when the peer supports it.
  *
  * @author Luciano Vernaschi (luciano at cromoteca.com)
  */
 public class Serialization {
+  /**
+   * Name of the binary format, used to negotiate it with peers.
+   */
+  public static final String BINARY_FORMAT = "binary" + BinaryCodec.VERSION;
   private static final ObjectMapper MAPPER = new ObjectMapper();
+  // JSON data is a zlib stream, which always starts with 0x78
+  private static final byte BINARY_MAGIC = (byte) 0xB1;
+  private static final int COMPRESSED_FLAG = 0x80;
+  private static final int HEADER_SIZE = 2;
+  // smaller binary data is not worth compressing
+  private static final int COMPRESSION_THRESHOLD = 4096;
 
   static {
     MAPPER.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE);
@@ -92,13 +109,54 @@ public class Serialization {
     } else if (o instanceof byte[]) {
       data = (byte[]) o;
     } else {
-      data = MAPPER.writeValueAsBytes(o);
-      data = Compression.compress(data);
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+      // serialize and compress in a single pass
+      try (OutputStream os = Compression.compressingStream(baos)) {
+        MAPPER.writeValue(os, o);
+      }
+
+      data = baos.toByteArray();
     }
 
     return data;
   }
 
+  /**
+   * Serializes an object using the binary format if requested and if its
+   * declared type is supported, falling back to JSON otherwise.
+   */
+  public static byte[] serialize(Object o, Type type, boolean binary)
+      throws IOException {
+    if (o == null || o instanceof byte[] || !binary
+        || !BinaryCodec.supports(type)) {
+      return serialize(o);
+    }
+
+    BinaryCodec.Encoder encoder = new BinaryCodec.Encoder(256);
+    encoder.write(type, o);
+    int size = encoder.size();
+    byte[] data = new byte[HEADER_SIZE + size];
+    data[0] = BINARY_MAGIC;
+    data[1] = BinaryCodec.VERSION;
+
+    if (size >= COMPRESSION_THRESHOLD) {
+      int length = Compression.compress(encoder.buffer(), 0, size,
+          Deflater.BEST_SPEED, data, HEADER_SIZE, size);
+
+      if (length > 0) {
+        data[1] |= COMPRESSED_FLAG;
+        return Arrays.copyOf(data, HEADER_SIZE + length);
+      }
+    }
+
+    System.arraycopy(encoder.buffer(), 0, data, HEADER_SIZE, size);
+    return data;
+  }
+
+  /**
+   * Deserializes an object, whatever format was used to serialize it.
+   */
   public static <T> T deserialize(Type type, byte[] data) throws IOException {
     T result;
 
@@ -106,9 +164,31 @@ public class Serialization {
       result = null;
     } else if ("byte[]".equals(type.getTypeName())) {
       result = (T) data;
+    } else if (data[0] == BINARY_MAGIC && data.length >= HEADER_SIZE) {
+      if ((data[1] & 0x7F) != BinaryCodec.VERSION) {
+        throw new IOException("Unsupported binary format "
+            + (data[1] & 0x7F));
+      }
+
+      BinaryCodec.Decoder decoder;
+
+      if ((data[1] & COMPRESSED_FLAG) != 0) {
+        byte[] decompressed = Compression.decompress(data, HEADER_SIZE,
+            data.length - HEADER_SIZE);
+        decoder = new BinaryCodec.Decoder(decompressed, 0,
+            decompressed.length);
+      } else {
+        decoder = new BinaryCodec.Decoder(data, HEADER_SIZE,
+            data.length - HEADER_SIZE);
+      }
+
+      result = (T) decoder.read(type);
     } else {
-      data = Compression.decompress(data);
-      result = MAPPER.readValue(data, MAPPER.getTypeFactory().constructType(type));
+      try (InputStream is = Compression.decompressingStream(
+          new ByteArrayInputStream(data))) {
+        result = MAPPER.readValue(is,
+            MAPPER.getTypeFactory().constructType(type));
+      }
     }
 
     return result;
@@ -23,6 +23,7 @@ import com.cromoteca.bfts.model.Pair;
 import com.cromoteca.bfts.model.Source;
 import com.cromoteca.bfts.model.Stats;
 import com.cromoteca.bfts.model.StorageConfiguration;
+import com.cromoteca.bfts.model.TreeDigest;
 import com.cromoteca.bfts.util.lambdas.IOSupplier;
 import java.util.List;
 import java.util.Map;
@@ -116,6 +117,45 @@ public interface Storage {
    */
   int addFiles(int sourceId, long lastId, List<File> files);
 
+  /**
+   * Returns the digest of the contents of a directory, as sent by the last
+   * call to {@link #addFilesWithDigests(int, long, List, List)}, or null if
+   * the directory contents have changed in the storage since then.
+   *
+   * @param sourceId source id
+   * @param parent   the parent of the directory
+   * @param name     the directory name
+   */
+  TreeDigest getTreeDigest(int sourceId, String parent, String name);
+
+  /**
+   * Returns the digests of the directories that come first in the storage
+   * order, i.e. the ones that the next list of files is going to contain, so
+   * that they can be checked with a single call. Directories whose contents
+   * have changed in the storage are returned with a null digest.
+   *
+   * @param sourceId source id
+   * @param max      the maximum number of directories to return: if fewer are
+   *                 returned, there are no other directories with a digest
+   */
+  List<TreeDigest> getTreeDigests(int sourceId, int max);
+
+  /**
+   * Same as {@link #addFiles(int, long, List)}, but the contents of some
+   * directories are not sent, since their digest matches the one returned by
+   * {@link #getTreeDigest(int, String, String)}: their current files are kept
+   * as if they had been sent again.
+   *
+   * @param sourceId source id
+   * @param files    a list of files in the client order
+   * @param trees    digests of the directories whose contents follow them in
+   *                 the list, or have been skipped, and of directories added
+   *                 by previous calls whose contents end in this list
+   * @return the number of files that have been identified as new
+   */
+  int addFilesWithDigests(int sourceId, long lastId, List<File> files,
+      List<TreeDigest> trees);
+
   /**
    * Returns a list of files that the client should own and that haven't been
    * hashed yet. This storage might not return a full list of all missing hashes
@@ -161,6 +201,15 @@ public interface Storage {
    */
   void markFilesAddedFromSync(int sourceId, List<File> added);
 
+  /**
+   * Filters a list of chunk hashes, keeping the chunks that are referenced by
+   * some file but haven't been uploaded yet.
+   *
+   * @param hashes hashes of chunks available on the client
+   * @return the hashes of the chunks that should be uploaded
+   */
+  List<byte[]> getNotUploadedChunkHashes(List<byte[]> hashes);
+
   /**
    * Stores chunk content. Not all chunks will be stored since a timeout can be
    * applied by the client.
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2014-2019 Luciano Vernaschi (luciano at cromoteca.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.cromoteca.bfts.storage;
+
+import com.cromoteca.bfts.util.lambdas.IOSupplier;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Collects several storage calls and runs them together. Remote storages send
+ * all of them in a single request, saving a round trip for each call; other
+ * storages just run them one after the other.
+ * <p>
+ * Calls are run in the order they have been added, so a call can depend on the
+ * effects of the previous ones, but not on their results. Methods that
+ * send or receive data using an {@link IOSupplier} cannot be batched.
+ *
+ * <pre>
+ * StorageBatch batch = new StorageBatch(storage);
+ * batch.run(s -&gt; s.addFiles(sourceId, lastId, files));
+ * Supplier&lt;List&lt;File&gt;&gt; deleted
+ *     = batch.call(s -&gt; s.getFilesDeletedFromOtherClients(sourceId, false));
+ * batch.execute();
+ * </pre>
+ *
+ * @author Luciano Vernaschi (luciano at cromoteca.com)
+ */
+public class StorageBatch {
+  private final Storage storage;
+  private final Storage recorder;
+  private final List<Call> calls = new ArrayList<>();
+  private Call recorded;
+
+  public StorageBatch(Storage storage) {
+    this.storage = storage;
+
+    ClassLoader loader = StorageBatch.class.getClassLoader();
+    Class[] storageClass = new Class[] { Storage.class };
+
+    // records the method call instead of running it
+    recorder = (Storage) Proxy.newProxyInstance(loader, storageClass,
+        (p, m, a) -> {
+          if (m.getDeclaringClass() != Storage.class) {
+            return m.invoke(this, a);
+          }
+
+          if (recorded != null) {
+            throw new IllegalArgumentException("Only one call can be added");
+          }
+
+          recorded = new Call(m, a == null ? new Object[0] : a);
+          return getDefaultValue(m.getReturnType());
+        });
+  }
+
+  /**
+   * Adds a call that returns a value.
+   *
+   * @param call must call exactly one method of the passed storage
+   * @return the result, available after {@link #execute()}
+   */
+  public <T> Supplier<T> call(Function<Storage, T> call) {
+    Call c = record(s -> call.apply(s), true);
+    return () -> (T) c.getResult();
+  }
+
+  /**
+   * Adds a call whose result is not needed.
+   *
+   * @param call must call exactly one method of the passed storage
+   */
+  public void run(Consumer<Storage> call) {
+    record(call, false);
+  }
+
+  private synchronized Call record(Consumer<Storage> call,
+      boolean returned) {
+    recorded = null;
+    call.accept(recorder);
+    Call c = recorded;
+    recorded = null;
+
+    if (c == null) {
+      throw new IllegalArgumentException("No storage method called");
+    }
+
+    Method m = c.method;
+
+    if (IOSupplier.class.isAssignableFrom(m.getReturnType())
+        || Arrays.stream(m.getParameterTypes())
+            .anyMatch(IOSupplier.class::isAssignableFrom)) {
+      throw new IllegalArgumentException(m.getName() + " cannot be batched");
+    }
+
+    c.returned = returned;
+    calls.add(c);
+    return c;
+  }
+
+  /**
+   * Runs all added calls. Errors are thrown when the result of the failed call
+   * is requested, or at the end of this method for calls whose result is not
+   * available to the caller.
+   */
+  public synchronized void execute() {
+    if (calls.isEmpty()) {
+      return;
+    }
+
+    List<Call> executed = new ArrayList<>(calls);
+    calls.clear();
+
+    if (storage instanceof BatchedStorage) {
+      ((BatchedStorage) storage).execute(executed);
+    } else {
+      executeSequentially(storage, executed);
+    }
+
+    // nobody else will see these errors
+    executed.stream().filter(c -> !c.returned && c.error != null).findFirst()
+        .ifPresent(c -> {
+          throw c.error;
+        });
+  }
+
+  /**
+   * Runs calls one at a time.
+   */
+  static void executeSequentially(Storage storage, List<Call> calls) {
+    for (Call call : calls) {
+      try {
+        call.setResult(call.method.invoke(storage, call.arguments));
+      } catch (InvocationTargetException ex) {
+        Throwable cause = ex.getCause();
+        call.setError(cause instanceof RuntimeException
+            ? (RuntimeException) cause : new StorageException(cause));
+      } catch (IllegalAccessException ex) {
+        call.setError(new StorageException(ex));
+      }
+    }
+  }
+
+  private static Object getDefaultValue(Class<?> type) {
+    if (type == int.class) {
+      return 0;
+    } else if (type == long.class) {
+      return 0L;
+    } else if (type == boolean.class) {
+      return false;
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * A storage method call and its outcome.
+   */
+  static class Call {
+    final Method method;
+    final Object[] arguments;
+    // true if the result is available to the caller
+    boolean returned;
+    private boolean done;
+    private Object result;
+    private RuntimeException error;
+
+    Call(Method method, Object[] arguments) {
+      this.method = method;
+      this.arguments = arguments;
+    }
+
+    void setResult(Object result) {
+      this.result = result;
+      done = true;
+    }
+
+    void setError(RuntimeException error) {
+      this.error = error;
+      done = true;
+    }
+
+    Object getResult() {
+      if (!done) {
+        throw new IllegalStateException("Batch not executed yet");
+      } else if (error != null) {
+        throw error;
+      }
+
+      return result;
+    }
+  }
+}
@@ -61,7 +61,7 @@ public class Cached<T> {
   /**
    * Gets the object, using the provided supplier if needed.
    */
-  public T get(Supplier<T> supplier) {
+  public synchronized T get(Supplier<T> supplier) {
     if (instance == null
         || (period > 0 && System.currentTimeMillis() - last > period)) {
       instance = supplier.get();
@@ -74,7 +74,7 @@ public class Cached<T> {
   /**
    * Deletes the current object.
    */
-  public void clear() {
+  public synchronized void clear() {
     last = 0;
     instance = null;
   }
@@ -16,65 +16,304 @@
  */
 package com.cromoteca.bfts.util;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
 /**
- * Helper class to compress (deflate) byte arrays.
+ * Helper class to compress (deflate) byte arrays. Deflaters and inflaters are
+ * pooled, since creating them allocates native memory, and each thread keeps
+ * a scratch buffer that grows in powers of two up to the size needed by large
+ * chunks.
  *
  * @author Luciano Vernaschi (luciano at cromoteca.com)
  */
 public class Compression {
-  private static final Factory baosFactory;
+  /**
+   * Maximum number of idle instances kept for each compression level.
+   */
+  private static final int POOL_SIZE
+      = Runtime.getRuntime().availableProcessors() * 2;
+  private static final int SCRATCH_SIZE = 64 * 1024;
+  /**
+   * Largest scratch buffer kept by a thread: enough for chunks of a few MiB,
+   * while larger inputs get their own buffer.
+   */
+  private static final int MAX_SCRATCH_SIZE = 4 * 1024 * 1024;
+  private static final Map<Integer, BlockingQueue<Deflater>> deflaters
+      = new ConcurrentHashMap<>();
+  private static final BlockingQueue<Inflater> inflaters
+      = new ArrayBlockingQueue<>(POOL_SIZE);
+  private static final Factory scratchFactory;
 
   static {
-    baosFactory = new Factory();
-    baosFactory.registerThreadLocal(ByteArrayOutputStream.class,
-        ByteArrayOutputStream::new);
+    scratchFactory = new Factory();
+    scratchFactory.registerThreadLocal(Scratch.class, Scratch::new);
+  }
+
+  /**
+   * Per-thread holder of a scratch buffer, which can be replaced by a larger
+   * one.
+   */
+  private static class Scratch {
+    private byte[] buffer = new byte[SCRATCH_SIZE];
   }
 
   /**
    * Compresses a byte array.
    */
   public static byte[] compress(byte[] data) throws IOException {
+    return compress(data, Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * Compresses a byte array using the passed compression level.
+   */
+  public static byte[] compress(byte[] data, int level) throws IOException {
     if (data == null || data.length == 0) {
       return data;
     }
 
-    ByteArrayOutputStream baos = baosFactory.obtain(ByteArrayOutputStream.class);
-    baos.reset();
+    // same bound used by zlib, so compressed data always fits
+    int bound = data.length + (data.length >> 12) + (data.length >> 14)
+        + (data.length >> 25) + 13;
+    byte[] out = obtainScratch(bound);
+    int length = compress(data, 0, data.length, level, out, 0, out.length);
+    return Arrays.copyOf(out, length);
+  }
 
-    try (DeflaterOutputStream os = new DeflaterOutputStream(baos)) {
-      os.write(data);
-    }
+  /**
+   * Compresses data into a buffer supplied by the caller. Compression stops as
+   * soon as the available space is full, so passing a space smaller than data
+   * avoids wasting time on data that can't be compressed.
+   *
+   * @param data      the buffer containing data
+   * @param offset    start of data
+   * @param length    length of data
+   * @param level     the compression level
+   * @param out       the buffer that will contain compressed data
+   * @param outOffset start of compressed data
+   * @param outLength available space for compressed data
+   * @return the length of compressed data, or -1 if it does not fit
+   */
+  public static int compress(byte[] data, int offset, int length, int level,
+      byte[] out, int outOffset, int outLength) {
+    Deflater deflater = obtainDeflater(level);
 
-    return baos.toByteArray();
+    try {
+      deflater.setInput(data, offset, length);
+      deflater.finish();
+      int position = outOffset;
+      int end = outOffset + outLength;
+
+      while (!deflater.finished()) {
+        if (position == end) {
+          return -1;
+        }
+
+        position += deflater.deflate(out, position, end - position);
+      }
+
+      return position - outOffset;
+    } finally {
+      releaseDeflater(level, deflater);
+    }
   }
 
   /**
    * Decompresses a byte array.
    */
   public static byte[] decompress(byte[] data) throws IOException {
-    if (data == null || data.length == 0) {
-      return data;
+    return data == null ? null : decompress(data, 0, data.length);
+  }
+
+  /**
+   * Decompresses a portion of a byte array, when the length of decompressed
+   * data is not known.
+   */
+  public static byte[] decompress(byte[] data, int offset, int length)
+      throws IOException {
+    if (length == 0) {
+      return new byte[0];
     }
 
-    ByteArrayOutputStream baos = baosFactory.obtain(ByteArrayOutputStream.class);
-    baos.reset();
+    byte[] scratch = obtainScratch(SCRATCH_SIZE);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(length * 4);
+    Inflater inflater = obtainInflater();
+
+    try {
+      inflater.setInput(data, offset, length);
 
-    try (InflaterInputStream is
-        = new InflaterInputStream(new ByteArrayInputStream(data))) {
-      byte[] buffer = new byte[data.length];
-      int n;
+      while (!inflater.finished()) {
+        int n = inflater.inflate(scratch);
 
-      while ((n = is.read(buffer)) >= 0) {
-        baos.write(buffer, 0, n);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IOException("Truncated compressed data");
+        }
+
+        baos.write(scratch, 0, n);
       }
+    } catch (DataFormatException ex) {
+      throw new IOException(ex);
+    } finally {
+      releaseInflater(inflater);
     }
 
     return baos.toByteArray();
   }
+
+  /**
+   * Decompresses data into a buffer supplied by the caller, which must be
+   * exactly as large as decompressed data.
+   *
+   * @param data      the buffer containing compressed data
+   * @param offset    start of compressed data
+   * @param length    length of compressed data
+   * @param out       the buffer that will contain decompressed data
+   * @param outOffset start of decompressed data
+   * @param outLength expected length of decompressed data
+   */
+  public static void decompress(byte[] data, int offset, int length,
+      byte[] out, int outOffset, int outLength) throws IOException {
+    Inflater inflater = obtainInflater();
+
+    try {
+      inflater.setInput(data, offset, length);
+      int position = outOffset;
+      int end = outOffset + outLength;
+
+      while (position < end && !inflater.finished()) {
+        int n = inflater.inflate(out, position, end - position);
+
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+
+        position += n;
+      }
+
+      if (position != end || !inflater.finished()) {
+        throw new IOException("Decompressed data has not the expected length");
+      }
+    } catch (DataFormatException ex) {
+      throw new IOException(ex);
+    } finally {
+      releaseInflater(inflater);
+    }
+  }
+
+  /**
+   * Returns a stream that compresses data written to it. The deflater is given
+   * back to the pool when the stream is closed.
+   */
+  public static OutputStream compressingStream(OutputStream os) {
+    int level = Deflater.DEFAULT_COMPRESSION;
+    Deflater deflater = obtainDeflater(level);
+
+    return new DeflaterOutputStream(os, deflater) {
+      private boolean closed;
+
+      @Override
+      public void close() throws IOException {
+        if (!closed) {
+          closed = true;
+
+          try {
+            super.close();
+          } finally {
+            releaseDeflater(level, deflater);
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Returns a stream that decompresses data read from the passed one. The
+   * inflater is given back to the pool when the stream is closed.
+   */
+  public static InputStream decompressingStream(InputStream is) {
+    Inflater inflater = obtainInflater();
+
+    return new InflaterInputStream(is, inflater) {
+      private boolean closed;
+
+      @Override
+      public void close() throws IOException {
+        if (!closed) {
+          closed = true;
+
+          try {
+            super.close();
+          } finally {
+            releaseInflater(inflater);
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Returns the scratch buffer of the current thread, which is at least as
+   * large as the passed size. If it is smaller, it is replaced by one whose
+   * size is the next power of two, unless that exceeds MAX_SCRATCH_SIZE: in
+   * that case, an unshared buffer is allocated.
+   */
+  private static byte[] obtainScratch(int size) {
+    Scratch scratch = scratchFactory.obtain(Scratch.class);
+
+    if (scratch.buffer.length < size) {
+      if (size > MAX_SCRATCH_SIZE) {
+        return new byte[size];
+      }
+
+      int length = Integer.highestOneBit(size - 1) << 1;
+      scratch.buffer = new byte[Math.min(length, MAX_SCRATCH_SIZE)];
+    }
+
+    return scratch.buffer;
+  }
+
+  private static Deflater obtainDeflater(int level) {
+    Deflater deflater = getDeflaterPool(level).poll();
+    return deflater == null ? new Deflater(level) : deflater;
+  }
+
+  private static void releaseDeflater(int level, Deflater deflater) {
+    deflater.reset();
+
+    // free native memory of instances exceeding the pool size
+    if (!getDeflaterPool(level).offer(deflater)) {
+      deflater.end();
+    }
+  }
+
+  private static BlockingQueue<Deflater> getDeflaterPool(int level) {
+    return deflaters.computeIfAbsent(level,
+        l -> new ArrayBlockingQueue<>(POOL_SIZE));
+  }
+
+  private static Inflater obtainInflater() {
+    Inflater inflater = inflaters.poll();
+    return inflater == null ? new Inflater() : inflater;
+  }
+
+  private static void releaseInflater(Inflater inflater) {
+    inflater.reset();
+
+    if (!inflaters.offer(inflater)) {
+      inflater.end();
+    }
+  }
 }
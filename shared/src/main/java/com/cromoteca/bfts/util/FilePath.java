@@ -27,6 +27,7 @@ import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.DosFileAttributeView;
 import java.nio.file.attribute.FileTime;
 import java.util.Arrays;
@@ -216,6 +217,13 @@ public class FilePath implements Comparable<FilePath> {
     return Files.size(p);
   }
 
+  /**
+   * Reads type, size and times at once, following symbolic links.
+   */
+  public BasicFileAttributes readAttributes() throws IOException {
+    return Files.readAttributes(p, BasicFileAttributes.class);
+  }
+
   public void delete() throws IOException {
     Files.delete(p);
   }